@@ -0,0 +1,79 @@
+package com.forgerock.edu.auth.nodes;
+
+import com.iplanet.sso.SSOException;
+import com.sun.identity.idm.AMIdentity;
+import com.sun.identity.idm.IdRepoException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the membership lookup paths of {@link AmIdentityHelper} and the candidate role intersection.
+ * <p>The user is a {@link FakeAMIdentity} answering {@code getMemberships} after {@code latencyMicros}.</p>
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AmIdentityHelperBenchmark {
+
+    @Param({"10", "100", "1000"})
+    int groupCount;
+
+    @Param({"0", "200"})
+    long latencyMicros;
+
+    private AmIdentityHelper identityHelper;
+    private AMIdentity userIdentity;
+    private MembershipCacheSettings cacheSettings;
+    private CandidateRoleMatcher candidateRoleMatcher;
+    private Set<String> groupNames;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final Set<AMIdentity> groups = new HashSet<>();
+        groupNames = new HashSet<>();
+        for (int i = 0; i < groupCount; i++) {
+            groups.add(FakeAMIdentity.group(FakeAmIdentityHelper.groupName(i), "/"));
+            groupNames.add(FakeAmIdentityHelper.groupName(i));
+        }
+        userIdentity = FakeAMIdentity.user("demo", "/", groups, TimeUnit.MICROSECONDS.toNanos(latencyMicros));
+
+        identityHelper = new AmIdentityHelper(Clock.systemUTC(), Runnable::run);
+        cacheSettings = MembershipCacheSettings.of(Duration.ofHours(1), Duration.ZERO, 1000);
+        candidateRoleMatcher = new CandidateRoleMatcher(Set.of(
+                FakeAmIdentityHelper.groupName(0), FakeAmIdentityHelper.groupName(groupCount / 2), "notAssigned"), false);
+    }
+
+    @Benchmark
+    public Set<String> membershipLookupUncached() throws IdRepoException, SSOException {
+        return identityHelper.findAllAssignedGroupNamesOfUser(userIdentity, MembershipCacheSettings.disabled());
+    }
+
+    @Benchmark
+    public Set<String> membershipLookupCached() throws IdRepoException, SSOException {
+        return identityHelper.findAllAssignedGroupNamesOfUser(userIdentity, cacheSettings);
+    }
+
+    @Benchmark
+    public String[] candidateRoleIntersection() {
+        return candidateRoleMatcher.selectableRoles(groupNames);
+    }
+}
@@ -0,0 +1,94 @@
+package com.forgerock.edu.auth.nodes;
+
+import com.sun.identity.idm.AMIdentity;
+import com.sun.identity.idm.IdType;
+import org.objenesis.ObjenesisStd;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An {@link AMIdentity} held in memory, for benchmarks.
+ * <p>Instances are created without running the {@link AMIdentity} constructor, so no AM runtime is
+ * needed. Mockito mocks are not used because their invocation overhead would dominate the measurements.</p>
+ */
+final class FakeAMIdentity extends AMIdentity {
+
+    private static final ObjenesisStd OBJENESIS = new ObjenesisStd(true);
+
+    private String name;
+    private IdType type;
+    private String realm;
+    private String universalId;
+    private Set<AMIdentity> memberships;
+    private long latencyNanos;
+
+    private FakeAMIdentity() {
+        super(null, null, null, null, null);
+    }
+
+    /**
+     * Creates a group.
+     */
+    static FakeAMIdentity group(String name, String realm) {
+        return create(name, IdType.GROUP, realm, Collections.emptySet(), 0);
+    }
+
+    /**
+     * Creates a user whose {@link #getMemberships(IdType)} returns the given groups after the given latency.
+     */
+    static FakeAMIdentity user(String name, String realm, Set<AMIdentity> memberships, long latencyNanos) {
+        return create(name, IdType.USER, realm, memberships, latencyNanos);
+    }
+
+    private static FakeAMIdentity create(String name, IdType type, String realm, Set<AMIdentity> memberships,
+            long latencyNanos) {
+        final FakeAMIdentity identity = OBJENESIS.newInstance(FakeAMIdentity.class);
+        identity.name = name;
+        identity.type = type;
+        identity.realm = realm;
+        identity.universalId = "id=" + name + ",ou=" + type.getName() + "," + realm;
+        identity.memberships = memberships;
+        identity.latencyNanos = latencyNanos;
+        return identity;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public IdType getType() {
+        return type;
+    }
+
+    @Override
+    public String getRealm() {
+        return realm;
+    }
+
+    @Override
+    public String getUniversalId() {
+        return universalId;
+    }
+
+    @Override
+    public boolean isExists() {
+        return true;
+    }
+
+    @Override
+    public boolean isActive() {
+        return true;
+    }
+
+    @Override
+    public Set<AMIdentity> getMemberships(IdType type) {
+        if (latencyNanos > 0) {
+            LockSupport.parkNanos(latencyNanos);
+        }
+        return IdType.GROUP.equals(type) ? memberships : Collections.emptySet();
+    }
+}
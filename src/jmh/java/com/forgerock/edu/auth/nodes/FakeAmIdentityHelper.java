@@ -0,0 +1,78 @@
+package com.forgerock.edu.auth.nodes;
+
+import com.sun.identity.idm.AMIdentity;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An {@link AmIdentityHelper} that serves a fixed set of group names after an injected latency,
+ * instead of querying the identity repository.
+ */
+class FakeAmIdentityHelper extends AmIdentityHelper {
+
+    private final AMIdentity identity = FakeAMIdentity.user("demo", "/", Collections.emptySet(), 0);
+    private final Set<String> groupNames;
+    private final long latencyNanos;
+    private final LongAdder membershipLookups = new LongAdder();
+
+    /**
+     * Creates the fake.
+     *
+     * @param groupCount the number of groups of every user, named {@code group0}, {@code group1}...
+     * @param latencyMicros the time every membership lookup takes.
+     */
+    FakeAmIdentityHelper(int groupCount, long latencyMicros) {
+        this.groupNames = new LinkedHashSet<>();
+        for (int i = 0; i < groupCount; i++) {
+            groupNames.add(groupName(i));
+        }
+        this.latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+    }
+
+    static String groupName(int index) {
+        return "group" + index;
+    }
+
+    @Override
+    public AMIdentity getIdentity(String username, String realm) {
+        return identity;
+    }
+
+    @Override
+    public AMIdentity getIdentity(String username, String realm, String universalId) {
+        return identity;
+    }
+
+    @Override
+    public Set<String> findAllAssignedGroupNamesOfUser(AMIdentity userIdentity) {
+        membershipLookups.increment();
+        if (latencyNanos > 0) {
+            LockSupport.parkNanos(latencyNanos);
+        }
+        return groupNames;
+    }
+
+    @Override
+    public Set<String> findAllAssignedGroupNamesOfUser(AMIdentity userIdentity, MembershipCacheSettings cacheSettings) {
+        return findAllAssignedGroupNamesOfUser(userIdentity);
+    }
+
+    @Override
+    public Set<String> findAllAssignedGroupNamesOfUser(AMIdentity userIdentity, MembershipCacheSettings cacheSettings,
+            Duration timeout) {
+        return findAllAssignedGroupNamesOfUser(userIdentity);
+    }
+
+    /**
+     * @return the number of membership lookups served so far.
+     */
+    long membershipLookupCount() {
+        return membershipLookups.sum();
+    }
+}
@@ -0,0 +1,99 @@
+package com.forgerock.edu.auth.nodes;
+
+import com.google.common.collect.ImmutableSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cached roles of a user held as an {@link ImmutableSet} of names with the same roles held as a
+ * {@link RoleSet} of the realm's {@link RoleDictionary}.
+ * <p>The {@code copy*} benchmarks build one cache entry per operation: with {@code -prof gc}, the default
+ * {@code jmh.args}, their {@code gc.alloc.rate.norm} is the heap per entry. It slightly overstates the
+ * {@link RoleSet}, whose encoding allocates a temporary id array, and understates the {@link ImmutableSet},
+ * whose names are shared here while the directory returns new strings for every lookup. The
+ * {@code intersect*} benchmarks match the entry against {@code candidateCount} candidate roles.</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RoleSetBenchmark {
+
+    @Param({"100", "10000"})
+    int realmRoleCount;
+
+    @Param({"10", "100"})
+    int rolesPerUser;
+
+    @Param({"5", "50"})
+    int candidateCount;
+
+    private List<String> userRoleNames;
+    private RoleDictionary dictionary;
+    private Set<String> hashSet;
+    private RoleSet roleSet;
+    private CandidateRoleMatcher candidateRoleMatcher;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dictionary = new RoleDictionary(realmRoleCount * 2);
+        for (int i = 0; i < realmRoleCount; i++) {
+            dictionary.intern(FakeAmIdentityHelper.groupName(i));
+        }
+        final Random random = new Random(42);
+        userRoleNames = new ArrayList<>(rolesPerUser);
+        while (userRoleNames.size() < Math.min(rolesPerUser, realmRoleCount)) {
+            final String roleName = FakeAmIdentityHelper.groupName(random.nextInt(realmRoleCount));
+            if (!userRoleNames.contains(roleName)) {
+                userRoleNames.add(roleName);
+            }
+        }
+        final List<String> candidateRoles = new ArrayList<>(candidateCount);
+        for (int i = 0; i < candidateCount; i++) {
+            candidateRoles.add(i % 2 == 0 && i / 2 < userRoleNames.size()
+                    ? userRoleNames.get(i / 2)
+                    : FakeAmIdentityHelper.groupName(random.nextInt(realmRoleCount)));
+        }
+        hashSet = ImmutableSet.copyOf(userRoleNames);
+        roleSet = dictionary.encode(userRoleNames);
+        candidateRoleMatcher = new CandidateRoleMatcher(candidateRoles, false);
+    }
+
+    @Benchmark
+    public Set<String> copyImmutableSet() {
+        return ImmutableSet.copyOf(userRoleNames);
+    }
+
+    @Benchmark
+    public Set<String> copyRoleSet() {
+        return dictionary.encode(userRoleNames);
+    }
+
+    @Benchmark
+    public String[] intersectImmutableSet() {
+        return candidateRoleMatcher.selectableRoles(hashSet);
+    }
+
+    @Benchmark
+    public String[] intersectRoleSet() {
+        return candidateRoleMatcher.selectableRoles(roleSet);
+    }
+}
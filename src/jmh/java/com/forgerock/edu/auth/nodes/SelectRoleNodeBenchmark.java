@@ -0,0 +1,67 @@
+package com.forgerock.edu.auth.nodes;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the first invocation of {@link SelectRoleNode#process(TreeContext)} against a
+ * {@link FakeAmIdentityHelper}: default role ({@code selectableCount = 0}), auto-select ({@code 1})
+ * or ChoiceCallback prompt (more).
+ * <p>Every user is member of {@code groupCount} groups, each membership lookup takes {@code latencyMicros}.
+ * {@code metricsEnabled} compares the cost of recording {@link RoleSelectionMetrics} with the no-op mode.
+ * Each operation works on a copy of the shared state, as the node modifies it.</p>
+ * <p>Run with {@code mvn -Pjmh verify}, add {@code -Djmh.args="SelectRoleNode -prof gc"} to select
+ * benchmarks and profilers.</p>
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SelectRoleNodeBenchmark {
+
+    @Param({"10", "100", "1000"})
+    int groupCount;
+
+    @Param({"0", "1", "5"})
+    int selectableCount;
+
+    @Param({"0", "200"})
+    long latencyMicros;
+
+    @Param({"false", "true"})
+    boolean metricsEnabled;
+
+    private SelectRoleNode node;
+    private JsonValue sharedState;
+
+    @Setup(Level.Trial)
+    public void setUp() throws NodeProcessException {
+        node = SelectRoleNodeBenchmarks.node(new FakeAmIdentityHelper(groupCount, latencyMicros), groupCount,
+                selectableCount, new RoleSelectionMetrics(metricsEnabled));
+        sharedState = SelectRoleNodeBenchmarks.sharedState("demo");
+    }
+
+    @Benchmark
+    public Action firstVisit() throws NodeProcessException {
+        return node.process(SelectRoleNodeBenchmarks.context(sharedState.copy(), Collections.emptyList()));
+    }
+}
@@ -0,0 +1,90 @@
+package com.forgerock.edu.auth.nodes;
+
+import com.google.common.collect.ImmutableList;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.ExternalRequestContext;
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+import org.forgerock.openam.auth.node.api.TreeContext;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.ChoiceCallback;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.REALM;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
+
+/**
+ * Builds the {@link SelectRoleNode} instances and tree contexts used by the node benchmarks.
+ */
+final class SelectRoleNodeBenchmarks {
+
+    static final String DEFAULT_ROLE = "notAssigned";
+
+    private SelectRoleNodeBenchmarks() {
+    }
+
+    /**
+     * Creates a node whose users are member of {@code groupCount} groups, {@code selectableCount} of them
+     * being candidate roles.
+     */
+    static SelectRoleNode node(FakeAmIdentityHelper identityHelper, int groupCount, int selectableCount)
+            throws NodeProcessException {
+        return node(identityHelper, groupCount, selectableCount, RoleSelectionMetrics.noop());
+    }
+
+    /**
+     * Creates a node recording into the given metrics.
+     */
+    static SelectRoleNode node(FakeAmIdentityHelper identityHelper, int groupCount, int selectableCount,
+            RoleSelectionMetrics metrics) throws NodeProcessException {
+        return new SelectRoleNode(new BenchmarkConfig(candidateRoles(groupCount, selectableCount)), identityHelper,
+                metrics);
+    }
+
+    static Set<String> candidateRoles(int groupCount, int selectableCount) {
+        final Set<String> candidateRoles = new LinkedHashSet<>();
+        for (int i = 0; i < selectableCount; i++) {
+            candidateRoles.add(FakeAmIdentityHelper.groupName(i * groupCount / selectableCount));
+        }
+        candidateRoles.add(DEFAULT_ROLE);
+        return candidateRoles;
+    }
+
+    static JsonValue sharedState(String username) {
+        return json(object(field(REALM, "/"), field(USERNAME, username)));
+    }
+
+    static TreeContext context(JsonValue sharedState, List<Callback> callbacks) {
+        return new TreeContext(sharedState, new ExternalRequestContext.Builder().build(), callbacks, Optional.empty());
+    }
+
+    static List<Callback> choice(String[] choices, int selectedIndex) {
+        final ChoiceCallback callback = new ChoiceCallback("Select Role", choices, 0, false);
+        callback.setSelectedIndex(selectedIndex);
+        return ImmutableList.of(callback);
+    }
+
+    private static final class BenchmarkConfig implements SelectRoleNode.Config {
+        private final Set<String> candidateRoles;
+
+        private BenchmarkConfig(Set<String> candidateRoles) {
+            this.candidateRoles = candidateRoles;
+        }
+
+        @Override
+        public String defaultRole() {
+            return DEFAULT_ROLE;
+        }
+
+        @Override
+        public Set<String> candidateRoles() {
+            return candidateRoles;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.forgerock.edu.auth.nodes;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.ChoiceCallback;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the resubmission branches of {@link SelectRoleNode#process(TreeContext)} against a
+ * {@link FakeAmIdentityHelper}, after a first invocation that sent a ChoiceCallback.
+ * <p>Each operation works on a copy of the shared state, as the node modifies it.</p>
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SelectRoleNodeCallbackBenchmark {
+
+    @Param({"10", "100", "1000"})
+    int groupCount;
+
+    @Param({"2", "5"})
+    int selectableCount;
+
+    @Param({"0", "200"})
+    long latencyMicros;
+
+    private SelectRoleNode node;
+    private JsonValue firstVisitState;
+    private JsonValue resubmissionState;
+    private List<Callback> validChoice;
+    private List<Callback> invalidChoice;
+
+    @Setup(Level.Trial)
+    public void setUp() throws NodeProcessException {
+        node = SelectRoleNodeBenchmarks.node(new FakeAmIdentityHelper(groupCount, latencyMicros), groupCount, selectableCount);
+        firstVisitState = SelectRoleNodeBenchmarks.sharedState("demo");
+        final TreeContext firstVisit = SelectRoleNodeBenchmarks.context(firstVisitState.copy(), Collections.emptyList());
+        final String[] choices = ((ChoiceCallback) node.process(firstVisit).callbacks.get(0))
+                .getChoices();
+        resubmissionState = firstVisit.sharedState;
+        validChoice = SelectRoleNodeBenchmarks.choice(choices, choices.length - 1);
+        invalidChoice = SelectRoleNodeBenchmarks.choice(choices, choices.length);
+    }
+
+    /**
+     * Valid choice, resolved against the roles stored by the first invocation.
+     */
+    @Benchmark
+    public Action resubmission() throws NodeProcessException {
+        return node.process(SelectRoleNodeBenchmarks.context(resubmissionState.copy(), validChoice));
+    }
+
+    /**
+     * Valid choice without stored roles, which queries the memberships again.
+     */
+    @Benchmark
+    public Action resubmissionWithoutStoredRoles() throws NodeProcessException {
+        return node.process(SelectRoleNodeBenchmarks.context(firstVisitState.copy(), validChoice));
+    }
+
+    /**
+     * Out of range index, answered with a warning and the ChoiceCallback again.
+     */
+    @Benchmark
+    public Action invalidIndex() throws NodeProcessException {
+        return node.process(SelectRoleNodeBenchmarks.context(resubmissionState.copy(), invalidChoice));
+    }
+}
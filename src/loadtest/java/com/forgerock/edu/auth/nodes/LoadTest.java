@@ -0,0 +1,370 @@
+package com.forgerock.edu.auth.nodes;
+
+import com.google.common.collect.ImmutableList;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.ExternalRequestContext;
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+import org.forgerock.openam.auth.node.api.TreeContext;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.ChoiceCallback;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.REALM;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
+
+/**
+ * Replays authentication tree traffic against a {@link SelectRoleNode} backed by a {@link SimulatedDirectory},
+ * from many concurrent threads, and reports the throughput, the latencies and the directory calls per login.
+ * <p>Each worker logs in random users in a loop: a first visit, then, when a ChoiceCallback comes back, a
+ * resubmission with a random choice, invalid at the configured rate, which is resubmitted again. Run with
+ * {@code mvn -Ploadtest verify -Dloadtest.args="threads=200 virtualThreads=true membershipCache=false"}; the
+ * options are listed in {@link Options}. The system properties of {@link AmIdentityHelper} apply as usual.</p>
+ */
+public final class LoadTest {
+
+    private static final int MAX_SUBMISSIONS = 3;
+
+    private final Options options;
+    private final SimulatedDirectory directory;
+    private final SimulatedAmIdentityHelper identityHelper;
+    private final SelectRoleNode node;
+    private final LatencyHistogram loginLatencies = new LatencyHistogram();
+    private final LatencyHistogram firstVisitLatencies = new LatencyHistogram();
+    private final LatencyHistogram resubmissionLatencies = new LatencyHistogram();
+    private final LongAdder logins = new LongAdder();
+    private final LongAdder failedLogins = new LongAdder();
+    private final LongAdder resubmissions = new LongAdder();
+    private volatile boolean measuring;
+
+    LoadTest(Options options) throws NodeProcessException {
+        this.options = options;
+        this.directory = new SimulatedDirectory(options.users, options.groups, options.groupsPerUser,
+                SimulatedDirectory.Latency.parse(options.latency), options.failureRate);
+        this.identityHelper = new SimulatedAmIdentityHelper(directory);
+        this.node = new SelectRoleNode(new LoadTestConfig(options), identityHelper, RoleSelectionMetrics.noop());
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println("Options (name=value): " + String.join(" ", new Options().describe().keySet()));
+            System.exit(2);
+            return;
+        }
+        new LoadTest(options).run();
+    }
+
+    void run() throws Exception {
+        System.out.println("SelectRoleNode load test " + options.describe());
+        final ExecutorService workers = options.virtualThreads
+                ? virtualThreadExecutor()
+                : Executors.newFixedThreadPool(options.threads);
+        final long warmupEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(options.warmupSeconds);
+        final long end = warmupEnd + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+        final List<Future<?>> running = new ArrayList<>();
+        for (int i = 0; i < options.threads; i++) {
+            running.add(workers.submit(() -> work(end)));
+        }
+        TimeUnit.NANOSECONDS.sleep(Math.max(0, warmupEnd - System.nanoTime()));
+        final DirectoryCalls before = new DirectoryCalls(directory);
+        final CacheStatistics cacheBefore = identityHelper.membershipCacheStatistics();
+        final long coalescedBefore = identityHelper.coalescedMembershipLookupCount();
+        final long measureStart = System.nanoTime();
+        measuring = true;
+        for (Future<?> worker : running) {
+            worker.get();
+        }
+        measuring = false;
+        final double seconds = (System.nanoTime() - measureStart) / 1e9;
+        workers.shutdown();
+        report(seconds, new DirectoryCalls(directory).minus(before),
+                identityHelper.membershipCacheStatistics(), cacheBefore,
+                identityHelper.coalescedMembershipLookupCount() - coalescedBefore);
+    }
+
+    private void work(long end) {
+        while (System.nanoTime() < end) {
+            login(SimulatedDirectory.userName(nextUser()));
+        }
+    }
+
+    private int nextUser() {
+        final double u = ThreadLocalRandom.current().nextDouble();
+        return Math.min((int) (options.users * Math.pow(u, 1 + options.userSkew)), options.users - 1);
+    }
+
+    private void login(String username) {
+        final boolean recorded = measuring;
+        final JsonValue sharedState = json(object(field(REALM, SimulatedDirectory.REALM), field(USERNAME, username)));
+        final long start = System.nanoTime();
+        try {
+            Action action = node.process(context(sharedState, Collections.emptyList()));
+            long now = System.nanoTime();
+            if (recorded) {
+                firstVisitLatencies.record(now - start);
+            }
+            for (int submission = 0; !action.callbacks.isEmpty() && submission < MAX_SUBMISSIONS; submission++) {
+                final ChoiceCallback choice = choiceOf(action.callbacks);
+                final ThreadLocalRandom random = ThreadLocalRandom.current();
+                choice.setSelectedIndex(random.nextDouble() < options.invalidChoiceRate
+                        ? choice.getChoices().length
+                        : random.nextInt(choice.getChoices().length));
+                final long resubmitted = System.nanoTime();
+                action = node.process(context(sharedState, ImmutableList.of(choice)));
+                now = System.nanoTime();
+                if (recorded) {
+                    resubmissionLatencies.record(now - resubmitted);
+                    resubmissions.increment();
+                }
+            }
+            if (recorded) {
+                loginLatencies.record(now - start);
+                logins.increment();
+            }
+        } catch (NodeProcessException | RuntimeException ex) {
+            if (recorded) {
+                failedLogins.increment();
+            }
+        }
+    }
+
+    private static ChoiceCallback choiceOf(List<Callback> callbacks) {
+        for (Callback callback : callbacks) {
+            if (callback instanceof ChoiceCallback) {
+                return (ChoiceCallback) callback;
+            }
+        }
+        throw new IllegalStateException("No ChoiceCallback in " + callbacks);
+    }
+
+    private static TreeContext context(JsonValue sharedState, List<Callback> callbacks) {
+        return new TreeContext(sharedState, new ExternalRequestContext.Builder().build(), callbacks, Optional.empty());
+    }
+
+    private void report(double seconds, DirectoryCalls calls, CacheStatistics cacheAfter, CacheStatistics cacheBefore,
+            long coalesced) {
+        final long loginCount = logins.sum();
+        final long attempts = Math.max(1, loginCount + failedLogins.sum());
+        System.out.printf("logins            %d (%.1f/s), failed %d%n", loginCount, loginCount / seconds, failedLogins.sum());
+        System.out.printf("resubmissions     %d (%.2f/login)%n", resubmissions.sum(), (double) resubmissions.sum() / attempts);
+        System.out.println("login latency     " + loginLatencies.statistics());
+        System.out.println("first visit       " + firstVisitLatencies.statistics());
+        System.out.println("resubmission      " + resubmissionLatencies.statistics());
+        System.out.printf("directory calls   %.3f/login: status %.3f, memberships %.3f, attributes %.3f, failed %d%n",
+                (double) calls.total() / attempts, (double) calls.statusReads / attempts,
+                (double) calls.membershipReads / attempts, (double) calls.attributeReads / attempts, calls.failures);
+        System.out.printf("membership cache  hits %d, stale hits %d, misses %d, evictions %d%n",
+                cacheAfter.getHitCount() - cacheBefore.getHitCount(),
+                cacheAfter.getStaleHitCount() - cacheBefore.getStaleHitCount(),
+                cacheAfter.getMissCount() - cacheBefore.getMissCount(),
+                cacheAfter.getEvictionCount() - cacheBefore.getEvictionCount());
+        System.out.println("coalesced lookups " + coalesced);
+    }
+
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException("Virtual threads need Java 21 or later", ex);
+        }
+    }
+
+    /**
+     * The load test options, given as {@code name=value} arguments.
+     */
+    static final class Options {
+        /** The number of concurrent workers, platform threads or virtual threads. */
+        int threads = 64;
+        /** Runs the workers on virtual threads, needs Java 21. */
+        boolean virtualThreads;
+        long warmupSeconds = 5;
+        long durationSeconds = 30;
+        int users = 10000;
+        /** Zero picks the users uniformly, higher values log in the first users more often. */
+        double userSkew;
+        int groups = 200;
+        int groupsPerUser = 20;
+        /** The number of candidate roles, taken from the first groups. */
+        int candidateRoles = 10;
+        double invalidChoiceRate = 0.05;
+        /** The latency of every directory call, see {@link SimulatedDirectory.Latency}. */
+        String latency = "lognormal:2:0.5";
+        double failureRate;
+        boolean membershipCache = true;
+        long cacheTtlSeconds = 60;
+        long cacheStaleSeconds;
+        int cacheMaxEntries = 10000;
+        long idRepoTimeoutMillis;
+        boolean degradeToDefaultRole;
+
+        static Options parse(String[] args) {
+            final Options options = new Options();
+            for (String arg : args) {
+                final int separator = arg.indexOf('=');
+                if (separator < 0) {
+                    throw new IllegalArgumentException("Expected name=value, got " + arg);
+                }
+                options.set(arg.substring(0, separator).trim(), arg.substring(separator + 1).trim());
+            }
+            return options;
+        }
+
+        private void set(String name, String value) {
+            try {
+                switch (name) {
+                    case "threads": threads = Integer.parseInt(value); break;
+                    case "virtualThreads": virtualThreads = Boolean.parseBoolean(value); break;
+                    case "warmupSeconds": warmupSeconds = Long.parseLong(value); break;
+                    case "durationSeconds": durationSeconds = Long.parseLong(value); break;
+                    case "users": users = Integer.parseInt(value); break;
+                    case "userSkew": userSkew = Double.parseDouble(value); break;
+                    case "groups": groups = Integer.parseInt(value); break;
+                    case "groupsPerUser": groupsPerUser = Integer.parseInt(value); break;
+                    case "candidateRoles": candidateRoles = Integer.parseInt(value); break;
+                    case "invalidChoiceRate": invalidChoiceRate = Double.parseDouble(value); break;
+                    case "latency": latency = value; break;
+                    case "failureRate": failureRate = Double.parseDouble(value); break;
+                    case "membershipCache": membershipCache = Boolean.parseBoolean(value); break;
+                    case "cacheTtlSeconds": cacheTtlSeconds = Long.parseLong(value); break;
+                    case "cacheStaleSeconds": cacheStaleSeconds = Long.parseLong(value); break;
+                    case "cacheMaxEntries": cacheMaxEntries = Integer.parseInt(value); break;
+                    case "idRepoTimeoutMillis": idRepoTimeoutMillis = Long.parseLong(value); break;
+                    case "degradeToDefaultRole": degradeToDefaultRole = Boolean.parseBoolean(value); break;
+                    default: throw new IllegalArgumentException("Unknown option " + name);
+                }
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid value of " + name + ": " + value, ex);
+            }
+        }
+
+        Map<String, Object> describe() {
+            final Map<String, Object> description = new LinkedHashMap<>();
+            description.put("threads", threads);
+            description.put("virtualThreads", virtualThreads);
+            description.put("warmupSeconds", warmupSeconds);
+            description.put("durationSeconds", durationSeconds);
+            description.put("users", users);
+            description.put("userSkew", userSkew);
+            description.put("groups", groups);
+            description.put("groupsPerUser", groupsPerUser);
+            description.put("candidateRoles", candidateRoles);
+            description.put("invalidChoiceRate", invalidChoiceRate);
+            description.put("latency", latency);
+            description.put("failureRate", failureRate);
+            description.put("membershipCache", membershipCache);
+            description.put("cacheTtlSeconds", cacheTtlSeconds);
+            description.put("cacheStaleSeconds", cacheStaleSeconds);
+            description.put("cacheMaxEntries", cacheMaxEntries);
+            description.put("idRepoTimeoutMillis", idRepoTimeoutMillis);
+            description.put("degradeToDefaultRole", degradeToDefaultRole);
+            return description;
+        }
+    }
+
+    /**
+     * The directory calls counted so far.
+     */
+    private static final class DirectoryCalls {
+        private final long statusReads;
+        private final long membershipReads;
+        private final long attributeReads;
+        private final long failures;
+
+        private DirectoryCalls(SimulatedDirectory directory) {
+            this(directory.statusReadCount(), directory.membershipReadCount(), directory.attributeReadCount(),
+                    directory.failureCount());
+        }
+
+        private DirectoryCalls(long statusReads, long membershipReads, long attributeReads, long failures) {
+            this.statusReads = statusReads;
+            this.membershipReads = membershipReads;
+            this.attributeReads = attributeReads;
+            this.failures = failures;
+        }
+
+        private DirectoryCalls minus(DirectoryCalls other) {
+            return new DirectoryCalls(statusReads - other.statusReads, membershipReads - other.membershipReads,
+                    attributeReads - other.attributeReads, failures - other.failures);
+        }
+
+        private long total() {
+            return statusReads + membershipReads + attributeReads;
+        }
+    }
+
+    private static final class LoadTestConfig implements SelectRoleNode.Config {
+        private final Options options;
+        private final Set<String> candidateRoles;
+
+        private LoadTestConfig(Options options) {
+            this.options = options;
+            final Set<String> roles = new LinkedHashSet<>();
+            for (int i = 0; i < Math.min(options.candidateRoles, options.groups); i++) {
+                roles.add(SimulatedDirectory.groupName(i));
+            }
+            roles.add(defaultRole());
+            this.candidateRoles = Collections.unmodifiableSet(roles);
+        }
+
+        @Override
+        public String defaultRole() {
+            return "notAssigned";
+        }
+
+        @Override
+        public Set<String> candidateRoles() {
+            return candidateRoles;
+        }
+
+        @Override
+        public boolean membershipCacheEnabled() {
+            return options.membershipCache;
+        }
+
+        @Override
+        public long membershipCacheTtlSeconds() {
+            return options.cacheTtlSeconds;
+        }
+
+        @Override
+        public long membershipCacheStaleSeconds() {
+            return options.cacheStaleSeconds;
+        }
+
+        @Override
+        public int membershipCacheMaxEntries() {
+            return options.cacheMaxEntries;
+        }
+
+        @Override
+        public long idRepoTimeoutMillis() {
+            return options.idRepoTimeoutMillis;
+        }
+
+        @Override
+        public boolean degradeToDefaultRole() {
+            return options.degradeToDefaultRole;
+        }
+    }
+}
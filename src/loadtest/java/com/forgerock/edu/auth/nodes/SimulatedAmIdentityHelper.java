@@ -0,0 +1,26 @@
+package com.forgerock.edu.auth.nodes;
+
+import com.sun.identity.idm.AMIdentity;
+
+/**
+ * The real {@link AmIdentityHelper}, with its caches and coalescing, resolving the users of a
+ * {@link SimulatedDirectory} instead of looking them up with {@code IdUtils}.
+ */
+class SimulatedAmIdentityHelper extends AmIdentityHelper {
+
+    private final SimulatedDirectory directory;
+
+    SimulatedAmIdentityHelper(SimulatedDirectory directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public AMIdentity getIdentity(String username, String realm) {
+        return directory.user(username);
+    }
+
+    @Override
+    public AMIdentity getIdentity(String username, String realm, String universalId) {
+        return directory.user(username);
+    }
+}
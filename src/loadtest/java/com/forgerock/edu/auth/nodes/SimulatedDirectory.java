@@ -0,0 +1,247 @@
+package com.forgerock.edu.auth.nodes;
+
+import com.sun.identity.idm.AMIdentity;
+import com.sun.identity.idm.IdRepoException;
+import com.sun.identity.idm.IdType;
+import org.objenesis.ObjenesisStd;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An in-memory identity repository for the load test: users named {@code user0}, {@code user1}... member of
+ * random groups named {@code group0}, {@code group1}...
+ * <p>Every read of a user's status, memberships or attributes counts as a directory call, takes a latency
+ * drawn from a {@link Latency} distribution and fails with an {@link IdRepoException} at the given rate.</p>
+ */
+final class SimulatedDirectory {
+
+    static final String REALM = "/";
+    private static final ObjenesisStd OBJENESIS = new ObjenesisStd(true);
+
+    private final List<SimulatedIdentity> users;
+    private final Latency latency;
+    private final double failureRate;
+    private final LongAdder statusReads = new LongAdder();
+    private final LongAdder membershipReads = new LongAdder();
+    private final LongAdder attributeReads = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    /**
+     * Creates the directory.
+     *
+     * @param userCount the number of users.
+     * @param groupCount the number of groups.
+     * @param groupsPerUser the number of groups of every user, drawn at random with a fixed seed.
+     * @param latency the latency of every directory call.
+     * @param failureRate the probability of a directory call to fail, between 0 and 1.
+     */
+    SimulatedDirectory(int userCount, int groupCount, int groupsPerUser, Latency latency, double failureRate) {
+        this.latency = latency;
+        this.failureRate = failureRate;
+        final List<SimulatedIdentity> groups = new ArrayList<>(groupCount);
+        for (int i = 0; i < groupCount; i++) {
+            groups.add(SimulatedIdentity.create(this, groupName(i), IdType.GROUP, Collections.emptySet()));
+        }
+        final Random random = new Random(42);
+        this.users = new ArrayList<>(userCount);
+        for (int i = 0; i < userCount; i++) {
+            final Set<AMIdentity> memberships = new LinkedHashSet<>();
+            while (memberships.size() < Math.min(groupsPerUser, groupCount)) {
+                memberships.add(groups.get(random.nextInt(groupCount)));
+            }
+            users.add(SimulatedIdentity.create(this, userName(i), IdType.USER, Collections.unmodifiableSet(memberships)));
+        }
+    }
+
+    static String userName(int index) {
+        return "user" + index;
+    }
+
+    static String groupName(int index) {
+        return "group" + index;
+    }
+
+    int userCount() {
+        return users.size();
+    }
+
+    /**
+     * @return the user of the given name, or {@code null} if there is no such user.
+     */
+    AMIdentity user(String name) {
+        if (name == null || !name.startsWith("user")) {
+            return null;
+        }
+        try {
+            final int index = Integer.parseInt(name.substring(4));
+            return index >= 0 && index < users.size() ? users.get(index) : null;
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    long statusReadCount() {
+        return statusReads.sum();
+    }
+
+    long membershipReadCount() {
+        return membershipReads.sum();
+    }
+
+    long attributeReadCount() {
+        return attributeReads.sum();
+    }
+
+    long failureCount() {
+        return failures.sum();
+    }
+
+    private void call(LongAdder counter) throws IdRepoException {
+        counter.increment();
+        final long nanos = latency.sampleNanos();
+        if (nanos > 0) {
+            LockSupport.parkNanos(nanos);
+        }
+        if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+            failures.increment();
+            throw new IdRepoException("Simulated directory failure");
+        }
+    }
+
+    /**
+     * A latency distribution, parsed from {@code fixed:<ms>}, {@code uniform:<minMs>:<maxMs>} or
+     * {@code lognormal:<medianMs>:<sigma>}.
+     */
+    interface Latency {
+
+        long sampleNanos();
+
+        static Latency parse(String spec) {
+            final String[] parts = spec.trim().split(":");
+            try {
+                switch (parts[0]) {
+                    case "fixed":
+                        final long fixed = millisToNanos(Double.parseDouble(parts[1]));
+                        return () -> fixed;
+                    case "uniform":
+                        final long min = millisToNanos(Double.parseDouble(parts[1]));
+                        final long max = millisToNanos(Double.parseDouble(parts[2]));
+                        return () -> min + (long) (ThreadLocalRandom.current().nextDouble() * (max - min));
+                    case "lognormal":
+                        final double median = Double.parseDouble(parts[1]);
+                        final double sigma = Double.parseDouble(parts[2]);
+                        return () -> millisToNanos(median * Math.exp(sigma * ThreadLocalRandom.current().nextGaussian()));
+                    default:
+                        break;
+                }
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid latency " + spec, ex);
+            }
+            throw new IllegalArgumentException("Invalid latency " + spec
+                    + ", expected fixed:<ms>, uniform:<minMs>:<maxMs> or lognormal:<medianMs>:<sigma>");
+        }
+
+        static long millisToNanos(double millis) {
+            return (long) (millis * TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    /**
+     * A user or a group of the simulated directory.
+     * <p>Instances are created without running the {@link AMIdentity} constructor, so no AM runtime is needed.</p>
+     */
+    private static final class SimulatedIdentity extends AMIdentity {
+
+        private SimulatedDirectory directory;
+        private String name;
+        private IdType type;
+        private String universalId;
+        private Set<AMIdentity> memberships;
+        private Set<String> membershipDns;
+
+        private SimulatedIdentity() {
+            super(null, null, null, null, null);
+        }
+
+        private static SimulatedIdentity create(SimulatedDirectory directory, String name, IdType type,
+                Set<AMIdentity> memberships) {
+            final SimulatedIdentity identity = OBJENESIS.newInstance(SimulatedIdentity.class);
+            identity.directory = directory;
+            identity.name = name;
+            identity.type = type;
+            identity.universalId = "id=" + name + ",ou=" + type.getName() + ",o=root";
+            identity.memberships = memberships;
+            final Set<String> membershipDns = new LinkedHashSet<>();
+            for (AMIdentity group : memberships) {
+                membershipDns.add("cn=" + group.getName() + ",ou=groups,o=root");
+            }
+            identity.membershipDns = Collections.unmodifiableSet(membershipDns);
+            return identity;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public IdType getType() {
+            return type;
+        }
+
+        @Override
+        public String getRealm() {
+            return REALM;
+        }
+
+        @Override
+        public String getUniversalId() {
+            return universalId;
+        }
+
+        @Override
+        public boolean isExists() throws IdRepoException {
+            directory.call(directory.statusReads);
+            return true;
+        }
+
+        @Override
+        public boolean isActive() throws IdRepoException {
+            directory.call(directory.statusReads);
+            return true;
+        }
+
+        @Override
+        public Set<AMIdentity> getMemberships(IdType type) throws IdRepoException {
+            directory.call(directory.membershipReads);
+            return IdType.GROUP.equals(type) ? memberships : Collections.emptySet();
+        }
+
+        /**
+         * Serves the batched reads: {@code inetUserStatus} is {@code Active}, any other attribute lists the
+         * DNs of the groups of the user.
+         */
+        @Override
+        public Map getAttributes(Set attributeNames) throws IdRepoException {
+            directory.call(directory.attributeReads);
+            final Map<String, Set<String>> attributes = new HashMap<>();
+            for (Object attributeName : attributeNames) {
+                attributes.put(String.valueOf(attributeName), "inetUserStatus".equalsIgnoreCase(String.valueOf(attributeName))
+                        ? Collections.singleton("Active")
+                        : membershipDns);
+            }
+            return attributes;
+        }
+    }
+}
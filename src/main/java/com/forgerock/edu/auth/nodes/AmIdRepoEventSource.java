@@ -0,0 +1,25 @@
+package com.forgerock.edu.auth.nodes;
+
+import com.iplanet.sso.SSOException;
+import com.iplanet.sso.SSOToken;
+import com.sun.identity.idm.AMIdentityRepository;
+import com.sun.identity.idm.IdEventListener;
+import com.sun.identity.idm.IdRepoException;
+import com.sun.identity.security.AdminTokenAction;
+
+import java.security.AccessController;
+
+/**
+ * The change notifications of the AM identity repositories, as delivered to
+ * {@link AMIdentityRepository#addEventListener(IdEventListener)}.
+ */
+final class AmIdRepoEventSource implements IdRepoEventSource {
+
+    @Override
+    public Runnable register(String realm, IdEventListener listener) throws IdRepoException, SSOException {
+        final SSOToken adminToken = AccessController.doPrivileged(AdminTokenAction.getInstance());
+        final AMIdentityRepository identityRepository = new AMIdentityRepository(realm, adminToken);
+        final int listenerId = identityRepository.addEventListener(listener);
+        return () -> identityRepository.removeEventListener(listenerId);
+    }
+}
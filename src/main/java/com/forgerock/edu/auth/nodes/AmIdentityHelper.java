@@ -3,16 +3,539 @@ package com.forgerock.edu.auth.nodes;
 import com.iplanet.sso.SSOException;
 import com.iplanet.sso.SSOToken;
 import com.sun.identity.idm.*;
-import com.sun.identity.security.AdminTokenAction;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.identity.shared.debug.Debug;
+import com.sun.identity.sm.DNMapper;
 
-import java.security.AccessController;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
+/**
+ * Identity repository queries used by the {@link SelectRoleNode} and its config validator.
+ * <p>This class is a singleton, so the caches it holds are shared by every node instance
+ * and by the validator.</p>
+ */
+@Singleton
 public class AmIdentityHelper {
 
+    /**
+     * How long the group names of a realm are cached, in seconds.
+     */
+    static final String GROUP_CATALOG_TTL_PROPERTY = "com.forgerock.edu.selectrole.groupCatalog.ttlSeconds";
+    /**
+     * The maximum number of realms whose group names are cached.
+     */
+    static final String GROUP_CATALOG_MAX_REALMS_PROPERTY = "com.forgerock.edu.selectrole.groupCatalog.maxRealms";
+    /**
+     * How long the group nesting of a realm is used before it is rebuilt in the background, in seconds. Zero, the
+     * default, never rebuilds it: the change notifications keep it up to date group by group. Only set it when
+     * the notifications are not delivered.
+     */
+    static final String GROUP_GRAPH_TTL_PROPERTY = "com.forgerock.edu.selectrole.groupGraph.ttlSeconds";
+    /**
+     * The maximum number of groups returned by a group search, zero for the limit of the repository.
+     */
+    static final String GROUP_SEARCH_MAX_RESULTS_PROPERTY = "com.forgerock.edu.selectrole.groupSearch.maxResults";
+    /**
+     * How long a group search may take on the repository side, in seconds, zero for the limit of the repository.
+     */
+    static final String GROUP_SEARCH_TIME_LIMIT_PROPERTY = "com.forgerock.edu.selectrole.groupSearch.timeLimitSeconds";
+    /**
+     * How long the admin token is used without checking its validity, in milliseconds.
+     */
+    static final String ADMIN_TOKEN_CHECK_INTERVAL_PROPERTY = "com.forgerock.edu.selectrole.adminToken.checkIntervalMillis";
+    /**
+     * How long a group found by {@link #findNonExistingGroupNames(String, Set)} is considered to exist, in seconds.
+     */
+    static final String VERIFIED_GROUP_TTL_PROPERTY = "com.forgerock.edu.selectrole.verifiedGroup.ttlSeconds";
+    /**
+     * The maximum number of groups found by {@link #findNonExistingGroupNames(String, Set)} that are remembered.
+     */
+    static final String VERIFIED_GROUP_MAX_ENTRIES_PROPERTY = "com.forgerock.edu.selectrole.verifiedGroup.maxEntries";
+    /**
+     * The user attribute listing the DNs of the static groups of the user, such as {@code memberOf}. When set, the
+     * status and the memberships of a user are read together, in a single repository call. Not set by default.
+     * The attribute must list the same groups as {@code AMIdentity.getMemberships(IdType.GROUP)}: the virtual
+     * {@code isMemberOf} attribute of DS also lists nested and dynamic groups, which would become selectable roles.
+     */
+    static final String MEMBERSHIP_ATTRIBUTE_PROPERTY = "com.forgerock.edu.selectrole.batchedRead.membershipAttribute";
+    /**
+     * The user attribute holding the status of the user for the batched read, {@code inetUserStatus} by default.
+     */
+    static final String STATUS_ATTRIBUTE_PROPERTY = "com.forgerock.edu.selectrole.batchedRead.statusAttribute";
+    /**
+     * The value of the status attribute of active users for the batched read, {@code Active} by default.
+     */
+    static final String ACTIVE_STATUS_PROPERTY = "com.forgerock.edu.selectrole.batchedRead.activeValue";
+    /**
+     * How long the memberships preloaded by the warmup are kept for the membership caches created afterwards,
+     * in seconds. Each cache still expires them by its own TTL, counted from the time of the lookup.
+     */
+    static final String PRELOADED_MEMBERSHIP_TTL_PROPERTY = "com.forgerock.edu.selectrole.warmup.membershipTtlSeconds";
+    /**
+     * The maximum number of users whose preloaded memberships are kept for the membership caches created afterwards.
+     */
+    static final String PRELOADED_MEMBERSHIP_MAX_USERS_PROPERTY = "com.forgerock.edu.selectrole.warmup.maxUsers";
+    /**
+     * How long the last selected role of a user is remembered by the local store, in seconds.
+     */
+    static final String LAST_SELECTED_ROLE_TTL_PROPERTY = "com.forgerock.edu.selectrole.lastSelectedRole.ttlSeconds";
+    /**
+     * The maximum number of users whose last selected role is remembered by the local store.
+     */
+    static final String LAST_SELECTED_ROLE_MAX_USERS_PROPERTY = "com.forgerock.edu.selectrole.lastSelectedRole.maxUsers";
+    /**
+     * The number of consecutive failed or timed out deadline-bounded calls opening the circuit breaker.
+     */
+    static final String CIRCUIT_BREAKER_FAILURES_PROPERTY = "com.forgerock.edu.selectrole.circuitBreaker.failureThreshold";
+    /**
+     * How long the open circuit breaker rejects the deadline-bounded calls, in seconds.
+     */
+    static final String CIRCUIT_BREAKER_OPEN_SECONDS_PROPERTY = "com.forgerock.edu.selectrole.circuitBreaker.openSeconds";
+    /**
+     * The number of threads running the deadline-bounded calls.
+     */
+    static final String DEADLINE_THREADS_PROPERTY = "com.forgerock.edu.selectrole.deadline.threads";
+    /**
+     * The number of group names of a realm encoded by its {@link RoleDictionary}, 0 stores the cached roles as
+     * plain sets. Only group memberships are encoded, so the dictionary is bounded by the groups of the realm.
+     */
+    static final String ROLE_DICTIONARY_MAX_ROLES_PROPERTY = "com.forgerock.edu.selectrole.roleDictionary.maxRoles";
+    /**
+     * The number of threads running the asynchronous calls, which bounds the concurrent repository calls.
+     */
+    static final String ASYNC_THREADS_PROPERTY = "com.forgerock.edu.selectrole.async.threads";
+    /**
+     * The number of asynchronous calls waiting for a thread, beyond which the calls are rejected.
+     */
+    static final String ASYNC_QUEUE_CAPACITY_PROPERTY = "com.forgerock.edu.selectrole.async.queueCapacity";
+    /**
+     * Runs the asynchronous calls on virtual threads when the JVM provides them, {@code false} by default.
+     */
+    static final String ASYNC_VIRTUAL_THREADS_PROPERTY = "com.forgerock.edu.selectrole.async.virtualThreads";
+
+    private final Clock clock;
+    private final Executor refreshExecutor;
+    private final RoleSelectionMetrics metrics;
+    private final ExpiringCache<String, Set<String>> groupNamesByRealm;
+    private final ConcurrentMap<String, Set<String>> partialGroupNamesByRealm = new ConcurrentHashMap<>();
+    private final ExpiringCache<String, GroupGraph> groupGraphByRealm;
+    private final ConcurrentMap<String, CompletableFuture<GroupGraph>> groupGraphBuilds = new ConcurrentHashMap<>();
+    private final ExpiringCache<String, String> lastSelectedRoles;
+    private final ExpiringCache<GroupKey, Boolean> verifiedGroups;
+    private final RealmRepositories realmRepositories;
+    private final ConcurrentMap<MembershipCacheSettings, ExpiringCache<MembershipKey, Set<String>>> membershipCaches =
+            new ConcurrentHashMap<>();
+    private final SingleFlight<MembershipKey, Set<AMIdentity>> membershipLookups = new SingleFlight<>();
+    private final SingleFlight<MembershipKey, Set<String>> batchedMembershipLookups = new SingleFlight<>();
+    private final String membershipAttribute = System.getProperty(MEMBERSHIP_ATTRIBUTE_PROPERTY, "");
+    private final String statusAttribute = System.getProperty(STATUS_ATTRIBUTE_PROPERTY, "inetUserStatus");
+    private final String activeStatus = System.getProperty(ACTIVE_STATUS_PROPERTY, "Active");
+    private final int groupSearchMaxResults = Integer.getInteger(GROUP_SEARCH_MAX_RESULTS_PROPERTY, 0);
+    private final int groupSearchTimeLimitSeconds = Integer.getInteger(GROUP_SEARCH_TIME_LIMIT_PROPERTY, 0);
+    private final ExpiringCache<MembershipKey, Set<String>> preloadedMemberships;
+    private final ConcurrentMap<String, RoleDictionary> roleDictionaries = new ConcurrentHashMap<>();
+    private final int roleDictionaryMaxRoles = Integer.getInteger(ROLE_DICTIONARY_MAX_ROLES_PROPERTY, 100000);
+    private final CircuitBreaker circuitBreaker;
+    private final ExecutorService deadlineExecutor;
+    private final AsyncIdRepoExecutor asyncExecutor;
+    private volatile IdRepoChangeWatcher changeWatcher;
+    private static final Debug DEBUG = Debug.getInstance("SelectRoleNode");
+    private static final Duration GROUP_GRAPH_NEVER_REBUILT = Duration.ofDays(365 * 100);
+    /**
+     * The message of a missing and of an inactive user alike, so callers cannot tell one from the other.
+     */
+    private static final String INVALID_USER = "User either does not exist or is not active.";
+
+    public AmIdentityHelper() {
+        this(RoleSelectionMetrics.noop());
+    }
+
+    @Inject
+    public AmIdentityHelper(RoleSelectionMetrics metrics) {
+        this(Clock.systemUTC(), Executors.newFixedThreadPool(2, new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("select-role-cache-refresh-%d")
+                .build()), metrics);
+    }
+
+    AmIdentityHelper(Clock clock, Executor refreshExecutor) {
+        this(clock, refreshExecutor, RoleSelectionMetrics.noop());
+    }
+
+    AmIdentityHelper(Clock clock, Executor refreshExecutor, RoleSelectionMetrics metrics) {
+        this.clock = clock;
+        this.refreshExecutor = refreshExecutor;
+        this.metrics = metrics;
+        this.groupNamesByRealm = new ExpiringCache<>(
+                Duration.ofSeconds(Long.getLong(GROUP_CATALOG_TTL_PROPERTY, 300)),
+                Integer.getInteger(GROUP_CATALOG_MAX_REALMS_PROPERTY, 100),
+                clock);
+        // The stale window never ends, so an outdated graph is served while it is rebuilt, never waited for
+        final long groupGraphTtlSeconds = Long.getLong(GROUP_GRAPH_TTL_PROPERTY, 0);
+        this.groupGraphByRealm = new ExpiringCache<>(
+                groupGraphTtlSeconds > 0 ? Duration.ofSeconds(groupGraphTtlSeconds) : GROUP_GRAPH_NEVER_REBUILT,
+                GROUP_GRAPH_NEVER_REBUILT,
+                Integer.getInteger(GROUP_CATALOG_MAX_REALMS_PROPERTY, 100), clock, refreshExecutor);
+        this.preloadedMemberships = new ExpiringCache<>(
+                Duration.ofSeconds(Long.getLong(PRELOADED_MEMBERSHIP_TTL_PROPERTY, 300)),
+                Integer.getInteger(PRELOADED_MEMBERSHIP_MAX_USERS_PROPERTY, 10000),
+                clock);
+        this.lastSelectedRoles = new ExpiringCache<>(
+                Duration.ofSeconds(Long.getLong(LAST_SELECTED_ROLE_TTL_PROPERTY, TimeUnit.DAYS.toSeconds(30))),
+                Integer.getInteger(LAST_SELECTED_ROLE_MAX_USERS_PROPERTY, 100000),
+                clock);
+        this.verifiedGroups = new ExpiringCache<>(
+                Duration.ofSeconds(Long.getLong(VERIFIED_GROUP_TTL_PROPERTY, 60)),
+                Integer.getInteger(VERIFIED_GROUP_MAX_ENTRIES_PROPERTY, 10000),
+                clock);
+        this.realmRepositories = new RealmRepositories(clock,
+                Duration.ofMillis(Long.getLong(ADMIN_TOKEN_CHECK_INTERVAL_PROPERTY, 1000)));
+        this.circuitBreaker = new CircuitBreaker(
+                Integer.getInteger(CIRCUIT_BREAKER_FAILURES_PROPERTY, 5),
+                Duration.ofSeconds(Long.getLong(CIRCUIT_BREAKER_OPEN_SECONDS_PROPERTY, 30)),
+                clock);
+        final int deadlineThreads = Integer.getInteger(DEADLINE_THREADS_PROPERTY, 16);
+        this.deadlineExecutor = new ThreadPoolExecutor(deadlineThreads, deadlineThreads,
+                60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(deadlineThreads * 4),
+                new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("select-role-idrepo-%d")
+                        .build());
+        ((ThreadPoolExecutor) deadlineExecutor).allowCoreThreadTimeOut(true);
+        final int asyncThreads = Integer.getInteger(ASYNC_THREADS_PROPERTY, 16);
+        this.asyncExecutor = new AsyncIdRepoExecutor(asyncThreads,
+                Integer.getInteger(ASYNC_QUEUE_CAPACITY_PROPERTY, asyncThreads * 16),
+                Boolean.getBoolean(ASYNC_VIRTUAL_THREADS_PROPERTY));
+    }
+
+    /**
+     * Runs an identity repository call on a bounded thread pool, and waits for it at most the given time.
+     * <p>Timed out calls and IdRepo errors are counted by a circuit breaker shared by every caller. While
+     * the breaker is open the calls are rejected immediately, so a slow directory does not hold the
+     * authentication threads. A call that timed out is interrupted, but it may keep a pool thread until
+     * the directory answers; once the pool and its queue are full the calls are rejected as well.</p>
+     *
+     * @param timeout how long the caller waits for the result.
+     * @param call the identity repository call.
+     * @param <V> the type of the result.
+     * @return the result of the call.
+     * @throws IdRepoUnavailableException If the call timed out, or was rejected by the breaker or the full pool.
+     * @throws IdRepoException If the call failed with an IdRepo error.
+     * @throws SSOException If the call failed because of an invalid SSO token.
+     */
+    public <V> V callWithDeadline(Duration timeout, IdRepoCall<V> call) throws IdRepoException, SSOException {
+        if (!circuitBreaker.tryAcquire()) {
+            throw new IdRepoUnavailableException("Identity repository calls are suspended after repeated failures");
+        }
+        final Future<V> future;
+        try {
+            future = deadlineExecutor.submit(call::call);
+        } catch (RejectedExecutionException ex) {
+            circuitBreaker.onFailure();
+            throw new IdRepoUnavailableException("Too many identity repository calls are in progress");
+        }
+        try {
+            final V result = future.get(timeout.toNanos(), TimeUnit.NANOSECONDS);
+            circuitBreaker.onSuccess();
+            return result;
+        } catch (TimeoutException ex) {
+            future.cancel(true);
+            circuitBreaker.onFailure();
+            throw new IdRepoUnavailableException("Identity repository call timed out after " + timeout.toMillis() + " ms");
+        } catch (InterruptedException ex) {
+            future.cancel(true);
+            circuitBreaker.onAbandoned();
+            Thread.currentThread().interrupt();
+            throw new IdRepoUnavailableException("Interrupted while waiting for the identity repository");
+        } catch (ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof IdRepoException) {
+                circuitBreaker.onFailure();
+                throw (IdRepoException) cause;
+            }
+            circuitBreaker.onSuccess();
+            if (cause instanceof SSOException) {
+                throw (SSOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private <V> V withDeadline(Duration timeout, IdRepoCall<V> call) throws IdRepoException, SSOException {
+        return timeout.isZero() ? call.call() : callWithDeadline(timeout, call);
+    }
+
+    /**
+     * Waits for the result of an asynchronous call at most the given time.
+     *
+     * @param future the future returned by one of the asynchronous methods.
+     * @param timeout how long the caller waits for the result, {@link Duration#ZERO} for no limit.
+     * @param <V> the type of the result.
+     * @return the result of the call.
+     * @throws IdRepoUnavailableException If the call timed out, or was rejected by the breaker or the full executor.
+     * @throws IdRepoException If the call failed with an IdRepo error.
+     * @throws SSOException If the call failed because of an invalid SSO token.
+     */
+    public <V> V await(CompletableFuture<V> future, Duration timeout) throws IdRepoException, SSOException {
+        try {
+            return timeout.isZero() ? future.get() : future.get(timeout.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException ex) {
+            future.cancel(false);
+            throw new IdRepoUnavailableException("Identity repository call timed out after " + timeout.toMillis() + " ms");
+        } catch (InterruptedException ex) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new IdRepoUnavailableException("Interrupted while waiting for the identity repository");
+        } catch (ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof TimeoutException) {
+                throw new IdRepoUnavailableException("Identity repository call timed out after " + timeout.toMillis() + " ms");
+            } else if (cause instanceof IdRepoException) {
+                throw (IdRepoException) cause;
+            } else if (cause instanceof SSOException) {
+                throw (SSOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Gets the AMIdentity of a user without blocking the caller, see {@link #getIdentity(String, String, String)}.
+     *
+     * @param username username of the user to get.
+     * @param realm realm the user belongs to.
+     * @param universalId the universal id of the user resolved by a previous node, or {@code null}.
+     * @return the future AMIdentity of the user, failed with an {@link IdRepoUnavailableException} if the call
+     * was rejected by the full executor.
+     */
+    public CompletableFuture<AMIdentity> getIdentityAsync(String username, String realm, String universalId) {
+        return submitAsync(Duration.ZERO, () -> getIdentity(username, realm, universalId));
+    }
+
+    /**
+     * Retrieves the names of the assigned groups of the given user without blocking the caller, see
+     * {@link #findAllAssignedGroupNamesOfUser(AMIdentity, MembershipCacheSettings)}.
+     * <p>The memberships held by the cache are returned in an already completed future, on the calling thread,
+     * only the repository lookups are run on the asynchronous executor.</p>
+     *
+     * @param userIdentity AMIdentity instance representing the user, whose memberships should be returned.
+     * @param cacheSettings the membership cache to use, {@link MembershipCacheSettings#disabled()} bypasses the cache.
+     * @return the future group names that the given user is member of, failed with the exceptions of
+     * {@link #findAllAssignedGroupNamesOfUser(AMIdentity, MembershipCacheSettings)}, or with an
+     * {@link IdRepoUnavailableException} if the call was rejected by the full executor.
+     */
+    public CompletableFuture<Set<String>> findAllAssignedGroupNamesOfUserAsync(AMIdentity userIdentity,
+            MembershipCacheSettings cacheSettings) {
+        final IdRepoCall<Set<String>> lookup = () -> findAllAssignedGroupNamesOfUser(userIdentity, cacheSettings);
+        if (cacheSettings.isEnabled() && userIdentity != null
+                && membershipCache(cacheSettings).containsServable(MembershipKey.of(userIdentity))) {
+            return completedWith(lookup);
+        }
+        return submitAsync(Duration.ZERO, lookup);
+    }
+
+    /**
+     * Retrieves all group names of the given realm without blocking the caller, see
+     * {@link #findAllGroupNamesInRealm(String)}. The cached names are returned in an already completed future.
+     *
+     * @param realm the realm whose groups are returned.
+     * @return the future group names of the realm, failed with an {@link IdRepoUnavailableException} if the call
+     * was rejected by the full executor.
+     */
+    public CompletableFuture<Set<String>> findAllGroupNamesInRealmAsync(String realm) {
+        return findAllGroupNamesInRealmAsync(realm, Duration.ZERO);
+    }
+
+    /**
+     * Retrieves all group names of the given realm without blocking the caller, see
+     * {@link #findAllGroupNamesInRealm(String)}. The cached names are returned in an already completed future.
+     * With a timeout, the search is counted by the circuit breaker, and its future fails once the time elapsed.
+     *
+     * @param realm the realm whose groups are returned.
+     * @param timeout the deadline of the search, {@link Duration#ZERO} for no limit.
+     * @return the future group names of the realm, failed with an {@link IdRepoUnavailableException} if the call
+     * was rejected by the circuit breaker or the full executor.
+     */
+    public CompletableFuture<Set<String>> findAllGroupNamesInRealmAsync(String realm, Duration timeout) {
+        final IdRepoCall<Set<String>> lookup = () -> findAllGroupNamesInRealm(realm);
+        if (groupNamesByRealm.containsServable(realm)) {
+            return completedWith(lookup);
+        }
+        return submitAsync(timeout, lookup);
+    }
+
+    /**
+     * Resolves the selectable roles of many users of a realm, for offline jobs such as access reviews or
+     * migration checks.
+     * <p>The users are resolved on the asynchronous executor, at most {@code parallelism} at a time: the identity
+     * and the memberships of a user are looked up one after the other, while the lookups of the other users are
+     * in progress. The memberships are read through the membership cache described by the given settings, so
+     * the cached users are not looked up again, and the looked up users are cached for the next logins. The
+     * roles are matched like {@link SelectRoleNode} does without nested group resolution: against the candidate
+     * roles, or against every group of the realm when no candidate roles are given.</p>
+     * <p>A user that cannot be resolved does not stop the others, its failure is returned instead of its
+     * roles. If the calling thread is interrupted, the users not started yet are not resolved. A parallelism
+     * above the threads and queue capacity of the executor, see {@value #ASYNC_THREADS_PROPERTY}, gets the
+     * excess lookups rejected as {@link IdRepoUnavailableException}s.</p>
+     *
+     * @param realm the realm of the users.
+     * @param usernames the names of the users, duplicates are resolved once.
+     * @param candidateRoles the candidate roles, empty to select from every group of the realm.
+     * @param caseInsensitiveRoleMatching whether group names should match candidate roles regardless of their case.
+     * @param cacheSettings the membership cache to use, {@link MembershipCacheSettings#disabled()} bypasses the cache.
+     * @param parallelism the maximum number of users resolved at the same time.
+     * @return the resolution of each user, in the order of the given names.
+     * @throws IllegalArgumentException if the parallelism is less than 1.
+     * @throws IdRepoException If the groups of the realm could not be searched
+     * @throws SSOException If the admin's single sign on token is invalid.
+     */
+    public Map<String, UserRoleResolution> prefetchSelectableRoles(String realm, Collection<String> usernames,
+            Collection<String> candidateRoles, boolean caseInsensitiveRoleMatching,
+            MembershipCacheSettings cacheSettings, int parallelism) throws IdRepoException, SSOException {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism should be at least 1");
+        }
+        final CandidateRoleMatcher matcher = new CandidateRoleMatcher(
+                candidateRoles.isEmpty() ? findAllGroupNamesInRealm(realm) : candidateRoles,
+                caseInsensitiveRoleMatching);
+        final Semaphore permits = new Semaphore(parallelism);
+        final Map<String, CompletableFuture<UserRoleResolution>> resolutions = new LinkedHashMap<>();
+        for (String username : usernames) {
+            if (resolutions.containsKey(username)) {
+                continue;
+            }
+            if (Thread.currentThread().isInterrupted() || !acquire(permits)) {
+                resolutions.put(username, CompletableFuture.completedFuture(UserRoleResolution.failed(username,
+                        new IdRepoUnavailableException("Interrupted before resolving the user"))));
+                continue;
+            }
+            final CompletableFuture<UserRoleResolution> resolution = getIdentityAsync(username, realm, null)
+                    .thenCompose(identity -> findAllAssignedGroupNamesOfUserAsync(identity, cacheSettings))
+                    .handle((groupNames, failure) -> failure == null
+                            ? UserRoleResolution.resolved(username, matcher.selectableRoles(groupNames))
+                            : UserRoleResolution.failed(username, causeOf(failure)));
+            resolution.whenComplete((result, failure) -> permits.release());
+            resolutions.put(username, resolution);
+        }
+        final Map<String, UserRoleResolution> results = new LinkedHashMap<>();
+        resolutions.forEach((username, resolution) -> results.put(username, resolution.join()));
+        return results;
+    }
+
+    private static boolean acquire(Semaphore permits) {
+        try {
+            permits.acquire();
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static Exception causeOf(Throwable failure) {
+        Throwable cause = failure;
+        while (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause instanceof Exception ? (Exception) cause : new IllegalStateException(cause);
+    }
+
+    /**
+     * @return the counters of the executor running the asynchronous calls.
+     */
+    public ExecutorStatistics asyncExecutorStatistics() {
+        return asyncExecutor.statistics();
+    }
+
+    /**
+     * Submits a call to the asynchronous executor. With a timeout, the call is counted by the same circuit breaker
+     * as the deadline-bounded calls, it is not attempted while the breaker is open, and its future fails with a
+     * {@link TimeoutException} once the time elapsed, counted as a failure. Without one, like the synchronous
+     * calls of the nodes without deadline, it neither opens the breaker nor gets rejected by it. The caller
+     * receives a dependent future, completed once the outcome is counted, so cancelling it leaves the outcome of
+     * the call to the breaker.
+     */
+    private <V> CompletableFuture<V> submitAsync(Duration timeout, IdRepoCall<V> call) {
+        if (timeout.isZero()) {
+            return asyncExecutor.submit(call);
+        }
+        if (!circuitBreaker.tryAcquire()) {
+            return CompletableFuture.failedFuture(
+                    new IdRepoUnavailableException("Identity repository calls are suspended after repeated failures"));
+        }
+        return asyncExecutor.submit(call)
+                .orTimeout(timeout.toNanos(), TimeUnit.NANOSECONDS)
+                .whenComplete((value, failure) -> {
+                    if (failure instanceof IdRepoException || failure instanceof TimeoutException) {
+                        circuitBreaker.onFailure();
+                    } else {
+                        circuitBreaker.onSuccess();
+                    }
+                });
+    }
+
+    private static <V> CompletableFuture<V> completedWith(IdRepoCall<V> call) {
+        try {
+            return CompletableFuture.completedFuture(call.call());
+        } catch (IdRepoException | SSOException | RuntimeException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+    }
+
+    /**
+     * @return the state of the circuit breaker of the deadline-bounded calls.
+     */
+    CircuitBreaker.State circuitBreakerState() {
+        return circuitBreaker.state();
+    }
+
     /**
      * Retrieves all the assigned groups of the given userIdentity object.
+     * <p>Concurrent calls for the same user share a single lookup, the callers joining a lookup in
+     * progress receive its result or its exception.</p>
      *
      * @param userIdentity AMIdentity instance representing the user, whose memberships should be returned.
      * @return Set of AMIdentity instances representing the groups that the given user is member of.
@@ -22,60 +545,809 @@ public class AmIdentityHelper {
      */
     // DONE Ch2L2Ex2 Task2: Observe the usage the AMIdentity class
     public Set<AMIdentity> findAllAssignedGroupsOfUser(AMIdentity userIdentity) throws IllegalArgumentException, IdRepoException, SSOException {
-        if (userIdentity == null
-                || userIdentity.getType() != IdType.USER
-                || !userIdentity.isExists()
-                || !userIdentity.isActive()) {
-            throw new IllegalArgumentException("User either does not exist or is not active.");
-        } else {
-            return userIdentity.getMemberships(IdType.GROUP);
+        if (userIdentity == null || userIdentity.getUniversalId() == null) {
+            return lookUpAssignedGroupsOfUser(userIdentity);
+        }
+        return membershipLookups.execute(MembershipKey.of(userIdentity), () -> lookUpAssignedGroupsOfUser(userIdentity));
+    }
+
+    private Set<AMIdentity> lookUpAssignedGroupsOfUser(AMIdentity userIdentity) throws IllegalArgumentException, IdRepoException, SSOException {
+        final long start = metrics.start();
+        try {
+            checkActiveUser(userIdentity);
+            return ImmutableSet.copyOf(userIdentity.getMemberships(IdType.GROUP));
+        } finally {
+            metrics.stop(RoleSelectionMetrics.Phase.MEMBERSHIP_LOOKUP, start);
         }
     }
 
+    /**
+     * Checks the user exists and is active. An active user exists, so the existence is only read when the
+     * status could not be.
+     */
+    private static void checkActiveUser(AMIdentity userIdentity) throws IllegalArgumentException, IdRepoException, SSOException {
+        if (userIdentity == null || userIdentity.getType() != IdType.USER) {
+            throw new IllegalArgumentException(INVALID_USER);
+        }
+        final boolean active;
+        try {
+            active = userIdentity.isActive();
+        } catch (IdRepoException ex) {
+            if (!userIdentity.isExists()) {
+                throw new IllegalArgumentException(INVALID_USER);
+            }
+            throw ex;
+        }
+        if (!active) {
+            throw new IllegalArgumentException(INVALID_USER);
+        }
+    }
 
+    /**
+     * @return the number of membership lookups that joined a concurrent lookup of the same user.
+     */
+    public long coalescedMembershipLookupCount() {
+        return membershipLookups.joinedCount();
+    }
+
+    /**
+     * @return the number of times the admin token was looked up, initially and after it became invalid.
+     */
+    public long adminTokenLookupCount() {
+        return realmRepositories.adminTokenLookupCount();
+    }
+
+    /**
+     * @return the number of {@link AMIdentityRepository} instances created, one per realm unless the admin
+     * token was replaced or a search of the realm failed.
+     */
+    public long realmRepositoryConstructionCount() {
+        return realmRepositories.repositoryConstructionCount();
+    }
+
+
+    /**
+     * Retrieves the names of the assigned groups of the given user.
+     * <p>When a membership attribute is configured, the status and the group DNs of the user are read in a
+     * single repository call, and the group names are taken from the DNs. Whenever that read cannot tell
+     * whether the user exists and is active, the separate checks of {@link #findAllAssignedGroupsOfUser(AMIdentity)}
+     * are run instead, so invalid users are rejected exactly the same way.</p>
+     *
+     * @param userIdentity AMIdentity instance representing the user, whose memberships should be returned.
+     * @return Set of the group names that the given user is member of.
+     * @throws IllegalArgumentException if the passed AMIdentity instance is {@code null}, it is not a USER identity, it does not exist or it is inactive.
+     * @throws IdRepoException If an error occurs in the IdRepo during querying the memberships of the given identity
+     * @throws SSOException If the user's SSO token is invalid.
+     */
     public Set<String> findAllAssignedGroupNamesOfUser(AMIdentity userIdentity) throws IllegalArgumentException, IdRepoException, SSOException {
+        if (!membershipAttribute.isEmpty() && userIdentity != null && userIdentity.getUniversalId() != null) {
+            final Set<String> groupNames = batchedMembershipLookups.execute(MembershipKey.of(userIdentity),
+                    () -> readAssignedGroupNamesOfUser(userIdentity));
+            if (groupNames != null) {
+                return groupNames;
+            }
+        }
         return findAllAssignedGroupsOfUser(userIdentity)
                 .stream()
                 .map(AMIdentity::getName)
                 .collect(Collectors.toSet());
     }
 
+    /**
+     * Reads the status and the group DNs of the user in one call.
+     *
+     * @return the group names, or {@code null} if the read could not tell whether the user exists and is active.
+     */
+    private Set<String> readAssignedGroupNamesOfUser(AMIdentity userIdentity) throws IllegalArgumentException, SSOException {
+        if (userIdentity.getType() != IdType.USER) {
+            throw new IllegalArgumentException(INVALID_USER);
+        }
+        final long start = metrics.start();
+        try {
+            final Map<?, ?> attributes = userIdentity.getAttributes(ImmutableSet.of(statusAttribute, membershipAttribute));
+            final Set<?> status = attributes == null ? null : valuesOf(attributes, statusAttribute);
+            if (status == null || status.isEmpty()) {
+                return null;
+            }
+            if (status.stream().noneMatch(value -> activeStatus.equalsIgnoreCase(String.valueOf(value)))) {
+                throw new IllegalArgumentException(INVALID_USER);
+            }
+            final Set<?> groupDns = valuesOf(attributes, membershipAttribute);
+            final ImmutableSet.Builder<String> groupNames = ImmutableSet.builder();
+            if (groupDns != null) {
+                for (Object groupDn : groupDns) {
+                    final String groupName = nameOf(String.valueOf(groupDn));
+                    if (groupName == null) {
+                        return null;
+                    }
+                    groupNames.add(groupName);
+                }
+            }
+            return groupNames.build();
+        } catch (IdRepoException ex) {
+            return null;
+        } finally {
+            metrics.stop(RoleSelectionMetrics.Phase.MEMBERSHIP_LOOKUP, start);
+        }
+    }
+
+    private static Set<?> valuesOf(Map<?, ?> attributes, String attributeName) {
+        for (Map.Entry<?, ?> attribute : attributes.entrySet()) {
+            if (attributeName.equalsIgnoreCase(String.valueOf(attribute.getKey()))) {
+                return (Set<?>) attribute.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the value of the first RDN of the given DN, or {@code null} if it is not a valid DN.
+     */
+    static String nameOf(String dn) {
+        try {
+            final LdapName name = new LdapName(dn);
+            return name.isEmpty() ? null : name.getRdn(name.size() - 1).getValue().toString();
+        } catch (InvalidNameException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Retrieves the names of the assigned groups of the given user, through the membership cache described
+     * by the given settings.
+     * <p>Cached memberships are keyed by realm and universal id. A hit skips the existence and
+     * active checks as well, so a change of the user's memberships or status is picked up within
+     * the TTL plus the stale window of the settings.</p>
+     *
+     * @param userIdentity AMIdentity instance representing the user, whose memberships should be returned.
+     * @param cacheSettings the membership cache to use, {@link MembershipCacheSettings#disabled()} bypasses the cache.
+     * @return Set of the group names that the given user is member of.
+     * @throws IllegalArgumentException if the passed AMIdentity instance is {@code null}, it is not a USER identity, it does not exist or it is inactive.
+     * @throws IdRepoException If an error occurs in the IdRepo during querying the memberships of the given identity
+     * @throws SSOException If the user's SSO token is invalid.
+     */
+    public Set<String> findAllAssignedGroupNamesOfUser(AMIdentity userIdentity, MembershipCacheSettings cacheSettings)
+            throws IllegalArgumentException, IdRepoException, SSOException {
+        return findAllAssignedGroupNamesOfUser(userIdentity, cacheSettings, Duration.ZERO);
+    }
+
+    /**
+     * Retrieves the names of the assigned groups of the given user, through the membership cache described
+     * by the given settings, bounding the repository lookup by the given timeout.
+     * <p>Only the lookups on a cache miss are run through {@link #callWithDeadline(Duration, IdRepoCall)},
+     * cache hits are served on the calling thread.</p>
+     *
+     * @param userIdentity AMIdentity instance representing the user, whose memberships should be returned.
+     * @param cacheSettings the membership cache to use, {@link MembershipCacheSettings#disabled()} bypasses the cache.
+     * @param timeout how long the repository lookup may take, {@link Duration#ZERO} for no limit.
+     * @return Set of the group names that the given user is member of.
+     * @throws IllegalArgumentException if the passed AMIdentity instance is {@code null}, it is not a USER identity, it does not exist or it is inactive.
+     * @throws IdRepoUnavailableException If the lookup timed out or the repository is considered unavailable.
+     * @throws IdRepoException If an error occurs in the IdRepo during querying the memberships of the given identity
+     * @throws SSOException If the user's SSO token is invalid.
+     */
+    public Set<String> findAllAssignedGroupNamesOfUser(AMIdentity userIdentity, MembershipCacheSettings cacheSettings,
+            Duration timeout) throws IllegalArgumentException, IdRepoException, SSOException {
+        final IdRepoCall<Set<String>> lookup =
+                () -> withDeadline(timeout, () -> ImmutableSet.copyOf(findAllAssignedGroupNamesOfUser(userIdentity)));
+        if (!cacheSettings.isEnabled() || userIdentity == null) {
+            return lookup.call();
+        }
+        return membershipCache(cacheSettings).get(MembershipKey.of(userIdentity), compacted(userIdentity, lookup));
+    }
+
+    /**
+     * Retrieves which of the given groups the given user is member of, checking the membership of each
+     * group in the repository instead of fetching every membership of the user.
+     * <p>This is cheaper than {@link #findAllAssignedGroupNamesOfUser(AMIdentity, MembershipCacheSettings)}
+     * when the user is member of many more groups than the few that are asked for. The results are cached
+     * per user and group set, in the same cache as the full memberships.</p>
+     *
+     * @param userIdentity AMIdentity instance representing the user, whose memberships should be checked.
+     * @param groupNames the names of the groups to check, in the realm of the user.
+     * @param cacheSettings the membership cache to use, {@link MembershipCacheSettings#disabled()} bypasses the cache.
+     * @return immutable set of the given group names that the user is member of.
+     * @throws IllegalArgumentException if the passed AMIdentity instance is {@code null}, it is not a USER identity, it does not exist or it is inactive.
+     * @throws IdRepoException If an error occurs in the IdRepo during checking the memberships of the given identity
+     * @throws SSOException If the admin's or the user's SSO token is invalid.
+     */
+    public Set<String> findAssignedGroupNamesOfUserAmong(AMIdentity userIdentity, Set<String> groupNames,
+            MembershipCacheSettings cacheSettings) throws IllegalArgumentException, IdRepoException, SSOException {
+        return findAssignedGroupNamesOfUserAmong(userIdentity, groupNames, cacheSettings, Duration.ZERO);
+    }
+
+    /**
+     * Retrieves which of the given groups the given user is member of, bounding the repository checks by
+     * the given timeout. Only the checks on a cache miss are run through
+     * {@link #callWithDeadline(Duration, IdRepoCall)}.
+     *
+     * @param userIdentity AMIdentity instance representing the user, whose memberships should be checked.
+     * @param groupNames the names of the groups to check, in the realm of the user.
+     * @param cacheSettings the membership cache to use, {@link MembershipCacheSettings#disabled()} bypasses the cache.
+     * @param timeout how long the repository checks may take, {@link Duration#ZERO} for no limit.
+     * @return immutable set of the given group names that the user is member of.
+     * @throws IllegalArgumentException if the passed AMIdentity instance is {@code null}, it is not a USER identity, it does not exist or it is inactive.
+     * @throws IdRepoUnavailableException If the checks timed out or the repository is considered unavailable.
+     * @throws IdRepoException If an error occurs in the IdRepo during checking the memberships of the given identity
+     * @throws SSOException If the admin's or the user's SSO token is invalid.
+     */
+    public Set<String> findAssignedGroupNamesOfUserAmong(AMIdentity userIdentity, Set<String> groupNames,
+            MembershipCacheSettings cacheSettings, Duration timeout)
+            throws IllegalArgumentException, IdRepoException, SSOException {
+        final ImmutableSet<String> checkedGroupNames = ImmutableSet.copyOf(groupNames);
+        final IdRepoCall<Set<String>> lookup =
+                () -> withDeadline(timeout, () -> checkMembershipsOfUser(userIdentity, checkedGroupNames));
+        if (!cacheSettings.isEnabled() || userIdentity == null) {
+            return lookup.call();
+        }
+        return membershipCache(cacheSettings).get(MembershipKey.of(userIdentity, checkedGroupNames),
+                compacted(userIdentity, lookup));
+    }
+
+    private Set<String> checkMembershipsOfUser(AMIdentity userIdentity, Set<String> groupNames)
+            throws IllegalArgumentException, IdRepoException, SSOException {
+        final long start = metrics.start();
+        try {
+            checkActiveUser(userIdentity);
+            final SSOToken adminToken = realmRepositories.adminToken();
+            final ImmutableSet.Builder<String> assignedGroupNames = ImmutableSet.builder();
+            for (String groupName : groupNames) {
+                final AMIdentity group =
+                        new AMIdentity(adminToken, groupName, IdType.GROUP, userIdentity.getRealm(), null);
+                if (userIdentity.isMember(group)) {
+                    assignedGroupNames.add(groupName);
+                }
+            }
+            return assignedGroupNames.build();
+        } finally {
+            metrics.stop(RoleSelectionMetrics.Phase.MEMBERSHIP_LOOKUP, start);
+        }
+    }
+
+    /**
+     * Retrieves the role names held by a profile attribute of the given user, such as {@code isMemberOf} or a
+     * custom role attribute, through the membership cache described by the given settings.
+     * <p>The status of the user is read together with the attribute, so the user is checked and its roles are
+     * read in a single repository call; the separate existence and active checks only run when the status is
+     * not readable. Values that are DNs are turned into the value of their first RDN, other values are kept
+     * as they are. The values are cached per user and attribute, in the same cache as the memberships, and
+     * only the reads on a cache miss are run through {@link #callWithDeadline(Duration, IdRepoCall)}.</p>
+     *
+     * @param userIdentity AMIdentity instance representing the user, whose roles should be returned.
+     * @param attributeName the profile attribute holding the roles.
+     * @param cacheSettings the membership cache to use, {@link MembershipCacheSettings#disabled()} bypasses the cache.
+     * @param timeout how long the repository read may take, {@link Duration#ZERO} for no limit.
+     * @return immutable set of the role names of the user.
+     * @throws IllegalArgumentException if the passed AMIdentity instance is {@code null}, it is not a USER identity, it does not exist or it is inactive.
+     * @throws IdRepoUnavailableException If the read timed out or the repository is considered unavailable.
+     * @throws IdRepoException If an error occurs in the IdRepo during reading the attribute of the given identity
+     * @throws SSOException If the user's SSO token is invalid.
+     */
+    public Set<String> findRoleAttributeValuesOfUser(AMIdentity userIdentity, String attributeName,
+            MembershipCacheSettings cacheSettings, Duration timeout)
+            throws IllegalArgumentException, IdRepoException, SSOException {
+        final IdRepoCall<Set<String>> lookup =
+                () -> withDeadline(timeout, () -> readRoleAttributeOfUser(userIdentity, attributeName));
+        if (!cacheSettings.isEnabled() || userIdentity == null) {
+            return lookup.call();
+        }
+        // Attribute values are free text, not interned, so they cannot fill the dictionary of the realm
+        return membershipCache(cacheSettings).get(MembershipKey.ofAttribute(userIdentity, attributeName), lookup);
+    }
+
+    private Set<String> readRoleAttributeOfUser(AMIdentity userIdentity, String attributeName)
+            throws IllegalArgumentException, IdRepoException, SSOException {
+        if (userIdentity == null || userIdentity.getType() != IdType.USER) {
+            throw new IllegalArgumentException(INVALID_USER);
+        }
+        final long start = metrics.start();
+        try {
+            final Map<?, ?> attributes = userIdentity.getAttributes(ImmutableSet.of(statusAttribute, attributeName));
+            final Set<?> status = attributes == null ? null : valuesOf(attributes, statusAttribute);
+            if (status == null || status.isEmpty()) {
+                checkActiveUser(userIdentity);
+            } else if (status.stream().noneMatch(value -> activeStatus.equalsIgnoreCase(String.valueOf(value)))) {
+                throw new IllegalArgumentException(INVALID_USER);
+            }
+            final Set<?> values = attributes == null ? null : valuesOf(attributes, attributeName);
+            if (values == null) {
+                return ImmutableSet.of();
+            }
+            return values.stream()
+                    .map(value -> roleNameOf(String.valueOf(value)))
+                    .collect(ImmutableSet.toImmutableSet());
+        } finally {
+            metrics.stop(RoleSelectionMetrics.Phase.MEMBERSHIP_LOOKUP, start);
+        }
+    }
+
+    private static String roleNameOf(String value) {
+        final String name = value.indexOf('=') > 0 ? nameOf(value) : null;
+        return name != null ? name : value;
+    }
+
+    /**
+     * Returns the group names of the given user last loaded into the membership cache, without querying
+     * the repository, even if the cached memberships have expired.
+     *
+     * @param userIdentity AMIdentity instance representing the user.
+     * @param checkedGroupNames the group names passed to {@link #findAssignedGroupNamesOfUserAmong}, or
+     *                          {@code null} for the memberships loaded by {@link #findAllAssignedGroupNamesOfUser(AMIdentity, MembershipCacheSettings)}.
+     * @param cacheSettings the membership cache to look into.
+     * @return the last cached group names, or empty if none are cached.
+     */
+    public Optional<Set<String>> lastKnownAssignedGroupNamesOfUser(AMIdentity userIdentity, Set<String> checkedGroupNames,
+            MembershipCacheSettings cacheSettings) {
+        if (userIdentity == null) {
+            return Optional.empty();
+        }
+        return lastKnown(MembershipKey.of(userIdentity,
+                checkedGroupNames == null ? null : ImmutableSet.copyOf(checkedGroupNames)), cacheSettings);
+    }
 
     /**
-     * Retrieves all groups in the given realm.
+     * Returns the role names of the given user last loaded into the membership cache by
+     * {@link #findRoleAttributeValuesOfUser}, without querying the repository, even if they have expired.
+     *
+     * @param userIdentity AMIdentity instance representing the user.
+     * @param attributeName the profile attribute holding the roles.
+     * @param cacheSettings the membership cache to look into.
+     * @return the last cached role names, or empty if none are cached.
+     */
+    public Optional<Set<String>> lastKnownRoleAttributeValuesOfUser(AMIdentity userIdentity, String attributeName,
+            MembershipCacheSettings cacheSettings) {
+        if (userIdentity == null) {
+            return Optional.empty();
+        }
+        return lastKnown(MembershipKey.ofAttribute(userIdentity, attributeName), cacheSettings);
+    }
+
+    private Optional<Set<String>> lastKnown(MembershipKey key, MembershipCacheSettings cacheSettings) {
+        if (!cacheSettings.isEnabled()) {
+            return Optional.empty();
+        }
+        final ExpiringCache<MembershipKey, Set<String>> cache = membershipCaches.get(cacheSettings);
+        return cache == null ? Optional.empty() : Optional.ofNullable(cache.getIfPresent(key));
+    }
+
+    /**
+     * @return the combined hit, miss and eviction counters of every membership cache.
+     */
+    public CacheStatistics membershipCacheStatistics() {
+        return membershipCaches.values().stream()
+                .map(ExpiringCache::statistics)
+                .reduce(new CacheStatistics(0, 0, 0, 0, 0), CacheStatistics::plus);
+    }
+
+    /**
+     * Wraps a lookup of group names so its result is stored as a {@link RoleSet} of the user's realm.
+     */
+    private IdRepoCall<Set<String>> compacted(AMIdentity userIdentity, IdRepoCall<Set<String>> lookup) {
+        return () -> compact(userIdentity.getRealm(), lookup.call());
+    }
+
+    /**
+     * Encodes group names with the dictionary of their realm, which every cached set of the realm shares, so a
+     * cached entry holds a bitset or an int array instead of a hash set of strings. The names are returned as
+     * they are when the dictionary is disabled or full. Only the names of groups are passed in, which bounds
+     * the dictionary, as it never forgets a name.
+     */
+    private Set<String> compact(String realm, Set<String> roleNames) {
+        if (roleDictionaryMaxRoles <= 0 || realm == null || roleNames.isEmpty() || roleNames instanceof RoleSet) {
+            return roleNames;
+        }
+        final RoleSet roleSet = roleDictionaries.computeIfAbsent(realm, r -> new RoleDictionary(roleDictionaryMaxRoles))
+                .encode(roleNames);
+        return roleSet != null ? roleSet : roleNames;
+    }
+
+    private ExpiringCache<MembershipKey, Set<String>> membershipCache(MembershipCacheSettings settings) {
+        final ExpiringCache<MembershipKey, Set<String>> cache = membershipCaches.get(settings);
+        return cache != null ? cache : membershipCaches.computeIfAbsent(settings, s -> {
+            final ExpiringCache<MembershipKey, Set<String>> created = new ExpiringCache<>(
+                    s.getTtl(), s.getStaleWindow(), s.getMaxEntries(), clock, refreshExecutor);
+            preloadedMemberships.forEachValid(created::restore);
+            return created;
+        });
+    }
+
+    /**
+     * Looks up the memberships of the given user and stores them in every membership cache, including the
+     * caches created later on by the nodes within {@value #PRELOADED_MEMBERSHIP_TTL_PROPERTY}. The preloaded
+     * memberships expire by the TTL of each cache, counted from the time of the lookup, and are evicted by the
+     * change notifications like the memberships looked up by the nodes.
+     *
+     * @param userIdentity AMIdentity instance representing the user, whose memberships should be preloaded.
+     * @return Set of the group names that the given user is member of.
+     * @throws IllegalArgumentException if the passed AMIdentity instance is {@code null}, it is not a USER identity, it does not exist or it is inactive.
+     * @throws IdRepoException If an error occurs in the IdRepo during querying the memberships of the given identity
+     * @throws SSOException If the user's SSO token is invalid.
+     */
+    public Set<String> preloadMemberships(AMIdentity userIdentity) throws IllegalArgumentException, IdRepoException, SSOException {
+        if (userIdentity == null) {
+            throw new IllegalArgumentException(INVALID_USER);
+        }
+        watchRealm(userIdentity.getRealm());
+        final MembershipKey key = MembershipKey.of(userIdentity);
+        final long loadedAt = clock.millis();
+        preloadedMemberships.invalidate(key);
+        final Set<String> groupNames = preloadedMemberships.get(key, () -> compact(userIdentity.getRealm(),
+                ImmutableSet.copyOf(findAllAssignedGroupNamesOfUser(userIdentity))));
+        // Not kept if a change of the user was notified during the lookup
+        if (preloadedMemberships.getIfPresent(key) == groupNames) {
+            membershipCaches.values().forEach(cache -> cache.put(key, groupNames, loadedAt));
+        }
+        return groupNames;
+    }
+
+    /**
+     * Takes a snapshot of the group names of the realms and of the membership cache entries that have not
+     * expired, with the time each of them was loaded at.
+     *
+     * @return the snapshot, to be written with {@link CacheSnapshot#writeTo(java.nio.file.Path)}.
+     */
+    CacheSnapshot snapshotCaches() {
+        final CacheSnapshot snapshot = new CacheSnapshot(clock.millis());
+        groupNamesByRealm.forEachValid((realm, groupNames, loadedAt) -> {
+            if (isComplete(realm, groupNames)) {
+                snapshot.addCatalog(realm, groupNames, loadedAt);
+            }
+        });
+        membershipCaches.forEach((settings, cache) -> {
+            final CacheSnapshot.MembershipCache cached = snapshot.addMembershipCache(settings.getTtl().toMillis(),
+                    settings.getStaleWindow().toMillis(), settings.getMaxEntries());
+            cache.forEachValid((key, roleNames, loadedAt) -> {
+                if (key.realm != null && key.universalId != null) {
+                    cached.add(key.realm, key.universalId, key.checkedGroupNames, key.attributeName, roleNames, loadedAt);
+                }
+            });
+        });
+        return snapshot;
+    }
+
+    /**
+     * Loads a snapshot taken by {@link #snapshotCaches()}, possibly by an earlier run of the server. Each entry
+     * expires by the time it was originally loaded at, so the expired entries are skipped, and the entries
+     * loaded since the server started are kept. The membership caches are created with the settings they had,
+     * the nodes configured with the same settings use them. The realms of the entries are watched for changes,
+     * so the restored entries are evicted like the loaded ones.
+     *
+     * @param snapshot the snapshot to load.
+     * @return the number of restored catalogs and membership entries.
+     */
+    int restoreCaches(CacheSnapshot snapshot) {
+        int restored = 0;
+        for (CacheSnapshot.Catalog catalog : snapshot.catalogs()) {
+            if (groupNamesByRealm.restore(catalog.realm, catalog.groupNames, catalog.loadedAt)) {
+                watchRealm(catalog.realm);
+                restored++;
+            }
+        }
+        for (CacheSnapshot.MembershipCache cached : snapshot.membershipCaches()) {
+            final MembershipCacheSettings settings;
+            try {
+                settings = MembershipCacheSettings.of(Duration.ofMillis(cached.ttlMillis),
+                        Duration.ofMillis(cached.staleMillis), cached.maxEntries);
+            } catch (IllegalArgumentException ex) {
+                DEBUG.warning("Skipping a membership cache snapshot with invalid settings", ex);
+                continue;
+            }
+            final ExpiringCache<MembershipKey, Set<String>> cache = membershipCache(settings);
+            for (CacheSnapshot.MembershipEntry entry : cached.entries) {
+                final MembershipKey key = new MembershipKey(entry.realm, entry.universalId,
+                        entry.checkedGroupNames == null ? null : ImmutableSet.copyOf(entry.checkedGroupNames),
+                        entry.attributeName);
+                final Set<String> roleNames = entry.attributeName == null
+                        ? compact(entry.realm, entry.roleNames)
+                        : entry.roleNames;
+                if (cache.restore(key, roleNames, entry.loadedAt)) {
+                    watchRealm(entry.realm);
+                    restored++;
+                }
+            }
+        }
+        return restored;
+    }
+
+
+    /**
+     * Retrieves all groups in the given realm, up to the size and time limits of the group search.
      *
      * @throws IdRepoException If there are repository related error conditions
      * @throws SSOException If the admin's single sign on token is invalid.
      */
     public Set<AMIdentity> findAllGroupsInRealm(String realm) throws IdRepoException, SSOException {
-        // DONE Ch2L2Ex2 Task2: Observe the way to obtain an admin SSO Token for privileged operations
-        SSOToken adminToken = (SSOToken) AccessController.doPrivileged(AdminTokenAction.getInstance());
+        return searchGroupsInRealm(realm).getSearchResults();
+    }
 
+    private IdSearchResults searchGroupsInRealm(String realm) throws IdRepoException, SSOException {
+        // DONE Ch2L2Ex2 Task2: Observe the way to obtain an admin SSO Token for privileged operations
         // DONE Ch2L2Ex2 Task2: Observe the creation of AMIdentityRepository instance
         // DONE Ch2L2Ex2 Task2:   the first parameter specifies the ream
         // DONE Ch2L2Ex2 Task2:   the second parameter determines the performer's identity
-        AMIdentityRepository identityRepository
-                = new AMIdentityRepository(realm, adminToken);
+        // Both are kept by realmRepositories and reused until the token or the realm becomes invalid
+        AMIdentityRepository identityRepository = realmRepositories.repository(realm);
 
+        // Only the names of the groups are used, their attributes are not read
         IdSearchControl searchControl = new IdSearchControl();
+        searchControl.setAllReturnAttributes(false);
+        searchControl.setMaxResults(groupSearchMaxResults);
+        searchControl.setTimeOut(groupSearchTimeLimitSeconds);
         // DONE Ch2L2Ex2 Task2: Observe the way to query for all the groups within a specified realm
-        IdSearchResults searchResult = identityRepository.searchIdentities(
-                IdType.GROUP, "*", searchControl);
-        return searchResult.getSearchResults();
+        final long start = metrics.start();
+        try {
+            return identityRepository.searchIdentities(IdType.GROUP, "*", searchControl);
+        } catch (IdRepoException ex) {
+            realmRepositories.invalidate(realm);
+            throw ex;
+        } catch (SSOException ex) {
+            realmRepositories.invalidateAdminToken();
+            throw ex;
+        } finally {
+            metrics.stop(RoleSelectionMetrics.Phase.GROUP_SEARCH, start);
+        }
     }
 
     /**
-     * Retrieves all group names of the given realm
-     * @param realm
-     * @return
-     * @throws IdRepoException
-     * @throws SSOException
+     * Retrieves all group names of the given realm.
+     * <p>The names are cached per realm for a limited time, concurrent lookups of the same realm
+     * share a single group search. A search cut short by its size or time limit is logged, and the
+     * names it returned are cached nevertheless, but not taken as the complete list of the groups of the realm.</p>
+     *
+     * @param realm the realm whose groups are returned.
+     * @return immutable set of the group names in the realm.
+     * @throws IdRepoException If there are repository related error conditions
+     * @throws SSOException If the admin's single sign on token is invalid.
      */
     public Set<String> findAllGroupNamesInRealm(String realm) throws IdRepoException, SSOException {
-        return findAllGroupsInRealm(realm)
-                .stream()
-                .map(group -> group.getName())
-                .collect(Collectors.toSet());
+        watchRealm(realm);
+        return groupNamesByRealm.get(realm, () -> {
+            final IdSearchResults results = searchGroupsInRealm(realm);
+            final ImmutableSet.Builder<String> groupNames = ImmutableSet.builder();
+            final Set<AMIdentity> groups = results.getSearchResults();
+            if (groups != null) {
+                groups.forEach(group -> groupNames.add(group.getName()));
+            }
+            final Set<String> names = groupNames.build();
+            final GroupSearchOutcome outcome = GroupSearchOutcome.of(results);
+            if (outcome != GroupSearchOutcome.COMPLETE) {
+                DEBUG.warning("The group search of realm " + realm + " returned partial results: " + outcome);
+                partialGroupNamesByRealm.put(realm, names);
+            } else {
+                partialGroupNamesByRealm.remove(realm);
+            }
+            return names;
+        });
+    }
+
+    /**
+     * Tells whether the given cached group names of the realm are the result of a complete search.
+     */
+    private boolean isComplete(String realm, Set<String> groupNames) {
+        return partialGroupNamesByRealm.get(realm) != groupNames;
+    }
+
+    /**
+     * Returns which of the given group names are not groups of the given realm, looking up each name that is not
+     * known to exist instead of searching every group of the realm.
+     * <p>The fresh cached group names of the realm answer without any lookup, unless their search was cut short by
+     * its size or time limit. Otherwise, the groups found are
+     * remembered for a short time, so validating a configuration again only looks up the names that were added
+     * since. Group change notifications drop the remembered groups of their realm. Missing groups are never
+     * remembered, a group created meanwhile is found on the next call.</p>
+     *
+     * @param realm the realm of the groups.
+     * @param groupNames the group names to look up.
+     * @return the given group names that are not groups of the realm, in their iteration order.
+     * @throws IdRepoException If there are repository related error conditions
+     * @throws SSOException If the admin's single sign on token is invalid.
+     */
+    public Set<String> findNonExistingGroupNames(String realm, Set<String> groupNames) throws IdRepoException, SSOException {
+        watchRealm(realm);
+        final Set<String> cached = groupNamesByRealm.getIfValid(realm);
+        final Set<String> catalog = cached != null && isComplete(realm, cached) ? cached : null;
+        final Set<String> missing = new LinkedHashSet<>();
+        SSOToken adminToken = null;
+        for (String groupName : groupNames) {
+            if (catalog != null) {
+                if (!catalog.contains(groupName)) {
+                    missing.add(groupName);
+                }
+                continue;
+            }
+            final GroupKey key = new GroupKey(realm, groupName);
+            if (verifiedGroups.getIfValid(key) != null) {
+                continue;
+            }
+            if (adminToken == null) {
+                adminToken = realmRepositories.adminToken();
+            }
+            if (groupExists(adminToken, realm, groupName)) {
+                verifiedGroups.put(key, Boolean.TRUE);
+            } else {
+                missing.add(groupName);
+            }
+        }
+        return missing;
+    }
+
+    private boolean groupExists(SSOToken adminToken, String realm, String groupName) throws IdRepoException, SSOException {
+        final long start = metrics.start();
+        try {
+            return new AMIdentity(adminToken, groupName, IdType.GROUP, realm, null).isExists();
+        } finally {
+            metrics.stop(RoleSelectionMetrics.Phase.GROUP_SEARCH, start);
+        }
+    }
+
+    /**
+     * Adds the groups containing the given groups, directly or through nested groups, to the given group names,
+     * waiting for the nesting of the realm as long as it takes, see
+     * {@link #expandNestedGroupNames(String, Set, int, Duration)}.
+     *
+     * @param realm the realm of the groups.
+     * @param groupNames the names of the groups a user is a direct member of.
+     * @param maxDepth the number of nesting levels followed, at least 1.
+     * @return immutable set of the given groups and the groups containing them.
+     * @throws IdRepoException If there are repository related error conditions while loading the nesting
+     * @throws SSOException If the admin's single sign on token is invalid.
+     */
+    public Set<String> expandNestedGroupNames(String realm, Set<String> groupNames, int maxDepth)
+            throws IdRepoException, SSOException {
+        return expandNestedGroupNames(realm, groupNames, maxDepth, Duration.ZERO);
+    }
+
+    /**
+     * Adds the groups containing the given groups, directly or through nested groups, to the given group names.
+     * <p>The nesting of the groups of the realm is loaded once and kept in memory, and updated group by group
+     * on the change notifications, so the expansion itself does not query the repository. Loading it reads
+     * the members of every group of the realm: it runs on the asynchronous executor, shared by the concurrent
+     * callers, and each caller waits for it at most the given time. A caller that gave up does not stop the
+     * load, the nesting is used by the next callers once it is loaded. With a timeout, the load is counted by
+     * the circuit breaker as a single call, failed if it outlasted the timeout.</p>
+     *
+     * @param realm the realm of the groups.
+     * @param groupNames the names of the groups a user is a direct member of.
+     * @param maxDepth the number of nesting levels followed, at least 1.
+     * @param timeout how long the caller waits for the nesting to be loaded, {@link Duration#ZERO} for no limit.
+     * @return immutable set of the given groups and the groups containing them.
+     * @throws IdRepoUnavailableException If the nesting was not loaded in time, or its load was rejected by the
+     * circuit breaker or the full executor.
+     * @throws IdRepoException If there are repository related error conditions while loading the nesting
+     * @throws SSOException If the admin's single sign on token is invalid.
+     */
+    public Set<String> expandNestedGroupNames(String realm, Set<String> groupNames, int maxDepth, Duration timeout)
+            throws IdRepoException, SSOException {
+        return await(expandNestedGroupNamesAsync(realm, groupNames, maxDepth, timeout), timeout);
+    }
+
+    /**
+     * Adds the groups containing the given groups to the given group names without blocking the caller, see
+     * {@link #expandNestedGroupNames(String, Set, int, Duration)}. When the nesting of the realm is held, the
+     * expansion is returned in an already completed future.
+     *
+     * @param realm the realm of the groups.
+     * @param groupNames the names of the groups a user is a direct member of.
+     * @param maxDepth the number of nesting levels followed, at least 1.
+     * @param timeout the deadline of the load of the nesting, {@link Duration#ZERO} for no limit.
+     * @return the future set of the given groups and the groups containing them, failed with the exceptions of
+     * {@link #expandNestedGroupNames(String, Set, int, Duration)}.
+     */
+    public CompletableFuture<Set<String>> expandNestedGroupNamesAsync(String realm, Set<String> groupNames,
+            int maxDepth, Duration timeout) {
+        return groupGraphAsync(realm, timeout).thenApply(graph -> graph.expand(groupNames, maxDepth));
+    }
+
+    /**
+     * Returns the nesting of the realm, in an already completed future when it is held, or else the future of
+     * the load in progress, starting one if needed. Each caller receives its own future, so cancelling it does
+     * not cancel the load.
+     */
+    private CompletableFuture<GroupGraph> groupGraphAsync(String realm, Duration timeout) {
+        watchRealm(realm);
+        if (groupGraphByRealm.containsServable(realm)) {
+            // A held graph is served at once, an outdated one is rebuilt on the refresh executor
+            return completedWith(() -> groupGraphByRealm.get(realm, () -> loadGroupGraph(realm)));
+        }
+        CompletableFuture<GroupGraph> build = groupGraphBuilds.get(realm);
+        if (build == null) {
+            final CompletableFuture<GroupGraph> started = new CompletableFuture<>();
+            build = groupGraphBuilds.putIfAbsent(realm, started);
+            if (build == null) {
+                build = started;
+                submitAsync(timeout, () -> groupGraphByRealm.get(realm, () -> loadGroupGraph(realm)))
+                        .whenComplete((graph, failure) -> {
+                            groupGraphBuilds.remove(realm, started);
+                            if (failure != null) {
+                                started.completeExceptionally(failure);
+                            } else {
+                                started.complete(graph);
+                            }
+                        });
+            }
+        }
+        return build.copy();
+    }
+
+    private GroupGraph loadGroupGraph(String realm) throws IdRepoException, SSOException {
+        final Map<String, Set<String>> childrenByGroup = new HashMap<>();
+        for (AMIdentity group : findAllGroupsInRealm(realm)) {
+            childrenByGroup.put(group.getName(), childGroupNamesOf(group));
+        }
+        return GroupGraph.of(childrenByGroup);
+    }
+
+    private static Set<String> childGroupNamesOf(AMIdentity group) throws IdRepoException, SSOException {
+        final Set<AMIdentity> children = group.getMembers(IdType.GROUP);
+        return children == null
+                ? ImmutableSet.of()
+                : children.stream().map(AMIdentity::getName).collect(ImmutableSet.toImmutableSet());
+    }
+
+    /**
+     * Updates the cached nesting of the given realm after a change of one of its groups, in the background.
+     * If the nesting of the realm is not cached, a load in progress is only returned to its callers, the next
+     * caller loads it again.
+     *
+     * @param realm the realm of the group.
+     * @param universalId the universal id of the changed group.
+     */
+    public void refreshNestedGroup(String realm, String universalId) {
+        if (groupGraphByRealm.getIfPresent(realm) == null) {
+            // A load in progress may have read the group before its change, it is not kept
+            groupGraphByRealm.invalidate(realm);
+            return;
+        }
+        refreshExecutor.execute(() -> {
+            try {
+                final SSOToken adminToken = realmRepositories.adminToken();
+                final AMIdentity group = IdUtils.getIdentity(adminToken, universalId);
+                final boolean exists = group != null && group.isExists();
+                final Set<String> children = exists ? childGroupNamesOf(group) : ImmutableSet.of();
+                synchronized (groupGraphByRealm) {
+                    final GroupGraph current = groupGraphByRealm.getIfPresent(realm);
+                    if (current == null) {
+                        return;
+                    }
+                    groupGraphByRealm.put(realm, exists
+                            ? current.withChildren(group.getName(), children)
+                            : current.withoutGroup(IdRepoChangeWatcher.UniversalId.parse(universalId).name));
+                }
+            } catch (IdRepoException | SSOException | RuntimeException ex) {
+                groupGraphByRealm.invalidate(realm);
+            }
+        });
+    }
+
+    /**
+     * Drops the cached group names of the given realm, so the next lookup searches the realm again, and
+     * forgets which groups of the realm were found to exist.
+     *
+     * @param realm the realm whose cached group names are dropped.
+     */
+    public void invalidateGroupNamesInRealm(String realm) {
+        groupNamesByRealm.invalidate(realm);
+        partialGroupNamesByRealm.remove(realm);
+        verifiedGroups.invalidateIf(key -> key.realm.equals(realm));
+    }
+
+    /**
+     * Drops the cached group nesting of the given realm, so the next expansion loads it again.
+     *
+     * @param realm the realm whose cached group nesting is dropped.
+     */
+    public void invalidateNestedGroups(String realm) {
+        groupGraphByRealm.invalidate(realm);
+    }
+
+    /**
+     * Drops the cached group names of every realm.
+     */
+    public void invalidateAllGroupNames() {
+        groupNamesByRealm.invalidateAll();
+        partialGroupNamesByRealm.clear();
+        verifiedGroups.invalidateAll();
+        groupGraphByRealm.invalidateAll();
     }
 
     /**
@@ -86,7 +1358,262 @@ public class AmIdentityHelper {
      * @return The AMIdentity of user with username equal to uName.
      */
     public AMIdentity getIdentity(String username, String realm) {
+        watchRealm(realm);
         return IdUtils.getIdentity(username, realm);
     }
 
+    /**
+     * Returns the role the given user selected last time.
+     *
+     * @param userIdentity AMIdentity instance representing the user.
+     * @param attributeName the profile attribute holding the role, or empty to use the local store of this server.
+     * @return the last selected role, or empty if none is known.
+     * @throws IdRepoException If an error occurs in the IdRepo during reading the profile attribute
+     * @throws SSOException If the admin's single sign on token is invalid.
+     */
+    public Optional<String> lastSelectedRole(AMIdentity userIdentity, String attributeName)
+            throws IdRepoException, SSOException {
+        if (userIdentity == null || userIdentity.getUniversalId() == null) {
+            return Optional.empty();
+        }
+        if (attributeName == null || attributeName.isEmpty()) {
+            return Optional.ofNullable(lastSelectedRoles.getIfValid(userIdentity.getUniversalId()));
+        }
+        final Set<String> values = userIdentity.getAttribute(attributeName);
+        return values == null ? Optional.empty() : values.stream().findFirst();
+    }
+
+    /**
+     * Remembers the role the given user selected, for {@link #lastSelectedRole(AMIdentity, String)}.
+     *
+     * @param userIdentity AMIdentity instance representing the user.
+     * @param attributeName the profile attribute holding the role, or empty to use the local store of this server.
+     * @param role the selected role.
+     * @throws IdRepoException If an error occurs in the IdRepo during storing the profile attribute
+     * @throws SSOException If the admin's single sign on token is invalid.
+     */
+    public void rememberSelectedRole(AMIdentity userIdentity, String attributeName, String role)
+            throws IdRepoException, SSOException {
+        if (userIdentity == null || userIdentity.getUniversalId() == null) {
+            return;
+        }
+        if (attributeName == null || attributeName.isEmpty()) {
+            lastSelectedRoles.put(userIdentity.getUniversalId(), role);
+            return;
+        }
+        userIdentity.setAttributes(Collections.singletonMap(attributeName, Collections.singleton(role)));
+        userIdentity.store();
+    }
+
+    /**
+     * Gets the AMIdentity of a user, from its universal id when it is known, which does not query the
+     * repository, or else by searching the user's name in the realm. The universal id is only used when it
+     * names a user of that name in that realm.
+     *
+     * @param username username of the user to get.
+     * @param realm realm the user belongs to.
+     * @param universalId the universal id of the user resolved by a previous node, or {@code null}.
+     * @return The AMIdentity of the user.
+     */
+    public AMIdentity getIdentity(String username, String realm, String universalId) {
+        if (universalId != null) {
+            try {
+                final SSOToken adminToken = realmRepositories.adminToken();
+                final AMIdentity identity = IdUtils.getIdentity(adminToken, universalId);
+                if (identity != null && username != null && username.equalsIgnoreCase(identity.getName())
+                        && isSameRealm(identity.getRealm(), realm)) {
+                    watchRealm(realm);
+                    return identity;
+                }
+            } catch (IdRepoException ex) {
+                // not a valid universal id, the user is searched by name
+            }
+        }
+        return getIdentity(username, realm);
+    }
+
+    private static boolean isSameRealm(String identityRealm, String realm) {
+        return identityRealm != null && realm != null
+                && DNMapper.orgNameToDN(identityRealm).equalsIgnoreCase(DNMapper.orgNameToDN(realm));
+    }
+
+    /**
+     * Drops the cached memberships of the user with the given universal id, from every membership cache.
+     *
+     * @param universalId the universal id of the user.
+     */
+    public void invalidateMembershipsOf(String universalId) {
+        preloadedMemberships.invalidateIf(key -> universalId.equalsIgnoreCase(key.universalId));
+        membershipCaches.values().forEach(cache ->
+                cache.invalidateIf(key -> universalId.equalsIgnoreCase(key.universalId)));
+    }
+
+    /**
+     * Drops the cached memberships of every user whose universal id belongs to the given organization. The users
+     * of its sub-organizations are kept, as the groups of a realm do not hold the users of its subrealms.
+     *
+     * @param organization the organization DN, such as {@code o=sub,ou=services,dc=example}.
+     */
+    public void invalidateMembershipsInOrganization(String organization) {
+        final Predicate<MembershipKey> inOrganization = key -> isInOrganization(key.universalId, organization);
+        preloadedMemberships.invalidateIf(inOrganization);
+        membershipCaches.values().forEach(cache -> cache.invalidateIf(inOrganization));
+    }
+
+    /**
+     * Tells whether the given universal id belongs to the given organization. A universal id that cannot be
+     * parsed is considered to belong to it, so its memberships are dropped rather than kept stale.
+     */
+    private static boolean isInOrganization(String universalId, String organization) {
+        if (universalId == null) {
+            return false;
+        }
+        final IdRepoChangeWatcher.UniversalId id = IdRepoChangeWatcher.UniversalId.parse(universalId);
+        return id == null || id.organization.equalsIgnoreCase(organization);
+    }
+
+    /**
+     * Drops every cached membership.
+     */
+    public void invalidateAllMemberships() {
+        preloadedMemberships.invalidateAll();
+        membershipCaches.values().forEach(ExpiringCache::invalidateAll);
+    }
+
+    /**
+     * Starts evicting the cached memberships and group names on the change notifications of the given source.
+     * The realms are listened to as they are used. Replaces the source given to a previous call.
+     *
+     * @param eventSource the source of the identity repository change notifications.
+     */
+    public void startWatchingChanges(IdRepoEventSource eventSource) {
+        final IdRepoChangeWatcher previous = changeWatcher;
+        changeWatcher = new IdRepoChangeWatcher(eventSource, this);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Unregisters the change listeners registered since {@link #startWatchingChanges(IdRepoEventSource)}.
+     */
+    public void stopWatchingChanges() {
+        final IdRepoChangeWatcher watcher = changeWatcher;
+        changeWatcher = null;
+        if (watcher != null) {
+            watcher.close();
+        }
+    }
+
+    private void watchRealm(String realm) {
+        final IdRepoChangeWatcher watcher = changeWatcher;
+        if (watcher != null) {
+            watcher.watch(realm);
+        }
+    }
+
+    /**
+     * How a group search ended.
+     */
+    private enum GroupSearchOutcome {
+        /** Every group of the realm was returned. */
+        COMPLETE,
+        /** The repository returned the groups up to its size limit only. */
+        SIZE_LIMIT_EXCEEDED,
+        /** The repository returned the groups found within its time limit only. */
+        TIME_LIMIT_EXCEEDED;
+
+        private static GroupSearchOutcome of(IdSearchResults results) {
+            switch (results.getErrorCode()) {
+                case IdSearchResults.SIZE_LIMIT_EXCEEDED:
+                    return SIZE_LIMIT_EXCEEDED;
+                case IdSearchResults.TIME_LIMIT_EXCEEDED:
+                    return TIME_LIMIT_EXCEEDED;
+                default:
+                    return COMPLETE;
+            }
+        }
+    }
+
+    /**
+     * Key of the verified groups: the realm and the name of the group.
+     */
+    private static final class GroupKey {
+        private final String realm;
+        private final String groupName;
+
+        private GroupKey(String realm, String groupName) {
+            this.realm = realm;
+            this.groupName = groupName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof GroupKey)) {
+                return false;
+            }
+            final GroupKey that = (GroupKey) o;
+            return realm.equals(that.realm) && groupName.equals(that.groupName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(realm, groupName);
+        }
+    }
+
+    /**
+     * Key of the membership caches: the realm and the universal id of the user, and the checked groups
+     * when only some of the memberships were looked up, or the attribute when the roles were read from
+     * a profile attribute.
+     */
+    private static final class MembershipKey {
+        private final String realm;
+        private final String universalId;
+        private final Set<String> checkedGroupNames;
+        private final String attributeName;
+
+        private MembershipKey(String realm, String universalId, Set<String> checkedGroupNames, String attributeName) {
+            this.realm = realm;
+            this.universalId = universalId;
+            this.checkedGroupNames = checkedGroupNames;
+            this.attributeName = attributeName;
+        }
+
+        private static MembershipKey of(AMIdentity identity) {
+            return of(identity, null);
+        }
+
+        private static MembershipKey of(AMIdentity identity, Set<String> checkedGroupNames) {
+            return new MembershipKey(identity.getRealm(), identity.getUniversalId(), checkedGroupNames, null);
+        }
+
+        private static MembershipKey ofAttribute(AMIdentity identity, String attributeName) {
+            return new MembershipKey(identity.getRealm(), identity.getUniversalId(), null,
+                    attributeName.toLowerCase(Locale.ROOT));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof MembershipKey)) {
+                return false;
+            }
+            final MembershipKey that = (MembershipKey) o;
+            return Objects.equals(realm, that.realm)
+                    && Objects.equals(universalId, that.universalId)
+                    && Objects.equals(checkedGroupNames, that.checkedGroupNames)
+                    && Objects.equals(attributeName, that.attributeName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(realm, universalId, checkedGroupNames, attributeName);
+        }
+    }
 }
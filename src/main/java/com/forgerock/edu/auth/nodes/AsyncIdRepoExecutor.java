@@ -0,0 +1,123 @@
+package com.forgerock.edu.auth.nodes;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.identity.shared.debug.Debug;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs the {@link IdRepoCall}s of the asynchronous {@link AmIdentityHelper} API, on a bounded number of threads
+ * with a bounded queue.
+ * <p>The threads are virtual threads when they are requested and the JVM provides them, platform daemon threads
+ * otherwise. Either way the number of threads bounds the number of concurrent repository calls, so a burst of
+ * logins cannot open more directory connections than the pool allows. A call submitted while the threads and
+ * the queue are full fails with an {@link IdRepoUnavailableException} instead of blocking the caller.</p>
+ */
+final class AsyncIdRepoExecutor {
+
+    private static final Debug DEBUG = Debug.getInstance("SelectRoleNode");
+
+    private final ThreadPoolExecutor executor;
+    private final boolean virtualThreads;
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+
+    /**
+     * Creates the executor, its threads are started on demand and stopped after a minute of inactivity.
+     *
+     * @param threads the maximum number of concurrent calls.
+     * @param queueCapacity the maximum number of calls waiting for a thread.
+     * @param useVirtualThreads whether to run the calls on virtual threads, if the JVM provides them.
+     */
+    AsyncIdRepoExecutor(int threads, int queueCapacity, boolean useVirtualThreads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads should be at least 1");
+        }
+        final ThreadFactory virtualThreadFactory = useVirtualThreads ? virtualThreadFactory() : null;
+        this.virtualThreads = virtualThreadFactory != null;
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)),
+                virtualThreads ? virtualThreadFactory : new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("select-role-async-%d")
+                        .build());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Submits a call.
+     *
+     * @param call the identity repository call.
+     * @param <V> the type of the result.
+     * @return the future completed with the result of the call or with its exception, or completed with an
+     * {@link IdRepoUnavailableException} if the executor is full. Cancelling the future before the call started
+     * skips the call.
+     */
+    <V> CompletableFuture<V> submit(IdRepoCall<V> call) {
+        final CompletableFuture<V> future = new CompletableFuture<>();
+        final long queuedAt = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                queueWait.record(System.nanoTime() - queuedAt);
+                if (future.isDone()) {
+                    return;
+                }
+                try {
+                    future.complete(call.call());
+                    completed.increment();
+                } catch (Throwable t) {
+                    failed.increment();
+                    future.completeExceptionally(t);
+                }
+            });
+            submitted.increment();
+        } catch (RejectedExecutionException ex) {
+            rejected.increment();
+            future.completeExceptionally(
+                    new IdRepoUnavailableException("Too many asynchronous identity repository calls are in progress"));
+        }
+        return future;
+    }
+
+    /**
+     * @return whether the calls run on virtual threads.
+     */
+    boolean usesVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * @return a snapshot of the counters of this executor.
+     */
+    ExecutorStatistics statistics() {
+        return new ExecutorStatistics(submitted.sum(), completed.sum(), failed.sum(), rejected.sum(),
+                executor.getActiveCount(), executor.getQueue().size(), virtualThreads, queueWait.statistics());
+    }
+
+    /**
+     * Looks up {@code Thread.ofVirtual()} reflectively, as the node is built for Java 11.
+     *
+     * @return the factory of virtual threads, or {@code null} if the JVM does not provide them.
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            final Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            final Object named = builderType.getMethod("name", String.class, long.class)
+                    .invoke(builder, "select-role-async-", 0L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(named);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            DEBUG.warning("Virtual threads are not available, using platform threads");
+            return null;
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package com.forgerock.edu.auth.nodes;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The group catalogs and membership cache entries of {@link AmIdentityHelper}, as written to disk so the
+ * caches survive a restart.
+ * <p>The binary format starts with a magic number, a version and the time the snapshot was written. Every
+ * string, such as a realm, a universal id or a group name, is stored once in a string table, the entries refer
+ * to it by index. Counts and indexes are variable-length integers, the load times are kept as they are so the
+ * restored entries expire by their original time. A CRC32 of the whole content ends the file, a snapshot whose
+ * checksum does not match is rejected as a whole.</p>
+ */
+final class CacheSnapshot {
+
+    private static final int MAGIC = 0x53524E43;
+    private static final int VERSION = 1;
+    private static final int MAX_COUNT = 1 << 26;
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+
+    private final long writtenAt;
+    private final List<Catalog> catalogs = new ArrayList<>();
+    private final List<MembershipCache> membershipCaches = new ArrayList<>();
+
+    /**
+     * @param writtenAt the time the snapshot is taken at, in milliseconds since the epoch.
+     */
+    CacheSnapshot(long writtenAt) {
+        this.writtenAt = writtenAt;
+    }
+
+    long writtenAt() {
+        return writtenAt;
+    }
+
+    List<Catalog> catalogs() {
+        return catalogs;
+    }
+
+    List<MembershipCache> membershipCaches() {
+        return membershipCaches;
+    }
+
+    /**
+     * @return the number of catalogs and membership entries of this snapshot.
+     */
+    int entryCount() {
+        return catalogs.size() + membershipCaches.stream().mapToInt(cache -> cache.entries.size()).sum();
+    }
+
+    void addCatalog(String realm, Set<String> groupNames, long loadedAt) {
+        catalogs.add(new Catalog(realm, groupNames, loadedAt));
+    }
+
+    /**
+     * Adds a membership cache, the entries are added to the returned instance.
+     */
+    MembershipCache addMembershipCache(long ttlMillis, long staleMillis, int maxEntries) {
+        final MembershipCache cache = new MembershipCache(ttlMillis, staleMillis, maxEntries);
+        membershipCaches.add(cache);
+        return cache;
+    }
+
+    /**
+     * Writes the snapshot to a temporary file next to the given file, then moves it in place, so a crash while
+     * writing leaves the previous snapshot intact. On POSIX file systems the file is readable by its owner only,
+     * from its creation on, as it holds user ids and group names.
+     */
+    void writeTo(Path file) throws IOException {
+        final Path directory = file.toAbsolutePath().getParent();
+        if (directory != null) {
+            Files.createDirectories(directory);
+        }
+        final Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        // A left over temporary file may have other permissions, the new one is created readable by the owner only
+        Files.deleteIfExists(temporary);
+        if (temporary.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(temporary, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+        }
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temporary))) {
+            write(out);
+        }
+        try {
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Reads a snapshot written by {@link #writeTo(Path)}.
+     *
+     * @throws IOException If the file cannot be read, is not a snapshot of a supported version, or is corrupt.
+     */
+    static CacheSnapshot readFrom(Path file) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+            return read(in);
+        }
+    }
+
+    void write(OutputStream target) throws IOException {
+        final Map<String, Integer> strings = new LinkedHashMap<>();
+        for (Catalog catalog : catalogs) {
+            index(strings, catalog.realm);
+            catalog.groupNames.forEach(name -> index(strings, name));
+        }
+        for (MembershipCache cache : membershipCaches) {
+            for (MembershipEntry entry : cache.entries) {
+                index(strings, entry.realm);
+                index(strings, entry.universalId);
+                if (entry.checkedGroupNames != null) {
+                    entry.checkedGroupNames.forEach(name -> index(strings, name));
+                }
+                if (entry.attributeName != null) {
+                    index(strings, entry.attributeName);
+                }
+                entry.roleNames.forEach(name -> index(strings, name));
+            }
+        }
+        final CheckedOutputStream checked = new CheckedOutputStream(target, new CRC32());
+        final DataOutputStream out = new DataOutputStream(checked);
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeLong(writtenAt);
+        writeCount(out, strings.size());
+        for (String string : strings.keySet()) {
+            out.writeUTF(string);
+        }
+        writeCount(out, catalogs.size());
+        for (Catalog catalog : catalogs) {
+            writeCount(out, strings.get(catalog.realm));
+            out.writeLong(catalog.loadedAt);
+            writeNames(out, strings, catalog.groupNames);
+        }
+        writeCount(out, membershipCaches.size());
+        for (MembershipCache cache : membershipCaches) {
+            out.writeLong(cache.ttlMillis);
+            out.writeLong(cache.staleMillis);
+            writeCount(out, cache.maxEntries);
+            writeCount(out, cache.entries.size());
+            for (MembershipEntry entry : cache.entries) {
+                writeCount(out, strings.get(entry.realm));
+                writeCount(out, strings.get(entry.universalId));
+                if (entry.checkedGroupNames == null) {
+                    writeCount(out, 0);
+                } else {
+                    writeCount(out, 1);
+                    writeNames(out, strings, entry.checkedGroupNames);
+                }
+                writeCount(out, entry.attributeName == null ? 0 : strings.get(entry.attributeName) + 1);
+                out.writeLong(entry.loadedAt);
+                writeNames(out, strings, entry.roleNames);
+            }
+        }
+        out.flush();
+        out.writeLong(checked.getChecksum().getValue());
+        out.flush();
+    }
+
+    static CacheSnapshot read(InputStream source) throws IOException {
+        final CheckedInputStream checked = new CheckedInputStream(source, new CRC32());
+        final DataInputStream in = new DataInputStream(checked);
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a cache snapshot");
+            }
+            final int version = in.readUnsignedShort();
+            if (version != VERSION) {
+                throw new IOException("Unsupported cache snapshot version " + version);
+            }
+            final CacheSnapshot snapshot = new CacheSnapshot(in.readLong());
+            final String[] strings = new String[readCount(in)];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = in.readUTF();
+            }
+            for (int i = readCount(in); i > 0; i--) {
+                final String realm = string(strings, readCount(in));
+                final long loadedAt = in.readLong();
+                snapshot.addCatalog(realm, readNames(in, strings), loadedAt);
+            }
+            for (int i = readCount(in); i > 0; i--) {
+                final MembershipCache cache = snapshot.addMembershipCache(in.readLong(), in.readLong(), readCount(in));
+                for (int j = readCount(in); j > 0; j--) {
+                    final String realm = string(strings, readCount(in));
+                    final String universalId = string(strings, readCount(in));
+                    final Set<String> checkedGroupNames = readCount(in) == 0 ? null : readNames(in, strings);
+                    final int attributeIndex = readCount(in);
+                    final String attributeName = attributeIndex == 0 ? null : string(strings, attributeIndex - 1);
+                    final long loadedAt = in.readLong();
+                    cache.add(realm, universalId, checkedGroupNames, attributeName, readNames(in, strings), loadedAt);
+                }
+            }
+            final long checksum = checked.getChecksum().getValue();
+            if (in.readLong() != checksum) {
+                throw new IOException("Corrupt cache snapshot, the checksum does not match");
+            }
+            return snapshot;
+        } catch (EOFException ex) {
+            throw new IOException("Truncated cache snapshot", ex);
+        }
+    }
+
+    private static void index(Map<String, Integer> strings, String string) {
+        strings.putIfAbsent(string, strings.size());
+    }
+
+    private static void writeNames(DataOutputStream out, Map<String, Integer> strings, Collection<String> names)
+            throws IOException {
+        writeCount(out, names.size());
+        for (String name : names) {
+            writeCount(out, strings.get(name));
+        }
+    }
+
+    private static Set<String> readNames(DataInputStream in, String[] strings) throws IOException {
+        final int count = readCount(in);
+        final ImmutableSet.Builder<String> names = ImmutableSet.builderWithExpectedSize(count);
+        for (int i = 0; i < count; i++) {
+            names.add(string(strings, readCount(in)));
+        }
+        return names.build();
+    }
+
+    private static String string(String[] strings, int index) throws IOException {
+        if (index >= strings.length) {
+            throw new IOException("Corrupt cache snapshot, invalid string index " + index);
+        }
+        return strings[index];
+    }
+
+    /**
+     * Writes a non-negative int in 7-bit groups, the high bit of each byte telling whether another one follows.
+     */
+    private static void writeCount(DataOutputStream out, int value) throws IOException {
+        int remaining = value;
+        while ((remaining & ~0x7F) != 0) {
+            out.writeByte((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        out.writeByte(remaining);
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0 || value > MAX_COUNT) {
+                    throw new IOException("Corrupt cache snapshot, invalid count " + value);
+                }
+                return value;
+            }
+        }
+        throw new IOException("Corrupt cache snapshot, invalid count");
+    }
+
+    /**
+     * The group names of a realm.
+     */
+    static final class Catalog {
+        final String realm;
+        final Set<String> groupNames;
+        final long loadedAt;
+
+        private Catalog(String realm, Set<String> groupNames, long loadedAt) {
+            this.realm = realm;
+            this.groupNames = groupNames;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    /**
+     * The entries of a membership cache, and the settings it was created with.
+     */
+    static final class MembershipCache {
+        final long ttlMillis;
+        final long staleMillis;
+        final int maxEntries;
+        final List<MembershipEntry> entries = new ArrayList<>();
+
+        private MembershipCache(long ttlMillis, long staleMillis, int maxEntries) {
+            this.ttlMillis = ttlMillis;
+            this.staleMillis = staleMillis;
+            this.maxEntries = maxEntries;
+        }
+
+        void add(String realm, String universalId, Set<String> checkedGroupNames, String attributeName,
+                Set<String> roleNames, long loadedAt) {
+            entries.add(new MembershipEntry(realm, universalId,
+                    checkedGroupNames == null ? null : ImmutableList.copyOf(checkedGroupNames),
+                    attributeName, roleNames, loadedAt));
+        }
+    }
+
+    /**
+     * A cached user: the key of the entry, its role names and the time they were loaded at.
+     */
+    static final class MembershipEntry {
+        final String realm;
+        final String universalId;
+        final List<String> checkedGroupNames;
+        final String attributeName;
+        final Set<String> roleNames;
+        final long loadedAt;
+
+        private MembershipEntry(String realm, String universalId, List<String> checkedGroupNames,
+                String attributeName, Set<String> roleNames, long loadedAt) {
+            this.realm = realm;
+            this.universalId = universalId;
+            this.checkedGroupNames = checkedGroupNames;
+            this.attributeName = attributeName;
+            this.roleNames = roleNames;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.forgerock.edu.auth.nodes;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.identity.shared.debug.Debug;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the caches of {@link AmIdentityHelper} on disk, so a restarted server starts with the group names and
+ * memberships its previous run had loaded, instead of sending every first login to the directory.
+ * <p>On start, the snapshot file is loaded in the background, then a new snapshot is written periodically.
+ * A last snapshot is written on stop, unless the snapshot file was not loaded yet: the caches would not hold what
+ * it holds, and writing them would lose it. The snapshot is disabled unless {@value #FILE_PROPERTY} is set.</p>
+ */
+final class CacheSnapshotter {
+
+    /**
+     * The snapshot file, such as {@code /var/lib/am/select-role-cache.bin}. No snapshot is kept when empty.
+     */
+    static final String FILE_PROPERTY = "com.forgerock.edu.selectrole.snapshot.file";
+    /**
+     * How often the snapshot is written, in seconds.
+     */
+    static final String INTERVAL_PROPERTY = "com.forgerock.edu.selectrole.snapshot.intervalSeconds";
+
+    private static final Debug DEBUG = Debug.getInstance("SelectRoleNode");
+
+    private final AmIdentityHelper identityHelper;
+    private final Path file;
+    private final Duration interval;
+    private ScheduledExecutorService executor;
+    private volatile boolean restoreDone;
+
+    CacheSnapshotter(AmIdentityHelper identityHelper, Path file, Duration interval) {
+        if (interval.isNegative() || interval.isZero()) {
+            throw new IllegalArgumentException("interval should be greater than zero");
+        }
+        this.identityHelper = identityHelper;
+        this.file = file;
+        this.interval = interval;
+    }
+
+    /**
+     * Creates a snapshotter of the file and interval set in the system properties.
+     *
+     * @return the snapshotter, or {@code null} if no snapshot file is configured.
+     */
+    static CacheSnapshotter fromSystemProperties(AmIdentityHelper identityHelper) {
+        final String file = System.getProperty(FILE_PROPERTY, "").trim();
+        if (file.isEmpty()) {
+            return null;
+        }
+        long intervalSeconds = Long.getLong(INTERVAL_PROPERTY, 300);
+        if (intervalSeconds <= 0) {
+            DEBUG.warning("Invalid " + INTERVAL_PROPERTY + " " + intervalSeconds + ", writing the snapshot every 300 seconds");
+            intervalSeconds = 300;
+        }
+        return new CacheSnapshotter(identityHelper, Paths.get(file), Duration.ofSeconds(intervalSeconds));
+    }
+
+    /**
+     * Loads the snapshot and schedules the next ones in the background, and returns immediately. Does nothing
+     * if it was already started.
+     */
+    synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("select-role-snapshot-%d")
+                .build());
+        executor.execute(this::restore);
+        executor.scheduleWithFixedDelay(this::write, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the periodic snapshots, waits for one in progress, and writes a last snapshot if the snapshot file
+     * was loaded. A stop soon after the start may interrupt the load, the snapshot file is then kept as it is.
+     */
+    void stop() {
+        final ScheduledExecutorService started;
+        synchronized (this) {
+            started = executor;
+            executor = null;
+        }
+        if (started == null) {
+            return;
+        }
+        started.shutdownNow();
+        try {
+            started.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (!restoreDone) {
+            DEBUG.warning("Stopped before the cache snapshot " + file + " was restored, keeping it as it is");
+            return;
+        }
+        write();
+    }
+
+    /**
+     * Loads the snapshot file, if there is one. A missing, unreadable or corrupt file leaves the caches as they are.
+     * A load interrupted by {@link #stop()} is not considered done, so the file is not overwritten on stop.
+     */
+    void restore() {
+        if (!Files.exists(file)) {
+            DEBUG.message("No cache snapshot at " + file);
+            restoreDone = true;
+            return;
+        }
+        final long start = System.nanoTime();
+        try {
+            final CacheSnapshot snapshot = CacheSnapshot.readFrom(file);
+            final int restored = identityHelper.restoreCaches(snapshot);
+            DEBUG.message("Restored " + restored + " of " + snapshot.entryCount() + " cache entries from " + file
+                    + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+            restoreDone = true;
+        } catch (IOException | RuntimeException ex) {
+            DEBUG.warning("Unable to restore the cache snapshot " + file, ex);
+            // Reading through an interruptible channel, an interrupt aborts the read but the file may be fine
+            restoreDone = !Thread.currentThread().isInterrupted();
+        }
+    }
+
+    /**
+     * Writes the snapshot file. A failure is logged, the previous snapshot is kept.
+     */
+    void write() {
+        try {
+            final CacheSnapshot snapshot = identityHelper.snapshotCaches();
+            snapshot.writeTo(file);
+            DEBUG.message("Wrote " + snapshot.entryCount() + " cache entries to " + file);
+        } catch (IOException | RuntimeException ex) {
+            DEBUG.warning("Unable to write the cache snapshot " + file, ex);
+        }
+    }
+}
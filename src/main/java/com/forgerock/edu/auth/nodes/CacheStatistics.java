@@ -0,0 +1,73 @@
+package com.forgerock.edu.auth.nodes;
+
+/**
+ * Snapshot of the counters of an identity cache held by {@link AmIdentityHelper}.
+ */
+public final class CacheStatistics {
+
+    private final long hitCount;
+    private final long staleHitCount;
+    private final long missCount;
+    private final long evictionCount;
+    private final long size;
+
+    CacheStatistics(long hitCount, long staleHitCount, long missCount, long evictionCount, long size) {
+        this.hitCount = hitCount;
+        this.staleHitCount = staleHitCount;
+        this.missCount = missCount;
+        this.evictionCount = evictionCount;
+        this.size = size;
+    }
+
+    /**
+     * @return the number of lookups served by a fresh entry.
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return the number of lookups served by a stale entry while it was reloaded in the background.
+     */
+    public long getStaleHitCount() {
+        return staleHitCount;
+    }
+
+    /**
+     * @return the number of lookups that had to wait for the identity repository.
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return the number of entries removed because the cache was full or they expired.
+     */
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @return the number of entries held when the snapshot was taken.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Adds the counters of two snapshots.
+     *
+     * @param other the snapshot to add to this one.
+     * @return the combined snapshot.
+     */
+    public CacheStatistics plus(CacheStatistics other) {
+        return new CacheStatistics(hitCount + other.hitCount, staleHitCount + other.staleHitCount,
+                missCount + other.missCount, evictionCount + other.evictionCount, size + other.size);
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStatistics{hits=" + hitCount + ", staleHits=" + staleHitCount + ", misses=" + missCount
+                + ", evictions=" + evictionCount + ", size=" + size + "}";
+    }
+}
@@ -0,0 +1,178 @@
+package com.forgerock.edu.auth.nodes;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.identity.shared.debug.Debug;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the group names of the configured realms, and the memberships of the configured users, into the
+ * caches of {@link AmIdentityHelper} in the background, so the first logins after a restart do not all
+ * reach a cold directory at once.
+ * <p>The warmup runs on its own daemon thread, at a limited rate of repository lookups, and reports its
+ * progress through the debug log and {@link RoleSelectionMetrics}.</p>
+ */
+final class CacheWarmer {
+
+    /**
+     * Comma separated realms whose group names are loaded, such as {@code /,/customers}.
+     */
+    static final String REALMS_PROPERTY = "com.forgerock.edu.selectrole.warmup.realms";
+    /**
+     * Comma separated users whose memberships are loaded, as {@code username} in the root realm or
+     * {@code realm:username}.
+     */
+    static final String USERS_PROPERTY = "com.forgerock.edu.selectrole.warmup.users";
+    /**
+     * The maximum number of realms and users warmed up per second.
+     */
+    static final String RATE_PROPERTY = "com.forgerock.edu.selectrole.warmup.ratePerSecond";
+
+    private static final Debug DEBUG = Debug.getInstance("SelectRoleNode");
+    private static final Splitter LIST_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+
+    private final AmIdentityHelper identityHelper;
+    private final RoleSelectionMetrics metrics;
+    private final List<String> realms;
+    private final List<String> users;
+    private final double ratePerSecond;
+    private ExecutorService executor;
+    private Future<?> warmup;
+
+    CacheWarmer(AmIdentityHelper identityHelper, RoleSelectionMetrics metrics, List<String> realms,
+            List<String> users, double ratePerSecond) {
+        if (ratePerSecond <= 0) {
+            throw new IllegalArgumentException("ratePerSecond should be greater than zero");
+        }
+        this.identityHelper = identityHelper;
+        this.metrics = metrics;
+        this.realms = ImmutableList.copyOf(realms);
+        this.users = ImmutableList.copyOf(users);
+        this.ratePerSecond = ratePerSecond;
+    }
+
+    /**
+     * Creates a warmer of the realms and users listed in the system properties.
+     */
+    static CacheWarmer fromSystemProperties(AmIdentityHelper identityHelper, RoleSelectionMetrics metrics) {
+        return new CacheWarmer(identityHelper, metrics,
+                LIST_SPLITTER.splitToList(System.getProperty(REALMS_PROPERTY, "")),
+                LIST_SPLITTER.splitToList(System.getProperty(USERS_PROPERTY, "")),
+                rateOf(System.getProperty(RATE_PROPERTY, "10")));
+    }
+
+    private static double rateOf(String value) {
+        try {
+            final double rate = Double.parseDouble(value.trim());
+            if (rate > 0) {
+                return rate;
+            }
+        } catch (NumberFormatException ex) {
+            // reported below
+        }
+        DEBUG.warning("Invalid " + RATE_PROPERTY + " " + value + ", warming up 10 realms or users per second");
+        return 10;
+    }
+
+    /**
+     * Starts the warmup in the background and returns immediately. Does nothing if nothing is configured
+     * or the warmup was already started.
+     */
+    synchronized void start() {
+        if (warmup != null || (realms.isEmpty() && users.isEmpty())) {
+            return;
+        }
+        executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("select-role-warmup-%d")
+                .build());
+        warmup = executor.submit(this::run);
+    }
+
+    /**
+     * Stops a warmup in progress.
+     */
+    synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Waits for the warmup to finish.
+     *
+     * @return {@code true} if the warmup finished, or was never started.
+     */
+    boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+        final ExecutorService started;
+        synchronized (this) {
+            started = executor;
+        }
+        if (started == null) {
+            return true;
+        }
+        started.shutdown();
+        return started.awaitTermination(timeout, unit);
+    }
+
+    private void run() {
+        final long start = System.nanoTime();
+        final int total = realms.size() + users.size();
+        final RateLimiter rateLimiter = RateLimiter.create(ratePerSecond);
+        metrics.warmupStarted(total);
+        DEBUG.message("Warming up " + realms.size() + " realm(s) and " + users.size() + " user(s)");
+        int done = 0;
+        int failed = 0;
+        try {
+            for (String realm : realms) {
+                rateLimiter.acquire();
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                failed += step(() -> identityHelper.findAllGroupNamesInRealm(realm), "realm " + realm);
+                done++;
+            }
+            for (String user : users) {
+                rateLimiter.acquire();
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                final int separator = user.lastIndexOf(':');
+                final String realm = separator < 0 ? "/" : user.substring(0, separator);
+                final String username = user.substring(separator + 1);
+                failed += step(() -> identityHelper.preloadMemberships(identityHelper.getIdentity(username, realm)),
+                        "user " + user);
+                done++;
+            }
+        } finally {
+            final long durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            final boolean aborted = done < total;
+            metrics.warmupFinished(durationMillis, aborted);
+            if (aborted) {
+                DEBUG.message("Warmup stopped after " + durationMillis + " ms, with " + done + " of " + total
+                        + " done, " + failed + " failed");
+            } else {
+                DEBUG.message("Warmup finished in " + durationMillis + " ms, " + failed + " of " + total + " failed");
+            }
+        }
+    }
+
+    private int step(IdRepoCall<?> call, String description) {
+        try {
+            call.call();
+            metrics.warmupStep(true);
+            return 0;
+        } catch (Exception ex) {
+            DEBUG.warning("Unable to warm up " + description, ex);
+            metrics.warmupStep(false);
+            return 1;
+        }
+    }
+}
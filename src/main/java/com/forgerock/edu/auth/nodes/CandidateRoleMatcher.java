@@ -0,0 +1,182 @@
+package com.forgerock.edu.auth.nodes;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Immutable snapshot of the candidate roles of a {@link SelectRoleNode}, used to intersect
+ * them with the group names of a user.
+ * <p>The selectable roles are always returned in the order of the candidate roles, with the
+ * name as it is configured. The intersection iterates over the smaller of the two sides when
+ * the matching is case-sensitive.</p>
+ * <p>The group names held as a {@link RoleSet} are intersected with a mask of the candidate roles
+ * compiled once per {@link RoleDictionary}, a bitwise AND when the matching is case-sensitive.</p>
+ */
+final class CandidateRoleMatcher {
+
+    private static final String[] NO_ROLES = new String[0];
+    private static final DictionaryMask NO_MASK = new DictionaryMask(new long[0], new int[0]);
+
+    private final String[] candidateRoles;
+    private final ImmutableMap<String, Integer> indexByKey;
+    private final boolean caseInsensitive;
+    private final ConcurrentMap<RoleDictionary, DictionaryMask> masks = new ConcurrentHashMap<>();
+
+    /**
+     * Compiles the given candidate roles.
+     *
+     * @param candidateRoles the configured candidate roles.
+     * @param caseInsensitive whether group names should match candidate roles regardless of their case.
+     */
+    CandidateRoleMatcher(Collection<String> candidateRoles, boolean caseInsensitive) {
+        this.caseInsensitive = caseInsensitive;
+        final Map<String, Integer> indexes = new LinkedHashMap<>();
+        final String[] roles = new String[candidateRoles.size()];
+        for (String candidateRole : candidateRoles) {
+            if (indexes.putIfAbsent(keyOf(candidateRole), indexes.size()) == null) {
+                roles[indexes.size() - 1] = candidateRole;
+            }
+        }
+        this.indexByKey = ImmutableMap.copyOf(indexes);
+        this.candidateRoles = Arrays.copyOf(roles, indexes.size());
+    }
+
+    /**
+     * @return the number of distinct candidate roles.
+     */
+    int size() {
+        return candidateRoles.length;
+    }
+
+    /**
+     * Returns whether the given group name matches one of the candidate roles.
+     */
+    boolean matches(String groupName) {
+        return groupName != null && indexByKey.containsKey(keyOf(groupName));
+    }
+
+    /**
+     * Intersects the candidate roles with the given group names.
+     *
+     * @param groupNames the group names of the user.
+     * @return the candidate roles that the user is member of, in the order of the candidate roles.
+     */
+    String[] selectableRoles(Set<String> groupNames) {
+        if (groupNames.isEmpty() || candidateRoles.length == 0) {
+            return NO_ROLES;
+        }
+        if (groupNames instanceof RoleSet && !caseInsensitive) {
+            final RoleSet roleSet = (RoleSet) groupNames;
+            final DictionaryMask mask = masks.computeIfAbsent(roleSet.dictionary(), this::maskOf);
+            if (mask != NO_MASK) {
+                return selectableRoles(roleSet, mask);
+            }
+        }
+        final boolean[] selected = new boolean[candidateRoles.length];
+        int count = 0;
+        if (!caseInsensitive && candidateRoles.length <= groupNames.size()) {
+            for (int i = 0; i < candidateRoles.length; i++) {
+                if (groupNames.contains(candidateRoles[i])) {
+                    selected[i] = true;
+                    count++;
+                }
+            }
+        } else {
+            for (String groupName : groupNames) {
+                final Integer index = groupName == null ? null : indexByKey.get(keyOf(groupName));
+                if (index != null && !selected[index]) {
+                    selected[index] = true;
+                    count++;
+                }
+            }
+        }
+        return selectedRoles(selected, count);
+    }
+
+    private String[] selectableRoles(RoleSet roleSet, DictionaryMask mask) {
+        final boolean[] selected = new boolean[candidateRoles.length];
+        int count = 0;
+        if (roleSet.isBitset()) {
+            final long[] words = roleSet.words();
+            for (int w = 0, n = Math.min(words.length, mask.words.length); w < n; w++) {
+                long word = words[w] & mask.words[w];
+                while (word != 0) {
+                    selected[mask.candidateIndexById[(w << 6) + Long.numberOfTrailingZeros(word)]] = true;
+                    count++;
+                    word &= word - 1;
+                }
+            }
+        } else {
+            final int[] candidateIndexById = mask.candidateIndexById;
+            for (int id : roleSet.ids()) {
+                if (id < candidateIndexById.length && candidateIndexById[id] >= 0) {
+                    selected[candidateIndexById[id]] = true;
+                    count++;
+                }
+            }
+        }
+        return selectedRoles(selected, count);
+    }
+
+    private String[] selectedRoles(boolean[] selected, int count) {
+        if (count == 0) {
+            return NO_ROLES;
+        }
+        final String[] selectableRoles = new String[count];
+        for (int i = 0, j = 0; j < count; i++) {
+            if (selected[i]) {
+                selectableRoles[j++] = candidateRoles[i];
+            }
+        }
+        return selectableRoles;
+    }
+
+    /**
+     * Assigns an id to every candidate role in the given dictionary, so group names added to the dictionary
+     * later on are never candidate roles, and compiles the mask of these ids.
+     */
+    private DictionaryMask maskOf(RoleDictionary dictionary) {
+        final int[] ids = new int[candidateRoles.length];
+        int maxId = -1;
+        for (int i = 0; i < candidateRoles.length; i++) {
+            ids[i] = dictionary.intern(candidateRoles[i]);
+            if (ids[i] < 0) {
+                return NO_MASK;
+            }
+            maxId = Math.max(maxId, ids[i]);
+        }
+        final long[] words = new long[(maxId >>> 6) + 1];
+        final int[] candidateIndexById = new int[maxId + 1];
+        Arrays.fill(candidateIndexById, -1);
+        for (int i = 0; i < ids.length; i++) {
+            words[ids[i] >>> 6] |= 1L << ids[i];
+            candidateIndexById[ids[i]] = i;
+        }
+        return new DictionaryMask(words, candidateIndexById);
+    }
+
+    private String keyOf(String roleName) {
+        return caseInsensitive ? roleName.toLowerCase(Locale.ROOT) : roleName;
+    }
+
+    /**
+     * The ids of the candidate roles in a {@link RoleDictionary}.
+     */
+    private static final class DictionaryMask {
+        private final long[] words;
+        private final int[] candidateIndexById;
+
+        private DictionaryMask(long[] words, int[] candidateIndexById) {
+            this.words = words;
+            this.candidateIndexById = candidateIndexById;
+        }
+    }
+}
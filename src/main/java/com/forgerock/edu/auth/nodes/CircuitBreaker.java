@@ -0,0 +1,109 @@
+package com.forgerock.edu.auth.nodes;
+
+import java.time.Clock;
+import java.time.Duration;
+
+/**
+ * A circuit breaker guarding the identity repository calls.
+ * <p>The breaker opens after a number of consecutive failures, and rejects every call while it is open.
+ * Once the open duration elapsed it lets a single probe call through: its success closes the breaker,
+ * its failure opens it again for another open duration.</p>
+ */
+final class CircuitBreaker {
+
+    /**
+     * The states of the breaker.
+     */
+    enum State {
+        /** Calls are let through. */
+        CLOSED,
+        /** Calls are rejected. */
+        OPEN,
+        /** A single probe call is in progress, other calls are rejected. */
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openMillis;
+    private final Clock clock;
+    private volatile State state = State.CLOSED;
+    private volatile int consecutiveFailures;
+    private long openedAt;
+
+    /**
+     * Creates a closed breaker.
+     *
+     * @param failureThreshold the number of consecutive failures opening the breaker.
+     * @param openDuration how long the breaker rejects calls before letting a probe through.
+     * @param clock the clock used to time the open state.
+     */
+    CircuitBreaker(int failureThreshold, Duration openDuration, Clock clock) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("failureThreshold should be at least 1");
+        }
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openDuration.toMillis();
+        this.clock = clock;
+    }
+
+    /**
+     * Asks permission for a call. Every permitted call must be followed by {@link #onSuccess()},
+     * {@link #onFailure()} or {@link #onAbandoned()}.
+     *
+     * @return {@code true} if the call may proceed.
+     */
+    boolean tryAcquire() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        synchronized (this) {
+            if (state == State.OPEN && clock.millis() - openedAt >= openMillis) {
+                state = State.HALF_OPEN;
+                return true;
+            }
+            return state == State.CLOSED;
+        }
+    }
+
+    /**
+     * Records a call that completed, closing the breaker.
+     */
+    void onSuccess() {
+        if (state == State.CLOSED && consecutiveFailures == 0) {
+            return;
+        }
+        synchronized (this) {
+            consecutiveFailures = 0;
+            state = State.CLOSED;
+        }
+    }
+
+    /**
+     * Records a failed call, opening the breaker if it was probing or if the failure threshold is reached.
+     */
+    synchronized void onFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = clock.millis();
+        }
+    }
+
+    /**
+     * Records a permitted call whose outcome is unknown, such as a call abandoned by an interrupted caller.
+     * Neither a success nor a failure is counted. A probe in progress is given up: the breaker opens again
+     * without restarting the open duration, so the next call probes instead.
+     */
+    synchronized void onAbandoned() {
+        if (state == State.HALF_OPEN) {
+            state = State.OPEN;
+        }
+    }
+
+    /**
+     * @return the current state of the breaker.
+     */
+    State state() {
+        return state;
+    }
+}
@@ -0,0 +1,91 @@
+package com.forgerock.edu.auth.nodes;
+
+/**
+ * Snapshot of the counters of the executor running the asynchronous {@link AmIdentityHelper} calls.
+ */
+public final class ExecutorStatistics {
+
+    private final long submittedCount;
+    private final long completedCount;
+    private final long failedCount;
+    private final long rejectedCount;
+    private final long activeCount;
+    private final long queuedCount;
+    private final boolean virtualThreads;
+    private final TimerStatistics queueWait;
+
+    ExecutorStatistics(long submittedCount, long completedCount, long failedCount, long rejectedCount,
+            long activeCount, long queuedCount, boolean virtualThreads, TimerStatistics queueWait) {
+        this.submittedCount = submittedCount;
+        this.completedCount = completedCount;
+        this.failedCount = failedCount;
+        this.rejectedCount = rejectedCount;
+        this.activeCount = activeCount;
+        this.queuedCount = queuedCount;
+        this.virtualThreads = virtualThreads;
+        this.queueWait = queueWait;
+    }
+
+    /**
+     * @return the number of calls accepted by the executor.
+     */
+    public long getSubmittedCount() {
+        return submittedCount;
+    }
+
+    /**
+     * @return the number of calls that returned a result.
+     */
+    public long getCompletedCount() {
+        return completedCount;
+    }
+
+    /**
+     * @return the number of calls that threw an exception.
+     */
+    public long getFailedCount() {
+        return failedCount;
+    }
+
+    /**
+     * @return the number of calls refused because every thread was busy and the queue was full.
+     */
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * @return the number of calls running when the snapshot was taken.
+     */
+    public long getActiveCount() {
+        return activeCount;
+    }
+
+    /**
+     * @return the number of calls waiting for a thread when the snapshot was taken.
+     */
+    public long getQueuedCount() {
+        return queuedCount;
+    }
+
+    /**
+     * @return whether the calls run on virtual threads.
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * @return how long the calls waited for a thread.
+     */
+    public TimerStatistics getQueueWait() {
+        return queueWait;
+    }
+
+    @Override
+    public String toString() {
+        return "ExecutorStatistics{submitted=" + submittedCount + ", completed=" + completedCount
+                + ", failed=" + failedCount + ", rejected=" + rejectedCount + ", active=" + activeCount
+                + ", queued=" + queuedCount + ", virtualThreads=" + virtualThreads + "}";
+    }
+}
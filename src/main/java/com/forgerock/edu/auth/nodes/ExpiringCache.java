@@ -0,0 +1,338 @@
+package com.forgerock.edu.auth.nodes;
+
+import com.iplanet.sso.SSOException;
+import com.sun.identity.idm.IdRepoException;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * A size-bounded cache whose entries expire a fixed time after they were loaded.
+ * <p>Values are loaded on demand by an {@link IdRepoCall}. Concurrent misses for the
+ * same key are coalesced, so only one of them reaches the identity repository.</p>
+ * <p>An optional stale window extends the life of an expired entry: during the window the
+ * stale value is still served, while a reload runs in the background. An entry is never
+ * served once its TTL and stale window have both elapsed.</p>
+ * <p>When an insert pushes the cache over its maximum size, expired entries are dropped
+ * first, then the oldest entries until the cache is back to 90% of its maximum size.</p>
+ * <p>An invalidation also applies to the loads in progress for the key: their value is returned to
+ * their callers but not cached, as it may have been read before the change that caused the
+ * invalidation. The callers arriving after the invalidation start a new load.</p>
+ *
+ * @param <K> type of the keys
+ * @param <V> type of the cached values
+ */
+final class ExpiringCache<K, V> {
+
+    private final long ttlMillis;
+    private final long staleMillis;
+    private final int maxEntries;
+    private final Clock clock;
+    private final Executor refreshExecutor;
+    private final ConcurrentMap<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final SingleFlight<K, V> loads = new SingleFlight<>();
+    private final Set<K> refreshing = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<K, LoadStamp> loading = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates a cache without stale window.
+     *
+     * @param ttl how long an entry is served after it was loaded.
+     * @param maxEntries the maximum number of entries kept in the cache.
+     * @param clock the clock used to timestamp and expire the entries.
+     */
+    ExpiringCache(Duration ttl, int maxEntries, Clock clock) {
+        this(ttl, Duration.ZERO, maxEntries, clock, Runnable::run);
+    }
+
+    /**
+     * Creates a cache.
+     *
+     * @param ttl how long an entry is served as fresh after it was loaded.
+     * @param staleWindow how long an entry is still served after its TTL elapsed, while it is reloaded.
+     * @param maxEntries the maximum number of entries kept in the cache.
+     * @param clock the clock used to timestamp and expire the entries.
+     * @param refreshExecutor runs the background reloads of stale entries.
+     */
+    ExpiringCache(Duration ttl, Duration staleWindow, int maxEntries, Clock clock, Executor refreshExecutor) {
+        this.ttlMillis = ttl.toMillis();
+        this.staleMillis = staleWindow.toMillis();
+        this.maxEntries = maxEntries;
+        this.clock = clock;
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    /**
+     * Returns the cached value of the key, loading it with the given loader if it is absent or expired.
+     *
+     * @param key the key of the value.
+     * @param loader the call producing the value if it has to be loaded.
+     * @return the cached or freshly loaded value.
+     * @throws IdRepoException If the loader failed with an IdRepo error
+     * @throws SSOException If the loader failed because of an invalid SSO token
+     */
+    V get(K key, IdRepoCall<V> loader) throws IdRepoException, SSOException {
+        final Entry<V> entry = entries.get(key);
+        if (entry != null) {
+            final long age = clock.millis() - entry.loadedAt;
+            if (age < ttlMillis) {
+                hits.increment();
+                return entry.value;
+            }
+            if (age < ttlMillis + staleMillis) {
+                staleHits.increment();
+                refreshInBackground(key, loader);
+                return entry.value;
+            }
+        }
+        misses.increment();
+        return load(key, loader);
+    }
+
+    /**
+     * Returns the cached value of the key without loading it, if it has not expired. Counts a hit or a miss.
+     *
+     * @param key the key of the value.
+     * @return the cached value, or {@code null} if none is held or it has expired.
+     */
+    V getIfValid(K key) {
+        final Entry<V> entry = entries.get(key);
+        if (entry == null || isExpired(entry, clock.millis())) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.value;
+    }
+
+    /**
+     * Tells whether {@link #get(Object, IdRepoCall)} would answer the key without waiting for the loader, from a
+     * fresh or a stale entry. The hit and miss counters are not updated.
+     *
+     * @param key the key of the value.
+     * @return {@code true} if an entry of the key is held and has not expired.
+     */
+    boolean containsServable(K key) {
+        final Entry<V> entry = entries.get(key);
+        return entry != null && !isExpired(entry, clock.millis());
+    }
+
+    /**
+     * Returns the cached value of the key without loading it, even if it has expired, as long as it has not
+     * been evicted or invalidated. The hit and miss counters are not updated.
+     *
+     * @param key the key of the value.
+     * @return the last loaded value, or {@code null} if none is held.
+     */
+    V getIfPresent(K key) {
+        final Entry<V> entry = entries.get(key);
+        return entry == null ? null : entry.value;
+    }
+
+    /**
+     * Stores a value loaded by the caller.
+     */
+    void put(K key, V value) {
+        put(key, value, clock.millis());
+    }
+
+    /**
+     * Stores a value loaded by the caller at the given time, the entry expires relative to that time.
+     */
+    void put(K key, V value, long loadedAt) {
+        entries.put(key, new Entry<>(value, loadedAt));
+        if (entries.size() > maxEntries) {
+            evict();
+        }
+    }
+
+    /**
+     * Stores a value loaded at the given time by an earlier run, unless it has expired by then or the cache
+     * holds a value loaded later.
+     *
+     * @return whether the value was stored.
+     */
+    boolean restore(K key, V value, long loadedAt) {
+        final Entry<V> restored = new Entry<>(value, loadedAt);
+        if (isExpired(restored, clock.millis())) {
+            return false;
+        }
+        final Entry<V> held = entries.merge(key, restored,
+                (current, candidate) -> current.loadedAt >= candidate.loadedAt ? current : candidate);
+        if (entries.size() > maxEntries) {
+            evict();
+        }
+        return held == restored;
+    }
+
+    /**
+     * Visits the entries that have not expired, with the time they were loaded at. The hit and miss counters
+     * are not updated.
+     */
+    void forEachValid(EntryVisitor<? super K, ? super V> visitor) {
+        final long now = clock.millis();
+        entries.forEach((key, entry) -> {
+            if (!isExpired(entry, now)) {
+                visitor.visit(key, entry.value, entry.loadedAt);
+            }
+        });
+    }
+
+    /**
+     * Removes the entry of the given key, and keeps the loads in progress for the key from storing their value.
+     */
+    void invalidate(K key) {
+        final LoadStamp stamp = loading.get(key);
+        if (stamp != null) {
+            stamp.invalidated = true;
+        }
+        loads.detachIf(key::equals);
+        entries.remove(key);
+    }
+
+    /**
+     * Removes the entries whose key matches the given predicate, and keeps the loads in progress for those keys
+     * from storing their value.
+     */
+    void invalidateIf(Predicate<? super K> predicate) {
+        loading.forEach((key, stamp) -> {
+            if (predicate.test(key)) {
+                stamp.invalidated = true;
+            }
+        });
+        loads.detachIf(predicate);
+        entries.keySet().removeIf(predicate);
+    }
+
+    /**
+     * Removes every entry, and keeps the loads in progress from storing their value.
+     */
+    void invalidateAll() {
+        loading.values().forEach(stamp -> stamp.invalidated = true);
+        loads.detachIf(key -> true);
+        entries.clear();
+    }
+
+    /**
+     * @return the number of entries currently held, including the expired ones not evicted yet.
+     */
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return a snapshot of the hit, miss and eviction counters of this cache.
+     */
+    CacheStatistics statistics() {
+        return new CacheStatistics(hits.sum(), staleHits.sum(), misses.sum(), evictions.sum(), entries.size());
+    }
+
+    private V load(K key, IdRepoCall<V> loader) throws IdRepoException, SSOException {
+        return loads.execute(key, () -> {
+            final LoadStamp stamp = new LoadStamp();
+            loading.put(key, stamp);
+            try {
+                final V value = loader.call();
+                final Entry<V> entry = new Entry<>(value, clock.millis());
+                entries.put(key, entry);
+                // The invalidations mark the stamp before removing the entry, so either this check sees the
+                // mark, or the invalidation removes the entry just stored
+                if (stamp.invalidated) {
+                    entries.remove(key, entry);
+                } else if (entries.size() > maxEntries) {
+                    evict();
+                }
+                return value;
+            } finally {
+                loading.remove(key, stamp);
+            }
+        });
+    }
+
+    private void refreshInBackground(K key, IdRepoCall<V> loader) {
+        if (!refreshing.add(key)) {
+            return;
+        }
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    load(key, loader);
+                } catch (Exception ex) {
+                    // the stale value stays in place until it expires, the next miss reports the error
+                } finally {
+                    refreshing.remove(key);
+                }
+            });
+        } catch (RuntimeException ex) {
+            refreshing.remove(key);
+        }
+    }
+
+    private boolean isExpired(Entry<V> entry, long now) {
+        return now - entry.loadedAt >= ttlMillis + staleMillis;
+    }
+
+    private synchronized void evict() {
+        if (entries.size() <= maxEntries) {
+            return;
+        }
+        final long now = clock.millis();
+        entries.values().removeIf(entry -> {
+            final boolean expired = isExpired(entry, now);
+            if (expired) {
+                evictions.increment();
+            }
+            return expired;
+        });
+        final int target = maxEntries - maxEntries / 10;
+        final int excess = entries.size() - target;
+        if (excess > 0) {
+            entries.entrySet().stream()
+                    .sorted(Comparator.comparingLong(e -> e.getValue().loadedAt))
+                    .limit(excess)
+                    .map(Map.Entry::getKey)
+                    .forEach(key -> {
+                        if (entries.remove(key) != null) {
+                            evictions.increment();
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Receives the entries of {@link #forEachValid(EntryVisitor)}.
+     */
+    @FunctionalInterface
+    interface EntryVisitor<K, V> {
+        void visit(K key, V value, long loadedAt);
+    }
+
+    /**
+     * Marks a load in progress whose key was invalidated meanwhile.
+     */
+    private static final class LoadStamp {
+        private volatile boolean invalidated;
+    }
+
+    private static final class Entry<V> {
+        private final V value;
+        private final long loadedAt;
+
+        private Entry(V value, long loadedAt) {
+            this.value = value;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
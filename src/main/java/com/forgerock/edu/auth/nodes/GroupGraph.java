@@ -0,0 +1,135 @@
+package com.forgerock.edu.auth.nodes;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The nesting of the groups of a realm: which groups contain which other groups.
+ * <p>The graph is immutable, a change of the members of a group produces a new graph. The ancestors of a
+ * group are computed once per depth limit and memoized, so expanding the memberships of a user costs a few
+ * map lookups. Cycles are tolerated: every group is visited at most once.</p>
+ */
+final class GroupGraph {
+
+    private static final GroupGraph EMPTY = new GroupGraph(ImmutableMap.of(), ImmutableMap.of());
+
+    private final ImmutableMap<String, ImmutableSet<String>> childrenByGroup;
+    private final ImmutableMap<String, ImmutableSet<String>> parentsByGroup;
+    private final ConcurrentMap<Integer, ConcurrentMap<String, Set<String>>> ancestorsByDepth = new ConcurrentHashMap<>();
+
+    private GroupGraph(ImmutableMap<String, ImmutableSet<String>> childrenByGroup,
+            ImmutableMap<String, ImmutableSet<String>> parentsByGroup) {
+        this.childrenByGroup = childrenByGroup;
+        this.parentsByGroup = parentsByGroup;
+    }
+
+    /**
+     * @return a graph without nesting.
+     */
+    static GroupGraph empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Creates the graph of the given nesting.
+     *
+     * @param childrenByGroup the groups directly contained by each group.
+     * @return the graph.
+     */
+    static GroupGraph of(Map<String, ? extends Set<String>> childrenByGroup) {
+        final ImmutableMap.Builder<String, ImmutableSet<String>> children = ImmutableMap.builder();
+        final Map<String, Set<String>> parents = new HashMap<>();
+        childrenByGroup.forEach((group, groupChildren) -> {
+            if (!groupChildren.isEmpty()) {
+                children.put(group, ImmutableSet.copyOf(groupChildren));
+                groupChildren.forEach(child -> parents.computeIfAbsent(child, c -> new HashSet<>()).add(group));
+            }
+        });
+        final ImmutableMap.Builder<String, ImmutableSet<String>> parentsBuilder = ImmutableMap.builder();
+        parents.forEach((child, groupParents) -> parentsBuilder.put(child, ImmutableSet.copyOf(groupParents)));
+        return new GroupGraph(children.build(), parentsBuilder.build());
+    }
+
+    /**
+     * Returns the given groups together with every group containing them, directly or through at most
+     * {@code maxDepth} levels of nesting.
+     *
+     * @param groups the direct groups.
+     * @param maxDepth the number of nesting levels followed, at least 1.
+     * @return immutable set of the groups and their ancestors.
+     */
+    Set<String> expand(Set<String> groups, int maxDepth) {
+        if (parentsByGroup.isEmpty()) {
+            return ImmutableSet.copyOf(groups);
+        }
+        final ConcurrentMap<String, Set<String>> memo =
+                ancestorsByDepth.computeIfAbsent(maxDepth, depth -> new ConcurrentHashMap<>());
+        final ImmutableSet.Builder<String> expanded = ImmutableSet.<String>builder().addAll(groups);
+        for (String group : groups) {
+            if (parentsByGroup.containsKey(group)) {
+                expanded.addAll(memo.computeIfAbsent(group, g -> ancestorsOf(g, maxDepth)));
+            }
+        }
+        return expanded.build();
+    }
+
+    /**
+     * Returns a graph where the given group directly contains the given groups only.
+     *
+     * @param group the changed group.
+     * @param children the groups the changed group now contains.
+     * @return the updated graph.
+     */
+    GroupGraph withChildren(String group, Set<String> children) {
+        final Map<String, Set<String>> updated = new HashMap<>(childrenByGroup);
+        updated.put(group, children);
+        return of(updated);
+    }
+
+    /**
+     * Returns a graph without the given group.
+     *
+     * @param group the deleted group.
+     * @return the updated graph.
+     */
+    GroupGraph withoutGroup(String group) {
+        final Map<String, Set<String>> updated = new HashMap<>();
+        childrenByGroup.forEach((parent, children) -> {
+            if (!parent.equals(group)) {
+                final Set<String> remaining = new HashSet<>(children);
+                remaining.remove(group);
+                updated.put(parent, remaining);
+            }
+        });
+        return of(updated);
+    }
+
+    private Set<String> ancestorsOf(String group, int maxDepth) {
+        final Set<String> visited = new HashSet<>();
+        visited.add(group);
+        Queue<String> level = new ArrayDeque<>(Collections.singleton(group));
+        for (int depth = 0; depth < maxDepth && !level.isEmpty(); depth++) {
+            final Queue<String> next = new ArrayDeque<>();
+            for (String current : level) {
+                for (String parent : parentsByGroup.getOrDefault(current, ImmutableSet.of())) {
+                    if (visited.add(parent)) {
+                        next.add(parent);
+                    }
+                }
+            }
+            level = next;
+        }
+        visited.remove(group);
+        return ImmutableSet.copyOf(visited);
+    }
+}
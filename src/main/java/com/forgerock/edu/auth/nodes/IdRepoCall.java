@@ -0,0 +1,22 @@
+package com.forgerock.edu.auth.nodes;
+
+import com.iplanet.sso.SSOException;
+import com.sun.identity.idm.IdRepoException;
+
+/**
+ * A call against the identity repository that produces a value.
+ *
+ * @param <V> type of the produced value
+ */
+@FunctionalInterface
+interface IdRepoCall<V> {
+
+    /**
+     * Performs the call.
+     *
+     * @return the produced value.
+     * @throws IdRepoException If an error occurs in the IdRepo
+     * @throws SSOException If the SSO token used for the call is invalid.
+     */
+    V call() throws IdRepoException, SSOException;
+}
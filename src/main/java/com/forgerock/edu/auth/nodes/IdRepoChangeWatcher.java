@@ -0,0 +1,165 @@
+package com.forgerock.edu.auth.nodes;
+
+import com.iplanet.sso.SSOException;
+import com.sun.identity.idm.IdEventListener;
+import com.sun.identity.idm.IdRepoException;
+import com.sun.identity.shared.debug.Debug;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Evicts the cached memberships and group names of {@link AmIdentityHelper} when the identity repository
+ * reports a change.
+ * <p>A listener is registered for a realm the first time the realm is used. A changed user only evicts the
+ * memberships of that user. A changed group evicts the group names of the realm and the memberships of
+ * every user of the group's organization, as its members are not known.</p>
+ */
+final class IdRepoChangeWatcher {
+
+    private static final Debug DEBUG = Debug.getInstance("SelectRoleNode");
+    private static final Runnable NOT_REGISTERED = () -> { };
+
+    private final IdRepoEventSource eventSource;
+    private final AmIdentityHelper identityHelper;
+    private final ConcurrentMap<String, Runnable> registrations = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    IdRepoChangeWatcher(IdRepoEventSource eventSource, AmIdentityHelper identityHelper) {
+        this.eventSource = eventSource;
+        this.identityHelper = identityHelper;
+    }
+
+    /**
+     * Starts listening to the changes of the given realm, unless already listening. A realm whose listener
+     * could not be registered is not tried again, its cache entries expire by their TTL only.
+     *
+     * @param realm the realm to listen to.
+     */
+    void watch(String realm) {
+        if (closed || realm == null || registrations.containsKey(realm)) {
+            return;
+        }
+        registrations.computeIfAbsent(realm, this::register);
+        if (closed) {
+            unregisterAll();
+        }
+    }
+
+    /**
+     * Unregisters every listener.
+     */
+    void close() {
+        closed = true;
+        unregisterAll();
+    }
+
+    private void unregisterAll() {
+        registrations.keySet().forEach(realm -> {
+            final Runnable registration = registrations.remove(realm);
+            if (registration != null) {
+                registration.run();
+            }
+        });
+    }
+
+    private Runnable register(String realm) {
+        try {
+            return eventSource.register(realm, new RealmListener(realm));
+        } catch (IdRepoException | SSOException | RuntimeException ex) {
+            DEBUG.warning("Unable to listen to the identity changes of realm " + realm, ex);
+            return NOT_REGISTERED;
+        }
+    }
+
+    private final class RealmListener implements IdEventListener {
+        private final String realm;
+
+        private RealmListener(String realm) {
+            this.realm = realm;
+        }
+
+        @Override
+        public void identityChanged(String universalId) {
+            evict(universalId);
+        }
+
+        @Override
+        public void identityDeleted(String universalId) {
+            evict(universalId);
+        }
+
+        @Override
+        public void identityRenamed(String universalId) {
+            evict(universalId);
+        }
+
+        @Override
+        public void allIdentitiesChanged() {
+            identityHelper.invalidateGroupNamesInRealm(realm);
+            identityHelper.invalidateNestedGroups(realm);
+            identityHelper.invalidateAllMemberships();
+        }
+
+        private void evict(String universalId) {
+            final UniversalId id = UniversalId.parse(universalId);
+            if (id == null) {
+                allIdentitiesChanged();
+            } else if ("user".equalsIgnoreCase(id.type)) {
+                identityHelper.invalidateMembershipsOf(universalId);
+            } else if ("group".equalsIgnoreCase(id.type)) {
+                identityHelper.invalidateGroupNamesInRealm(realm);
+                identityHelper.refreshNestedGroup(realm, universalId);
+                identityHelper.invalidateMembershipsInOrganization(id.organization);
+            }
+        }
+    }
+
+    /**
+     * The name, the type and the organization of a universal id such as
+     * {@code id=demo,ou=user,o=sub,ou=services,dc=example}.
+     */
+    static final class UniversalId {
+        final String name;
+        final String type;
+        final String organization;
+
+        private UniversalId(String name, String type, String organization) {
+            this.name = name;
+            this.type = type;
+            this.organization = organization;
+        }
+
+        /**
+         * @return the parsed universal id, or {@code null} if it does not look like one.
+         */
+        static UniversalId parse(String universalId) {
+            if (universalId == null) {
+                return null;
+            }
+            final int typeStart = nextComma(universalId, 0) + 1;
+            final int typeEnd = typeStart > 0 ? nextComma(universalId, typeStart) : -1;
+            if (typeEnd < 0
+                    || !universalId.regionMatches(true, 0, "id=", 0, 3)
+                    || !universalId.regionMatches(true, typeStart, "ou=", 0, 3)) {
+                return null;
+            }
+            return new UniversalId(
+                    universalId.substring(3, typeStart - 1).replaceAll("\\\\(.)", "$1"),
+                    universalId.substring(typeStart + 3, typeEnd),
+                    universalId.substring(typeEnd + 1));
+        }
+
+        private static int nextComma(String dn, int from) {
+            for (int i = from; i < dn.length(); i++) {
+                final char c = dn.charAt(i);
+                if (c == '\\') {
+                    i++;
+                } else if (c == ',') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
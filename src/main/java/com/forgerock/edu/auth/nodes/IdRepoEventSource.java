@@ -0,0 +1,22 @@
+package com.forgerock.edu.auth.nodes;
+
+import com.iplanet.sso.SSOException;
+import com.sun.identity.idm.IdEventListener;
+import com.sun.identity.idm.IdRepoException;
+
+/**
+ * A source of identity repository change notifications, one realm at a time.
+ */
+public interface IdRepoEventSource {
+
+    /**
+     * Registers a listener notified of the changes of the identities in the given realm.
+     *
+     * @param realm the realm to listen to.
+     * @param listener the listener to notify.
+     * @return a handle unregistering the listener when run.
+     * @throws IdRepoException If the listener could not be registered in the IdRepo
+     * @throws SSOException If the admin's single sign on token is invalid.
+     */
+    Runnable register(String realm, IdEventListener listener) throws IdRepoException, SSOException;
+}
@@ -0,0 +1,19 @@
+package com.forgerock.edu.auth.nodes;
+
+import com.sun.identity.idm.IdRepoException;
+
+/**
+ * Thrown when an identity repository call was not answered in time, or was not attempted at all because
+ * the repository is considered unavailable.
+ */
+public class IdRepoUnavailableException extends IdRepoException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param message the reason the repository is unavailable.
+     */
+    public IdRepoUnavailableException(String message) {
+        super(message);
+    }
+}
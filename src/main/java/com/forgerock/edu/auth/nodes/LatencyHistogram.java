@@ -0,0 +1,86 @@
+package com.forgerock.edu.auth.nodes;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with log-linear microsecond buckets.
+ * <p>Every power of two is split into four buckets, so a reported percentile is at most 25% above
+ * the real value. Latencies of 7 * 2^34 microseconds, about 33 hours, and above fall into the last bucket.</p>
+ */
+final class LatencyHistogram {
+
+    private static final int MAX_EXPONENT = 36;
+    private static final int BUCKETS = 4 * MAX_EXPONENT;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalMicros = new LongAdder();
+    private final LongAccumulator maxMicros = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos the latency in nanoseconds.
+     */
+    void record(long nanos) {
+        final long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(nanos, 0));
+        buckets.incrementAndGet(bucketOf(micros));
+        count.increment();
+        totalMicros.add(micros);
+        maxMicros.accumulate(micros);
+    }
+
+    /**
+     * @return a snapshot of the recorded latencies.
+     */
+    TimerStatistics statistics() {
+        final long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        return new TimerStatistics(total,
+                total == 0 ? 0 : (double) totalMicros.sum() / count.sum(),
+                percentile(snapshot, total, 0.50),
+                percentile(snapshot, total, 0.90),
+                percentile(snapshot, total, 0.99),
+                maxMicros.get());
+    }
+
+    private static long percentile(long[] snapshot, long total, double quantile) {
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(quantile * total);
+        long cumulative = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            cumulative += snapshot[i];
+            if (cumulative >= rank) {
+                return upperBoundOf(i);
+            }
+        }
+        return upperBoundOf(snapshot.length - 1);
+    }
+
+    static int bucketOf(long micros) {
+        if (micros < 4) {
+            return (int) micros;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        final int subBucket = (int) ((micros >>> (exponent - 2)) & 3);
+        return Math.min(4 * (exponent - 1) + subBucket, BUCKETS - 1);
+    }
+
+    static long upperBoundOf(int bucket) {
+        if (bucket < 4) {
+            return bucket;
+        }
+        final int exponent = bucket / 4 + 1;
+        final int subBucket = bucket % 4;
+        return ((4L + subBucket + 1) << (exponent - 2)) - 1;
+    }
+}
@@ -0,0 +1,94 @@
+package com.forgerock.edu.auth.nodes;
+
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * Settings of the group membership cache used by a {@link SelectRoleNode}.
+ * <p>Nodes configured with equal settings share the same cache.</p>
+ */
+public final class MembershipCacheSettings {
+
+    private static final MembershipCacheSettings DISABLED =
+            new MembershipCacheSettings(false, Duration.ZERO, Duration.ZERO, 0);
+
+    private final boolean enabled;
+    private final Duration ttl;
+    private final Duration staleWindow;
+    private final int maxEntries;
+
+    private MembershipCacheSettings(boolean enabled, Duration ttl, Duration staleWindow, int maxEntries) {
+        this.enabled = enabled;
+        this.ttl = ttl;
+        this.staleWindow = staleWindow;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return settings that bypass the membership cache.
+     */
+    public static MembershipCacheSettings disabled() {
+        return DISABLED;
+    }
+
+    /**
+     * Creates settings of an enabled membership cache.
+     *
+     * @param ttl how long the memberships of a user are served after they were loaded.
+     * @param staleWindow how long expired memberships are still served while they are reloaded.
+     * @param maxEntries the maximum number of users whose memberships are cached.
+     * @return the settings.
+     * @throws IllegalArgumentException if the ttl is not positive, the stale window is negative
+     *  or maxEntries is not positive.
+     */
+    public static MembershipCacheSettings of(Duration ttl, Duration staleWindow, int maxEntries) {
+        if (ttl.isNegative() || ttl.isZero() || staleWindow.isNegative() || maxEntries <= 0) {
+            throw new IllegalArgumentException("Invalid membership cache settings: ttl=" + ttl
+                    + ", staleWindow=" + staleWindow + ", maxEntries=" + maxEntries);
+        }
+        return new MembershipCacheSettings(true, ttl, staleWindow, maxEntries);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public Duration getTtl() {
+        return ttl;
+    }
+
+    public Duration getStaleWindow() {
+        return staleWindow;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof MembershipCacheSettings)) {
+            return false;
+        }
+        final MembershipCacheSettings that = (MembershipCacheSettings) o;
+        return enabled == that.enabled
+                && maxEntries == that.maxEntries
+                && ttl.equals(that.ttl)
+                && staleWindow.equals(that.staleWindow);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(enabled, ttl, staleWindow, maxEntries);
+    }
+
+    @Override
+    public String toString() {
+        return enabled
+                ? "MembershipCacheSettings{ttl=" + ttl + ", staleWindow=" + staleWindow + ", maxEntries=" + maxEntries + "}"
+                : "MembershipCacheSettings{disabled}";
+    }
+}
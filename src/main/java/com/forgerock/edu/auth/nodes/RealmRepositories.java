@@ -0,0 +1,132 @@
+package com.forgerock.edu.auth.nodes;
+
+import com.iplanet.sso.SSOException;
+import com.iplanet.sso.SSOToken;
+import com.iplanet.sso.SSOTokenManager;
+import com.sun.identity.idm.AMIdentityRepository;
+import com.sun.identity.idm.IdRepoException;
+import com.sun.identity.security.AdminTokenAction;
+
+import java.security.AccessController;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The admin token and the {@link AMIdentityRepository} of each realm, created lazily and reused by the
+ * {@link AmIdentityHelper} instead of being created for every call.
+ * <p>The admin token is checked with the {@link SSOTokenManager} at most once per check interval, and is
+ * looked up again once it is no longer valid. The repository of a realm is rebuilt when the admin token it was
+ * created with was replaced, or when it was dropped after a failure, e.g. because the realm was deleted.</p>
+ */
+final class RealmRepositories {
+
+    private final Clock clock;
+    private final long tokenCheckIntervalMillis;
+    private final ConcurrentMap<String, Handle> handles = new ConcurrentHashMap<>();
+    private final LongAdder adminTokenLookups = new LongAdder();
+    private final LongAdder repositoryConstructions = new LongAdder();
+    private volatile SSOToken adminToken;
+    private volatile long adminTokenCheckedAt;
+
+    /**
+     * @param clock the clock timing the admin token checks.
+     * @param tokenCheckInterval how long the admin token is used without checking it again.
+     */
+    RealmRepositories(Clock clock, Duration tokenCheckInterval) {
+        this.clock = clock;
+        this.tokenCheckIntervalMillis = tokenCheckInterval.toMillis();
+    }
+
+    /**
+     * @return the admin token, looked up again if it is no longer valid.
+     */
+    SSOToken adminToken() {
+        final SSOToken token = adminToken;
+        final long now = clock.millis();
+        if (token != null) {
+            if (now - adminTokenCheckedAt < tokenCheckIntervalMillis) {
+                return token;
+            }
+            if (isValid(token)) {
+                adminTokenCheckedAt = now;
+                return token;
+            }
+        }
+        synchronized (this) {
+            if (adminToken != token && adminToken != null) {
+                return adminToken;
+            }
+            final SSOToken fresh = AccessController.doPrivileged(AdminTokenAction.getInstance());
+            adminTokenLookups.increment();
+            adminTokenCheckedAt = now;
+            adminToken = fresh;
+            return fresh;
+        }
+    }
+
+    /**
+     * @return the repository of the given realm, created with the current admin token.
+     * @throws IdRepoException If the repository of the realm could not be created
+     * @throws SSOException If the admin's single sign on token is invalid.
+     */
+    AMIdentityRepository repository(String realm) throws IdRepoException, SSOException {
+        final SSOToken token = adminToken();
+        final Handle handle = handles.get(realm);
+        if (handle != null && handle.adminToken == token) {
+            return handle.repository;
+        }
+        final Handle created = new Handle(token, new AMIdentityRepository(realm, token));
+        repositoryConstructions.increment();
+        handles.put(realm, created);
+        return created.repository;
+    }
+
+    /**
+     * Drops the repository of the given realm, the next call creates it again.
+     */
+    void invalidate(String realm) {
+        handles.remove(realm);
+    }
+
+    /**
+     * Drops the admin token, the next call looks it up again and rebuilds the repositories.
+     */
+    void invalidateAdminToken() {
+        adminToken = null;
+    }
+
+    /**
+     * @return the number of admin token lookups so far.
+     */
+    long adminTokenLookupCount() {
+        return adminTokenLookups.sum();
+    }
+
+    /**
+     * @return the number of repositories created so far.
+     */
+    long repositoryConstructionCount() {
+        return repositoryConstructions.sum();
+    }
+
+    private static boolean isValid(SSOToken token) {
+        try {
+            return SSOTokenManager.getInstance().isValidToken(token);
+        } catch (SSOException ex) {
+            return false;
+        }
+    }
+
+    private static final class Handle {
+        private final SSOToken adminToken;
+        private final AMIdentityRepository repository;
+
+        private Handle(SSOToken adminToken, AMIdentityRepository repository) {
+            this.adminToken = adminToken;
+            this.repository = repository;
+        }
+    }
+}
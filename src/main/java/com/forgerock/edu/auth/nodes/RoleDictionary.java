@@ -0,0 +1,98 @@
+package com.forgerock.edu.auth.nodes;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Maps the role names of a realm to dense integer ids, so the cached roles of every user can be held as a
+ * compact {@link RoleSet} sharing a single copy of each name.
+ * <p>Ids are assigned on first use and never reused, the dictionary only grows: it is only given group names,
+ * which are bounded by the groups of the realm, never values of user attributes. Once it holds its maximum
+ * number of names, new names are not assigned an id and the sets containing them are not encoded.</p>
+ */
+final class RoleDictionary {
+
+    private final int maxRoles;
+    private final ConcurrentMap<String, Integer> idByName = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[16];
+    private int size;
+
+    /**
+     * @param maxRoles the maximum number of names the dictionary assigns an id to.
+     */
+    RoleDictionary(int maxRoles) {
+        this.maxRoles = maxRoles;
+    }
+
+    /**
+     * @return the id of the given name, or -1 if it was not assigned one.
+     */
+    int idOf(String name) {
+        final Integer id = idByName.get(name);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @return the id of the given name, assigning the next one if needed, or -1 if the dictionary is full.
+     */
+    int intern(String name) {
+        final Integer id = idByName.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            final Integer assigned = idByName.get(name);
+            if (assigned != null) {
+                return assigned;
+            }
+            if (size >= maxRoles) {
+                return -1;
+            }
+            if (size == names.length) {
+                names = Arrays.copyOf(names, Math.min(Math.max(16, size * 2), maxRoles));
+            }
+            // the name is stored before its id is published, so a reader holding the id finds it
+            names[size] = name;
+            idByName.put(name, size);
+            return size++;
+        }
+    }
+
+    /**
+     * @return the name of the given id.
+     */
+    String nameOf(int id) {
+        return names[id];
+    }
+
+    /**
+     * @return the number of names assigned an id.
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Encodes the given role names.
+     *
+     * @param roleNames the role names of a user.
+     * @return the compact set of the names, or {@code null} if the dictionary is full and one of them has no id.
+     */
+    RoleSet encode(Collection<String> roleNames) {
+        final int[] ids = new int[roleNames.size()];
+        int count = 0;
+        for (String roleName : roleNames) {
+            if (roleName == null) {
+                return null;
+            }
+            final int id = intern(roleName);
+            if (id < 0) {
+                return null;
+            }
+            ids[count++] = id;
+        }
+        return RoleSet.of(this, ids, count);
+    }
+}
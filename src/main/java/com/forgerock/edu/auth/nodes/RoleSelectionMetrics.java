@@ -0,0 +1,263 @@
+package com.forgerock.edu.auth.nodes;
+
+import com.sun.identity.shared.debug.Debug;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency timers and outcome counters of the {@link SelectRoleNode} and of the {@link AmIdentityHelper}
+ * directory calls.
+ * <p>The metrics are published as the {@value #OBJECT_NAME} MXBean of the platform MBean server, which
+ * is where the AM monitoring tools collect them from. Setting the {@value #ENABLED_PROPERTY} system
+ * property to {@code false} turns every method into a no-op that does not even read the clock.</p>
+ */
+@Singleton
+public class RoleSelectionMetrics implements RoleSelectionMetricsMXBean {
+
+    /**
+     * Turns the metrics on or off, they are on by default.
+     */
+    static final String ENABLED_PROPERTY = "com.forgerock.edu.selectrole.metrics.enabled";
+    static final String OBJECT_NAME = "com.forgerock.edu.selectrole:type=RoleSelectionMetrics";
+    private static final int MAX_SELECTABLE_ROLE_COUNT = 10;
+    private static final RoleSelectionMetrics NOOP = new RoleSelectionMetrics(false);
+    private static final Debug DEBUG = Debug.getInstance("SelectRoleNode");
+
+    /**
+     * The timed phases.
+     */
+    public enum Phase {
+        /** Resolving the user's identity. */
+        GET_IDENTITY,
+        /** Calculating the selectable roles, including the membership lookup. */
+        CALCULATE_SELECTABLE_ROLES,
+        /** Processing the callbacks sent back by the client. */
+        CALLBACK_HANDLING,
+        /** Directory call: the group memberships of a user. */
+        MEMBERSHIP_LOOKUP,
+        /** Directory call: the groups of a realm. */
+        GROUP_SEARCH
+    }
+
+    /**
+     * The branches of the node.
+     */
+    public enum Outcome {
+        /** No selectable role, the default role was selected. */
+        DEFAULT_ROLE,
+        /** A single selectable role, it was selected without asking the user. */
+        AUTO_SELECT,
+        /** Several selectable roles, a ChoiceCallback was sent. */
+        CHOICE_PROMPT,
+        /** An invalid choice was received, the ChoiceCallback was sent again with a warning. */
+        WARNING_REPROMPT,
+        /** A valid choice was received and the selected role was set. */
+        SELECTED,
+        /** Several selectable roles, the role the user selected last time was selected without asking. */
+        REMEMBERED,
+        /**
+         * The identity repository was unavailable, the roles were selected from the last cached memberships
+         * or the default role was selected. Counted in addition to the outcome that followed.
+         */
+        DEGRADED
+    }
+
+    private final boolean enabled;
+    private final LatencyHistogram[] timers;
+    private final LongAdder[] outcomes;
+    private final LongAdder[] selectableRoleCounts;
+    private final LongAdder warmupCompleted = new LongAdder();
+    private final LongAdder warmupFailed = new LongAdder();
+    private volatile long warmupTotal;
+    private volatile long warmupDurationMillis = -1;
+    private volatile boolean warmupAborted;
+
+    @Inject
+    public RoleSelectionMetrics() {
+        this(Boolean.parseBoolean(System.getProperty(ENABLED_PROPERTY, "true")));
+        if (enabled) {
+            register();
+        }
+    }
+
+    RoleSelectionMetrics(boolean enabled) {
+        this.enabled = enabled;
+        this.timers = new LatencyHistogram[Phase.values().length];
+        for (int i = 0; i < timers.length; i++) {
+            timers[i] = new LatencyHistogram();
+        }
+        this.outcomes = newCounters(Outcome.values().length);
+        this.selectableRoleCounts = newCounters(MAX_SELECTABLE_ROLE_COUNT + 1);
+    }
+
+    /**
+     * @return metrics that record nothing.
+     */
+    public static RoleSelectionMetrics noop() {
+        return NOOP;
+    }
+
+    /**
+     * @return whether the metrics record anything.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts timing a phase.
+     *
+     * @return the start time to pass to {@link #stop(Phase, long)}.
+     */
+    public long start() {
+        return enabled ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * Records the latency of a phase.
+     *
+     * @param phase the timed phase.
+     * @param start the value returned by {@link #start()} when the phase started.
+     */
+    public void stop(Phase phase, long start) {
+        if (enabled) {
+            timers[phase.ordinal()].record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Counts a branch taken by the node.
+     */
+    public void outcome(Outcome outcome) {
+        if (enabled) {
+            outcomes[outcome.ordinal()].increment();
+        }
+    }
+
+    /**
+     * Records the number of selectable roles found for a user.
+     */
+    public void selectableRoles(int count) {
+        if (enabled) {
+            selectableRoleCounts[Math.min(count, MAX_SELECTABLE_ROLE_COUNT)].increment();
+        }
+    }
+
+    /**
+     * Records the start of a cache warmup.
+     *
+     * @param total the number of realms and users to warm up.
+     */
+    public void warmupStarted(int total) {
+        if (enabled) {
+            warmupTotal = total;
+            warmupDurationMillis = -1;
+            warmupAborted = false;
+            warmupCompleted.reset();
+            warmupFailed.reset();
+        }
+    }
+
+    /**
+     * Counts a realm or user warmed up, or failed to warm up.
+     */
+    public void warmupStep(boolean succeeded) {
+        if (enabled) {
+            (succeeded ? warmupCompleted : warmupFailed).increment();
+        }
+    }
+
+    /**
+     * Records the end of a cache warmup.
+     *
+     * @param durationMillis how long the warmup took.
+     * @param aborted whether the warmup was stopped before it went through every realm and user.
+     */
+    public void warmupFinished(long durationMillis, boolean aborted) {
+        if (enabled) {
+            warmupAborted = aborted;
+            warmupDurationMillis = durationMillis;
+        }
+    }
+
+    /**
+     * @return the latency statistics of the given phase.
+     */
+    public TimerStatistics phaseLatency(Phase phase) {
+        return timers[phase.ordinal()].statistics();
+    }
+
+    /**
+     * @return how many times the given branch was taken.
+     */
+    public long outcomeCount(Outcome outcome) {
+        return outcomes[outcome.ordinal()].sum();
+    }
+
+    @Override
+    public Map<String, TimerStatistics> getPhaseLatencies() {
+        final Map<String, TimerStatistics> latencies = new LinkedHashMap<>();
+        for (Phase phase : Phase.values()) {
+            latencies.put(phase.name(), phaseLatency(phase));
+        }
+        return latencies;
+    }
+
+    @Override
+    public Map<String, Long> getOutcomeCounts() {
+        final Map<String, Long> counts = new LinkedHashMap<>();
+        for (Outcome outcome : Outcome.values()) {
+            counts.put(outcome.name(), outcomeCount(outcome));
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getSelectableRoleCounts() {
+        final Map<String, Long> counts = new LinkedHashMap<>();
+        for (int i = 0; i < selectableRoleCounts.length; i++) {
+            counts.put(i < MAX_SELECTABLE_ROLE_COUNT ? String.valueOf(i) : i + "+", selectableRoleCounts[i].sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getWarmupStatus() {
+        final Map<String, Long> status = new LinkedHashMap<>();
+        status.put("total", warmupTotal);
+        status.put("completed", warmupCompleted.sum());
+        status.put("failed", warmupFailed.sum());
+        status.put("durationMillis", warmupDurationMillis);
+        status.put("aborted", warmupAborted ? 1L : 0L);
+        return status;
+    }
+
+    private void register() {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException ex) {
+            DEBUG.warning("Unable to register the role selection metrics MXBean", ex);
+        }
+    }
+
+    private static LongAdder[] newCounters(int size) {
+        final LongAdder[] counters = new LongAdder[size];
+        for (int i = 0; i < size; i++) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+}
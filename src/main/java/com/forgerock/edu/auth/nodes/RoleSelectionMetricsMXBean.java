@@ -0,0 +1,32 @@
+package com.forgerock.edu.auth.nodes;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link RoleSelectionMetrics}.
+ */
+public interface RoleSelectionMetricsMXBean {
+
+    /**
+     * @return the latency statistics of each phase, keyed by {@link RoleSelectionMetrics.Phase} name.
+     */
+    Map<String, TimerStatistics> getPhaseLatencies();
+
+    /**
+     * @return how many times each branch of the node was taken, keyed by {@link RoleSelectionMetrics.Outcome} name.
+     */
+    Map<String, Long> getOutcomeCounts();
+
+    /**
+     * @return how many first invocations found a given number of selectable roles, the last key counting
+     * every invocation with at least that many roles.
+     */
+    Map<String, Long> getSelectableRoleCounts();
+
+    /**
+     * @return the progress of the last cache warmup: the number of realms and users to warm up, the number
+     * completed and failed so far, its duration, -1 while it is running, and 1 as aborted if it was stopped
+     * before the end.
+     */
+    Map<String, Long> getWarmupStatus();
+}
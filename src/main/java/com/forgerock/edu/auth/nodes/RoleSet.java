@@ -0,0 +1,150 @@
+package com.forgerock.edu.auth.nodes;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable set of role names encoded by a {@link RoleDictionary}, as held by the membership caches.
+ * <p>The set keeps the ids of its names either as a bitset or as a sorted array, whichever is smaller: the
+ * bitset when the user has many of the roles of the realm, the array when the realm has many more roles than
+ * the user. The names are iterated in the order of their ids.</p>
+ */
+final class RoleSet extends AbstractSet<String> {
+
+    private final RoleDictionary dictionary;
+    private final long[] words;
+    private final int[] ids;
+    private final int size;
+
+    private RoleSet(RoleDictionary dictionary, long[] words, int[] ids, int size) {
+        this.dictionary = dictionary;
+        this.words = words;
+        this.ids = ids;
+        this.size = size;
+    }
+
+    /**
+     * Creates the set of the given ids, which may contain duplicates.
+     *
+     * @param dictionary the dictionary that assigned the ids.
+     * @param ids the ids, only the first {@code count} are used, the array is sorted in place.
+     * @param count the number of ids.
+     * @return the set of the ids.
+     */
+    static RoleSet of(RoleDictionary dictionary, int[] ids, int count) {
+        Arrays.sort(ids, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || ids[distinct - 1] != ids[i]) {
+                ids[distinct++] = ids[i];
+            }
+        }
+        final int wordCount = distinct == 0 ? 0 : (ids[distinct - 1] >>> 6) + 1;
+        if ((long) wordCount * Long.BYTES < (long) distinct * Integer.BYTES) {
+            final long[] words = new long[wordCount];
+            for (int i = 0; i < distinct; i++) {
+                words[ids[i] >>> 6] |= 1L << ids[i];
+            }
+            return new RoleSet(dictionary, words, null, distinct);
+        }
+        return new RoleSet(dictionary, null, Arrays.copyOf(ids, distinct), distinct);
+    }
+
+    /**
+     * @return the dictionary that assigned the ids of this set.
+     */
+    RoleDictionary dictionary() {
+        return dictionary;
+    }
+
+    /**
+     * @return whether the ids are held as a bitset, see {@link #words()}, rather than as a sorted array,
+     * see {@link #ids()}.
+     */
+    boolean isBitset() {
+        return words != null;
+    }
+
+    /**
+     * @return the bitset of the ids, not to be modified, or {@code null} if they are held as an array.
+     */
+    long[] words() {
+        return words;
+    }
+
+    /**
+     * @return the sorted ids, not to be modified, or {@code null} if they are held as a bitset.
+     */
+    int[] ids() {
+        return ids;
+    }
+
+    /**
+     * @return whether this set contains the name of the given id.
+     */
+    boolean containsId(int id) {
+        if (id < 0) {
+            return false;
+        }
+        if (words != null) {
+            return (id >>> 6) < words.length && (words[id >>> 6] & (1L << id)) != 0;
+        }
+        return Arrays.binarySearch(ids, id) >= 0;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof String && containsId(dictionary.idOf((String) o));
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            private int index;
+            private int nextId = words != null ? nextSetBit(0) : -1;
+
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final int id;
+                if (words != null) {
+                    id = nextId;
+                    nextId = nextSetBit(id + 1);
+                } else {
+                    id = ids[index];
+                }
+                index++;
+                return dictionary.nameOf(id);
+            }
+        };
+    }
+
+    private int nextSetBit(int from) {
+        int wordIndex = from >>> 6;
+        if (wordIndex >= words.length) {
+            return -1;
+        }
+        long word = words[wordIndex] & (-1L << from);
+        while (word == 0) {
+            if (++wordIndex == words.length) {
+                return -1;
+            }
+            word = words[wordIndex];
+        }
+        return (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+    }
+}
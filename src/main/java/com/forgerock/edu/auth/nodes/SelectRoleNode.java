@@ -17,13 +17,17 @@ package com.forgerock.edu.auth.nodes;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.inject.assistedinject.Assisted;
 import com.iplanet.sso.SSOException;
 import com.sun.identity.idm.AMIdentity;
 import com.sun.identity.idm.IdRepoException;
 import com.sun.identity.idm.IdUtils;
 import com.sun.identity.shared.debug.Debug;
-import org.forgerock.guice.core.InjectorHolder;
+import org.forgerock.json.JsonValue;
 import org.forgerock.openam.annotations.sm.Attribute;
 import org.forgerock.openam.auth.node.api.Action;
 import org.forgerock.openam.auth.node.api.Node;
@@ -35,9 +39,18 @@ import javax.inject.Inject;
 import javax.security.auth.callback.Callback;
 import javax.security.auth.callback.ChoiceCallback;
 import javax.security.auth.callback.TextOutputCallback;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.object;
 import static org.forgerock.openam.auth.node.api.Action.send;
 import static org.forgerock.openam.auth.node.api.SharedStateConstants.REALM;
 import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
@@ -58,8 +71,47 @@ import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
         configValidator = SelectRoleNodeConfigValidator.class)
 public class SelectRoleNode extends SingleOutcomeNode {
 
+    /**
+     * Shared state key under which the selectable roles offered in the ChoiceCallback are kept
+     * until the client sends back its choice.
+     */
+    static final String SELECTABLE_ROLES_STATE_KEY = "selectRoleNode.selectableRoles";
+    /**
+     * Shared state key that, set to {@code true} by a previous node, makes the node ask for the role even if
+     * the user's last selected role is remembered.
+     */
+    static final String CHANGE_ROLE_STATE_KEY = "selectRoleNode.changeRole";
+    /**
+     * Request parameter that, set to {@code true}, makes the node ask for the role even if the user's last
+     * selected role is remembered.
+     */
+    static final String CHANGE_ROLE_PARAMETER = "changeRole";
+    /**
+     * Transient state key under which the universal id of the user is kept for the rest of the request.
+     */
+    static final String UNIVERSAL_ID_STATE_KEY = "selectRoleNode.universalId";
+    /**
+     * The secret keying the MAC of the selectable roles kept in the shared state. It should be the same on every
+     * AM server of a cluster, otherwise a choice submitted to another server recalculates the roles. When not
+     * set, each server uses a random key.
+     */
+    static final String SELECTABLE_ROLES_KEY_PROPERTY = "com.forgerock.edu.selectrole.selectableRoles.macKey";
+    private static final String ROLES_FIELD = "roles";
+    private static final String DIGEST_FIELD = "digest";
+    private static final HashFunction SELECTABLE_ROLES_MAC = selectableRolesMac();
+
     private final Config config;
     private final AmIdentityHelper identityHelper;
+    private final MembershipCacheSettings membershipCacheSettings;
+    private final Duration idRepoTimeout;
+    private final int nestedGroupMaxDepth;
+    private final CandidateRoleMatcher configuredRoleMatcher;
+    private final Set<String> checkedCandidateRoles;
+    private final RoleSource roleSource;
+    private final String roleAttribute;
+    private final boolean caseInsensitiveRoleMatching;
+    private volatile RealmRoleMatcher realmRoleMatcher;
+    private final RoleSelectionMetrics metrics;
     private final static Debug DEBUG = Debug.getInstance("SelectRoleNode");
 
     /**
@@ -74,19 +126,139 @@ public class SelectRoleNode extends SingleOutcomeNode {
             return "ContactReader";
         }
 
-        @Attribute(order = 200, requiredValue = true)
+        /**
+         * The selectable group names. When left empty, every group of the node's realm is selectable; the
+         * group names are then resolved by the node for its own realm, through the realm group cache of
+         * {@link AmIdentityHelper}, instead of being searched when the configuration is read.
+         */
+        @Attribute(order = 200)
         default Set<String> candidateRoles() {
-            try {
-                // InjectorHolder.getInstance is used to obtain a reference to a Guice managed object
-                // This way the injector will instantiate AmIdentityHelper and if it has further dependencies, it will inject those.
-                final AmIdentityHelper identityHelper = InjectorHolder.getInstance(AmIdentityHelper.class);
-                // DONE Ch2L2Ex2 Task5: Query the group names within the top level realm ("/") by invoking the identityHelper's appropriate method
-                // DONE Ch2L2Ex2 Task5: and return with this instead of static values.
-                return identityHelper.findAllGroupNamesInRealm("/");
-            } catch (SSOException | IdRepoException ex) {
-                DEBUG.error("Error during retrieving groups in root realm", ex);
-                return ImmutableSet.of("ContactReader", "ContactAdmin", "ProfileAdmin");
-            }
+            return ImmutableSet.of();
+        }
+
+        @Attribute(order = 250)
+        default boolean caseInsensitiveRoleMatching() {
+            return false;
+        }
+
+        @Attribute(order = 300)
+        default boolean membershipCacheEnabled() {
+            return false;
+        }
+
+        @Attribute(order = 400)
+        default long membershipCacheTtlSeconds() {
+            return 60;
+        }
+
+        @Attribute(order = 500)
+        default int membershipCacheMaxEntries() {
+            return 10000;
+        }
+
+        @Attribute(order = 600)
+        default long membershipCacheStaleSeconds() {
+            return 0;
+        }
+
+        /**
+         * Checks the user's membership of each candidate role instead of fetching every group of the user.
+         * Only applies when candidate roles are configured.
+         */
+        @Attribute(order = 700)
+        default boolean candidateMembershipCheck() {
+            return false;
+        }
+
+        /**
+         * How long a single identity repository call may take, in milliseconds. Zero disables the limit.
+         */
+        @Attribute(order = 800)
+        default long idRepoTimeoutMillis() {
+            return 0;
+        }
+
+        /**
+         * When the identity repository is unavailable, selects from the last cached memberships of the user,
+         * or the default role, instead of failing the authentication.
+         */
+        @Attribute(order = 900)
+        default boolean degradeToDefaultRole() {
+            return false;
+        }
+
+        /**
+         * Makes the groups containing the user's groups, through nested groups, selectable as well.
+         * Takes precedence over {@link #candidateMembershipCheck()}, as the nesting is followed from every
+         * direct group of the user.
+         */
+        @Attribute(order = 1000)
+        default boolean nestedGroupResolution() {
+            return false;
+        }
+
+        /**
+         * The number of nesting levels followed by {@link #nestedGroupResolution()}.
+         */
+        @Attribute(order = 1100)
+        default int nestedGroupMaxDepth() {
+            return 5;
+        }
+
+        /**
+         * Selects the role the user selected last time without asking, as long as it is still selectable.
+         * The user can still choose another role with the {@value #CHANGE_ROLE_PARAMETER} request parameter.
+         */
+        @Attribute(order = 1200)
+        default boolean rememberSelectedRole() {
+            return false;
+        }
+
+        /**
+         * The profile attribute storing the last selected role. When empty, the role is remembered in memory,
+         * by each AM server separately.
+         */
+        @Attribute(order = 1300)
+        default String selectedRoleAttribute() {
+            return "";
+        }
+
+        /**
+         * Where the roles of the user are read from.
+         */
+        @Attribute(order = 1400)
+        default RoleSource roleSource() {
+            return RoleSource.GROUP_MEMBERSHIPS;
+        }
+
+        /**
+         * The profile attribute holding the roles of the user, such as {@code isMemberOf}. Required when the
+         * {@link #roleSource()} reads an attribute.
+         */
+        @Attribute(order = 1500)
+        default String roleAttribute() {
+            return "";
+        }
+    }
+
+    /**
+     * The sources the roles of a user are read from. Whichever source is used, the roles are matched against
+     * the candidate roles, and cached in the membership cache.
+     */
+    public enum RoleSource {
+        /** The groups the user is a member of. */
+        GROUP_MEMBERSHIPS,
+        /** The values of the role attribute of the user, a single attribute read. */
+        ATTRIBUTE,
+        /** The groups the user is a member of and the values of the role attribute, merged. */
+        GROUP_MEMBERSHIPS_AND_ATTRIBUTE;
+
+        boolean readsGroupMemberships() {
+            return this != ATTRIBUTE;
+        }
+
+        boolean readsAttribute() {
+            return this != GROUP_MEMBERSHIPS;
         }
     }
 
@@ -94,16 +266,69 @@ public class SelectRoleNode extends SingleOutcomeNode {
      * Create the node.
      *
      * @param config The service config.
+     * @param identityHelper The identity repository queries.
+     * @param metrics The metrics the node records its phases and outcomes into.
      * @throws NodeProcessException If the configuration was not valid.
      */
     // DONE Ch2L2Ex2 Task4: Add an AMIdentityHelper reference to the constructor's parameter list
     // DONE Ch2L2Ex2 Task4:   It will be instantiated and injected automatically by Guice
     @Inject
-    public SelectRoleNode(@Assisted Config config, AmIdentityHelper identityHelper) throws NodeProcessException {
+    public SelectRoleNode(@Assisted Config config, AmIdentityHelper identityHelper, RoleSelectionMetrics metrics)
+            throws NodeProcessException {
         this.config = config;
         // DONE Ch2L2Ex2 Task4: Save the identityHelper reference into the instance variable named identityHelper
         // DONE Ch2L2Ex2 Task4:   Hint: this.identityHelper = identityHelper;
         this.identityHelper = identityHelper;
+        this.metrics = metrics;
+        this.membershipCacheSettings = membershipCacheSettingsOf(config);
+        if (config.idRepoTimeoutMillis() < 0) {
+            throw new NodeProcessException("idRepoTimeoutMillis should not be negative");
+        }
+        this.idRepoTimeout = Duration.ofMillis(config.idRepoTimeoutMillis());
+        if (config.nestedGroupResolution() && config.nestedGroupMaxDepth() < 1) {
+            throw new NodeProcessException("nestedGroupMaxDepth should be at least 1");
+        }
+        this.nestedGroupMaxDepth = config.nestedGroupResolution() ? config.nestedGroupMaxDepth() : 0;
+        this.roleSource = config.roleSource() == null ? RoleSource.GROUP_MEMBERSHIPS : config.roleSource();
+        if (roleSource.readsAttribute()
+                && (config.roleAttribute() == null || config.roleAttribute().trim().isEmpty())) {
+            throw new NodeProcessException("roleAttribute is required when the roles are read from an attribute");
+        }
+        this.roleAttribute = roleSource.readsAttribute() ? config.roleAttribute().trim() : null;
+        this.caseInsensitiveRoleMatching = config.caseInsensitiveRoleMatching();
+        final Set<String> candidateRoles = config.candidateRoles();
+        this.configuredRoleMatcher = candidateRoles == null || candidateRoles.isEmpty()
+                ? null
+                : new CandidateRoleMatcher(candidateRoles, caseInsensitiveRoleMatching);
+        this.checkedCandidateRoles = configuredRoleMatcher != null && config.candidateMembershipCheck()
+                && nestedGroupMaxDepth == 0
+                ? ImmutableSet.copyOf(candidateRoles)
+                : null;
+    }
+
+    /**
+     * Create the node without recording metrics.
+     *
+     * @param config The service config.
+     * @param identityHelper The identity repository queries.
+     * @throws NodeProcessException If the configuration was not valid.
+     */
+    public SelectRoleNode(Config config, AmIdentityHelper identityHelper) throws NodeProcessException {
+        this(config, identityHelper, RoleSelectionMetrics.noop());
+    }
+
+    private static MembershipCacheSettings membershipCacheSettingsOf(Config config) throws NodeProcessException {
+        if (!config.membershipCacheEnabled()) {
+            return MembershipCacheSettings.disabled();
+        }
+        try {
+            return MembershipCacheSettings.of(
+                    Duration.ofSeconds(config.membershipCacheTtlSeconds()),
+                    Duration.ofSeconds(config.membershipCacheStaleSeconds()),
+                    config.membershipCacheMaxEntries());
+        } catch (IllegalArgumentException ex) {
+            throw new NodeProcessException("Invalid membership cache configuration", ex);
+        }
     }
 
     // DONE Ch2L2Ex2 Task4: Remove this constructor, as this is just here to let the unit test class compile
@@ -116,17 +341,16 @@ public class SelectRoleNode extends SingleOutcomeNode {
         // DONE Ch2L2Ex2 Task7:   Hint: Use SharedStateConstants.USERNAME as the key.
         String username = context.sharedState.get(USERNAME).asString();
 
-        // DONE Ch2L2Ex2 Task7: Get the authenticated user's AMIdentity object by using identityHelper's getIdentity method.
-        // DONE Ch2L2Ex2 Task7:   Hint: Use identityHelper.getIdentity(String username, String realm) method
-        AMIdentity userIdentity = identityHelper.getIdentity(username, realm);
-
-        // DONE Ch2L2Ex2 Task7: Calculate selectable roles by calling calculateSelectableRoles method and store it in the selectableRoles variable.
-        String[] selectableRoles = calculateSelectableRoles(userIdentity);
-
-
         if (!context.hasCallbacks()) {
             // No callbacks, which means this is the first invocation
 
+            // DONE Ch2L2Ex2 Task7: Get the authenticated user's AMIdentity object by using identityHelper's getIdentity method.
+            // DONE Ch2L2Ex2 Task7:   Hint: Use identityHelper.getIdentity(String username, String realm) method
+            // DONE Ch2L2Ex2 Task7: Calculate selectable roles by calling calculateSelectableRoles method and store it in the selectableRoles variable.
+            final UserRoles userRoles = selectableRolesOf(context, username, realm);
+            String[] selectableRoles = userRoles.selectableRoles;
+            metrics.selectableRoles(selectableRoles.length);
+
             // DONE Ch2L2Ex2 Task7: Remove return goToNext().build() placeholder from the provided switch's
             // DONE Ch2L2Ex2 Task7:   default branch and implement the proper business logic:
             // DONE Ch2L2Ex2 Task7:   Based on the length of the selectableRoles array:
@@ -135,78 +359,116 @@ public class SelectRoleNode extends SingleOutcomeNode {
                 case 0:
                     // DONE Ch2L2Ex2 Task7:     When selectableRoles.length = 0
                     // DONE Ch2L2Ex2 Task7:       return gotoNextWithSelectedRole(config.defaultRole())
+                    context.sharedState.remove(SELECTABLE_ROLES_STATE_KEY);
+                    metrics.outcome(RoleSelectionMetrics.Outcome.DEFAULT_ROLE);
                     return gotoNextWithSelectedRole(config.defaultRole());
                 case 1:
                     // DONE Ch2L2Ex2 Task7:     When selectableRoles.length = 1
                     // DONE Ch2L2Ex2 Task7:       return gotoNextWithSelectedRole(selectedRole)
                     String selectedRole = selectableRoles[0];
+                    context.sharedState.remove(SELECTABLE_ROLES_STATE_KEY);
+                    metrics.outcome(RoleSelectionMetrics.Outcome.AUTO_SELECT);
                     return gotoNextWithSelectedRole(selectedRole);
                 default:
                     // DONE Ch2L2Ex2 Task7:     Otherwise
                     // DONE Ch2L2Ex2 Task7:       send back a ChoiceCallback instance with the selectable roles
                     // DONE Ch2L2Ex2 Task7:       Hint: use the sendCallbacks method and the createSelectRoleChoiceCallback method
+                    final Optional<String> lastSelectedRole = lastSelectedRole(context, userRoles.identity);
+                    if (lastSelectedRole.isPresent() && Arrays.asList(selectableRoles).contains(lastSelectedRole.get())) {
+                        // Roles offered by an earlier visit of the node must not answer a later choice
+                        context.sharedState.remove(SELECTABLE_ROLES_STATE_KEY);
+                        metrics.outcome(RoleSelectionMetrics.Outcome.REMEMBERED);
+                        return gotoNextWithSelectedRole(lastSelectedRole.get());
+                    }
+                    // The offered roles are remembered, so the selected index is resolved against
+                    // exactly the same array when the choice comes back.
+                    storeSelectableRoles(context, realm, username, selectableRoles);
+                    metrics.outcome(RoleSelectionMetrics.Outcome.CHOICE_PROMPT);
                     return sendCallbacks(createSelectRoleChoiceCallback(selectableRoles));
             }
 
         } else {
-            // The callbacks were filled out by the client and sent back
-            // Let's process it
-
-            // DONE Ch2L2Ex2 Task7: Find the ChoiceCallback in the context by invoking context.getCallback(ChoiceCallback.class)
-            // DONE Ch2L2Ex2 Task7:   and store it in the optionalChoiceCallback variable
-            Optional<ChoiceCallback> optionalChoiceCallback
-                    = context.getCallback(ChoiceCallback.class);
-
-            if (optionalChoiceCallback.isPresent()) {
-                // When the ChoiceCallback is present in the incoming request
-                //   (the authentication client submitted the user's choice)
-
-                // DONE Ch2L2Ex2 Task7: Remove the original line: return goToNext().build();
-                // DONE Ch2L2Ex2 Task7: Store the ChoiceCallback's selectedIndexes
-                // DONE Ch2L2Ex2 Task7:   in a variable named selectedIndexes.
-                // DONE Ch2L2Ex2 Task7:   Hint#1: use Optional.get() method to retrieve the ChoiceCallback reference
-                // DONE Ch2L2Ex2 Task7:   Hint#2: use ChoiceCallback.getSelectedIndexes() method to retrieve the selectedIndexes array
-                final int[] selectedIndexes = optionalChoiceCallback.get().getSelectedIndexes();
-
-                // DONE Ch2L2Ex2 Task7: Create two conditional branches based on the selectedIndexes array's length
-                if (selectedIndexes.length != 1) {
-                    // DONE Ch2L2Ex2 Task7:   When the selectedIndexes.length != 1
-                    // DONE Ch2L2Ex2 Task7:     send back two callbacks:
-                    // DONE Ch2L2Ex2 Task7:       1. a TextOutputCallback with a warning message: "You should select one and only one role!"
-                    // DONE Ch2L2Ex2 Task7:       2. a ChoiceCallback with the selectableRoles
-                    // DONE Ch2L2Ex2 Task7:     Hint#1: use the provided createWarning() and createSelectRoleChoiceCallback() methods
-                    // DONE Ch2L2Ex2 Task7:     Hint#2: return sendCallbacks(createWarning("...",createSelectRoleChoiceCallback(selectableRoles))
+            final long start = metrics.start();
+            try {
+                return processSubmittedChoice(context, realm, username);
+            } finally {
+                metrics.stop(RoleSelectionMetrics.Phase.CALLBACK_HANDLING, start);
+            }
+        }
+    }
+
+    private Action processSubmittedChoice(TreeContext context, String realm, String username) throws NodeProcessException {
+        // The callbacks were filled out by the client and sent back
+        // Let's process it
+
+        // DONE Ch2L2Ex2 Task7: Find the ChoiceCallback in the context by invoking context.getCallback(ChoiceCallback.class)
+        // DONE Ch2L2Ex2 Task7:   and store it in the optionalChoiceCallback variable
+        Optional<ChoiceCallback> optionalChoiceCallback
+                = context.getCallback(ChoiceCallback.class);
+
+        if (optionalChoiceCallback.isPresent()) {
+            // When the ChoiceCallback is present in the incoming request
+            //   (the authentication client submitted the user's choice)
+
+            // DONE Ch2L2Ex2 Task7: Remove the original line: return goToNext().build();
+            // DONE Ch2L2Ex2 Task7: Store the ChoiceCallback's selectedIndexes
+            // DONE Ch2L2Ex2 Task7:   in a variable named selectedIndexes.
+            // DONE Ch2L2Ex2 Task7:   Hint#1: use Optional.get() method to retrieve the ChoiceCallback reference
+            // DONE Ch2L2Ex2 Task7:   Hint#2: use ChoiceCallback.getSelectedIndexes() method to retrieve the selectedIndexes array
+            final int[] selectedIndexes = optionalChoiceCallback.get().getSelectedIndexes();
+
+            // Reuse the roles offered on the first invocation instead of querying the memberships again
+            final String[] selectableRoles = restoreSelectableRoles(context, realm, username);
+            if (selectableRoles.length == 0) {
+                // Nothing left to choose from, e.g. the roles had to be recalculated from a degraded lookup
+                context.sharedState.remove(SELECTABLE_ROLES_STATE_KEY);
+                metrics.outcome(RoleSelectionMetrics.Outcome.DEFAULT_ROLE);
+                return gotoNextWithSelectedRole(config.defaultRole());
+            }
+
+            // DONE Ch2L2Ex2 Task7: Create two conditional branches based on the selectedIndexes array's length
+            if (selectedIndexes.length != 1) {
+                // DONE Ch2L2Ex2 Task7:   When the selectedIndexes.length != 1
+                // DONE Ch2L2Ex2 Task7:     send back two callbacks:
+                // DONE Ch2L2Ex2 Task7:       1. a TextOutputCallback with a warning message: "You should select one and only one role!"
+                // DONE Ch2L2Ex2 Task7:       2. a ChoiceCallback with the selectableRoles
+                // DONE Ch2L2Ex2 Task7:     Hint#1: use the provided createWarning() and createSelectRoleChoiceCallback() methods
+                // DONE Ch2L2Ex2 Task7:     Hint#2: return sendCallbacks(createWarning("...",createSelectRoleChoiceCallback(selectableRoles))
+                metrics.outcome(RoleSelectionMetrics.Outcome.WARNING_REPROMPT);
+                return sendCallbacks(
+                        createWarning("You should select one and only one role!"),
+                        createSelectRoleChoiceCallback(selectableRoles));
+            } else {
+                // DONE Ch2L2Ex2 Task7: When the selectedIndexes.length = 1
+                // DONE Ch2L2Ex2 Task7:   Calculate the selectedIndex. Hint: use the only element in the selectedIndexes array.
+                int selectedIndex = selectedIndexes[0];
+
+                // DONE Ch2L2Ex2 Task7:   Check whether the selected index is negative or selectedIndex >= selectableRoles.length
+                // DONE Ch2L2Ex2 Task7:     In these cases send back a warning and the callbacks as before
+                // DONE Ch2L2Ex2 Task7:     The warning message should be something like this:
+                // DONE Ch2L2Ex2 Task7:       "Non-existing index is received, choose an existing one"
+                // DONE Ch2L2Ex2 Task7:     Hint: return sendCallbacks(createWarning("...",createSelectRoleChoiceCallback(selectableRoles))
+                if (selectedIndex < 0 || selectedIndex >= selectableRoles.length) {
+                    metrics.outcome(RoleSelectionMetrics.Outcome.WARNING_REPROMPT);
                     return sendCallbacks(
-                            createWarning("You should select one and only one role!"),
+                            createWarning("Non-existing index is received, choose an existing one"),
                             createSelectRoleChoiceCallback(selectableRoles));
-                } else {
-                    // DONE Ch2L2Ex2 Task7: When the selectedIndexes.length = 1
-                    // DONE Ch2L2Ex2 Task7:   Calculate the selectedIndex. Hint: use the only element in the selectedIndexes array.
-                    int selectedIndex = selectedIndexes[0];
-
-                    // DONE Ch2L2Ex2 Task7:   Check whether the selected index is negative or selectedIndex >= selectableRoles.length
-                    // DONE Ch2L2Ex2 Task7:     In these cases send back a warning and the callbacks as before
-                    // DONE Ch2L2Ex2 Task7:     The warning message should be something like this:
-                    // DONE Ch2L2Ex2 Task7:       "Non-existing index is received, choose an existing one"
-                    // DONE Ch2L2Ex2 Task7:     Hint: return sendCallbacks(createWarning("...",createSelectRoleChoiceCallback(selectableRoles))
-                    if (selectedIndex < 0 || selectedIndex >= selectableRoles.length) {
-                        return sendCallbacks(
-                                createWarning("Non-existing index is received, choose an existing one"),
-                                createSelectRoleChoiceCallback(selectableRoles));
-                    }
-                    // DONE Ch2L2Ex2 Task7:   Calculate the selectedRole by selecting it from the selectableRoles array by the selectedIndex.
-                    // DONE Ch2L2Ex2 Task7:     Hint: String selectedRole = selectableRoles[selectedIndex]
-                    String selectedRole = selectableRoles[selectedIndex];
-                    // DONE Ch2L2Ex2 Task7:   Set the selectedRole session property to the Action and go to the next node.
-                    // DONE Ch2L2Ex2 Task7:     Hint#1: use the gotoNextWithSelectedRole(selectedRole) method
-                    // DONE Ch2L2Ex2 Task7:     Hint#2: use the provided createWarning() and createSelectRoleChoiceCallback() methods
-                    return gotoNextWithSelectedRole(selectedRole);
                 }
-            } else {
-                // DONE Ch2L2Ex2 Task7: Instead of returning goToNext().build()
-                // DONE Ch2L2Ex2 Task7:   throw new NodeProcessException("Required ChoiceCallback is missing");
-                throw new NodeProcessException("Required ChoiceCallback is missing");
+                // DONE Ch2L2Ex2 Task7:   Calculate the selectedRole by selecting it from the selectableRoles array by the selectedIndex.
+                // DONE Ch2L2Ex2 Task7:     Hint: String selectedRole = selectableRoles[selectedIndex]
+                String selectedRole = selectableRoles[selectedIndex];
+                context.sharedState.remove(SELECTABLE_ROLES_STATE_KEY);
+                metrics.outcome(RoleSelectionMetrics.Outcome.SELECTED);
+                rememberSelectedRole(context, username, realm, selectedRole);
+                // DONE Ch2L2Ex2 Task7:   Set the selectedRole session property to the Action and go to the next node.
+                // DONE Ch2L2Ex2 Task7:     Hint#1: use the gotoNextWithSelectedRole(selectedRole) method
+                // DONE Ch2L2Ex2 Task7:     Hint#2: use the provided createWarning() and createSelectRoleChoiceCallback() methods
+                return gotoNextWithSelectedRole(selectedRole);
             }
+        } else {
+            // DONE Ch2L2Ex2 Task7: Instead of returning goToNext().build()
+            // DONE Ch2L2Ex2 Task7:   throw new NodeProcessException("Required ChoiceCallback is missing");
+            throw new NodeProcessException("Required ChoiceCallback is missing");
         }
     }
 
@@ -241,23 +503,255 @@ public class SelectRoleNode extends SingleOutcomeNode {
         return new TextOutputCallback(TextOutputCallback.WARNING, message);
     }
 
+    /**
+     * Stores the selectable roles together with a MAC binding them to the realm and the user they were
+     * calculated for. The MAC is keyed by a secret of the server, so roles altered in the shared state, or
+     * stored for another user, are not accepted back.
+     */
+    private void storeSelectableRoles(TreeContext context, String realm, String username, String[] selectableRoles) {
+        context.sharedState.put(SELECTABLE_ROLES_STATE_KEY, object(
+                field(ROLES_FIELD, Arrays.asList(selectableRoles)),
+                field(DIGEST_FIELD, digestOf(realm, username, selectableRoles))));
+    }
+
+    /**
+     * Returns the selectable roles stored by the first invocation. If they are missing, or they were calculated
+     * for a different user or realm, or they do not match their MAC, the roles are calculated again.
+     */
+    private String[] restoreSelectableRoles(TreeContext context, String realm, String username) throws NodeProcessException {
+        final JsonValue stored = context.sharedState.get(SELECTABLE_ROLES_STATE_KEY);
+        if (stored != null && !stored.isNull() && stored.get(ROLES_FIELD).isList()) {
+            final List<String> roles = stored.get(ROLES_FIELD).asList(String.class);
+            final String[] selectableRoles = roles.toArray(new String[0]);
+            final JsonValue digest = stored.get(DIGEST_FIELD);
+            if (digest.isString() && MessageDigest.isEqual(digestOf(realm, username, selectableRoles).getBytes(UTF_8),
+                    digest.asString().getBytes(UTF_8))) {
+                return selectableRoles;
+            }
+            DEBUG.warning("Stored selectable roles do not belong to the current user, recalculating them");
+        }
+        final String[] selectableRoles = selectableRolesOf(context, username, realm).selectableRoles;
+        storeSelectableRoles(context, realm, username, selectableRoles);
+        return selectableRoles;
+    }
+
+    private static String digestOf(String realm, String username, String[] selectableRoles) {
+        final Hasher hasher = SELECTABLE_ROLES_MAC.newHasher()
+                .putString(realm, UTF_8).putChar('\0')
+                .putString(username, UTF_8);
+        for (String role : selectableRoles) {
+            hasher.putChar('\0').putString(role, UTF_8);
+        }
+        return hasher.hash().toString();
+    }
+
+    private static HashFunction selectableRolesMac() {
+        final String secret = System.getProperty(SELECTABLE_ROLES_KEY_PROPERTY, "");
+        if (!secret.isEmpty()) {
+            return Hashing.hmacSha256(secret.getBytes(UTF_8));
+        }
+        final byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        return Hashing.hmacSha256(key);
+    }
+
+    /**
+     * Looks up the user and calculates its selectable roles. When the identity repository is unavailable and
+     * the node is configured to degrade, the roles are calculated from the last cached memberships of the
+     * user, or none are returned so the default role is selected.
+     */
+    private UserRoles selectableRolesOf(TreeContext context, String username, String realm) throws NodeProcessException {
+        AMIdentity userIdentity = null;
+        try {
+            userIdentity = getIdentity(context, username, realm);
+            return new UserRoles(userIdentity, calculateSelectableRoles(userIdentity, realm));
+        } catch (IdRepoUnavailableException ex) {
+            if (!config.degradeToDefaultRole()) {
+                throw new NodeProcessException("Identity repository is unavailable", ex);
+            }
+            DEBUG.warning("Identity repository is unavailable, selecting from the last known roles", ex);
+            metrics.outcome(RoleSelectionMetrics.Outcome.DEGRADED);
+            return new UserRoles(userIdentity, lastKnownSelectableRoles(userIdentity, realm));
+        } catch (SSOException | IdRepoException ex) {
+            throw new NodeProcessException("Error during querying user's group memberships", ex);
+        }
+    }
+
     // DONE Ch2L2Ex2 Task7: Observe the next method, where the selectable roles of
     // DONE Ch2L2Ex2 Task7:   the userIdentity are calculated by intersecting the
     // DONE Ch2L2Ex2 Task7:   user's group memberships with the candidateRoles.
-    private String[] calculateSelectableRoles(AMIdentity userIdentity) throws NodeProcessException {
+    private String[] calculateSelectableRoles(AMIdentity userIdentity, String realm) throws IdRepoException, SSOException {
+        final long start = metrics.start();
         try {
-            final Set<String> assignedGroupNames =
-                    identityHelper.findAllAssignedGroupNamesOfUser(userIdentity);
+            // The group names of the realm do not depend on the user, their search overlaps the membership lookup
+            final CompletableFuture<Set<String>> realmGroupNames = configuredRoleMatcher == null
+                    ? identityHelper.findAllGroupNamesInRealmAsync(realm, idRepoTimeout)
+                    : null;
+            final Set<String> assignedRoleNames = assignedRoleNamesOf(userIdentity);
+            final CompletableFuture<Set<String>> roleNames = nestedGroupMaxDepth == 0
+                    ? CompletableFuture.completedFuture(assignedRoleNames)
+                    : identityHelper.expandNestedGroupNamesAsync(realm, assignedRoleNames, nestedGroupMaxDepth,
+                            idRepoTimeout);
+
+            // The search of the realm and the expansion share a single deadline
+            if (configuredRoleMatcher != null) {
+                return configuredRoleMatcher.selectableRoles(identityHelper.await(roleNames, idRepoTimeout));
+            }
+            return identityHelper.await(realmGroupNames.thenCombine(roleNames,
+                    (groupNames, names) -> realmRoleMatcher(realm, groupNames).selectableRoles(names)),
+                    idRepoTimeout);  // filter out groups not in candidateRoles
+        } finally {
+            metrics.stop(RoleSelectionMetrics.Phase.CALCULATE_SELECTABLE_ROLES, start);
+        }
+    }
 
-            final Set<String> candidateRoles = config.candidateRoles();
+    /**
+     * Reads the roles of the user from the configured {@link RoleSource}.
+     */
+    private Set<String> assignedRoleNamesOf(AMIdentity userIdentity) throws IdRepoException, SSOException {
+        Set<String> assignedRoleNames = ImmutableSet.of();
+        if (roleSource.readsGroupMemberships()) {
+            assignedRoleNames = checkedCandidateRoles != null
+                    ? identityHelper.findAssignedGroupNamesOfUserAmong(
+                            userIdentity, checkedCandidateRoles, membershipCacheSettings, idRepoTimeout)
+                    : identityHelper.findAllAssignedGroupNamesOfUser(userIdentity, membershipCacheSettings, idRepoTimeout);
+        }
+        if (roleSource.readsAttribute()) {
+            assignedRoleNames = Sets.union(assignedRoleNames, identityHelper.findRoleAttributeValuesOfUser(
+                    userIdentity, roleAttribute, membershipCacheSettings, idRepoTimeout));
+        }
+        return assignedRoleNames;
+    }
 
-            return assignedGroupNames
-                    .stream()
-                    .filter(candidateRoles::contains)  // filter out groups not in candidateRoles
-                    .toArray(String[]::new);
-        } catch (SSOException | IdRepoException ex) {
-            throw new NodeProcessException("Error during querying user's group memberships", ex);
+    private String[] lastKnownSelectableRoles(AMIdentity userIdentity, String realm) {
+        final CandidateRoleMatcher matcher;
+        if (configuredRoleMatcher != null) {
+            matcher = configuredRoleMatcher;
+        } else {
+            final RealmRoleMatcher current = realmRoleMatcher;
+            if (current == null || !current.realm.equals(realm)) {
+                return new String[0];
+            }
+            matcher = current.matcher;
         }
+        final Optional<Set<String>> groupNames = roleSource.readsGroupMemberships()
+                ? identityHelper.lastKnownAssignedGroupNamesOfUser(userIdentity, checkedCandidateRoles, membershipCacheSettings)
+                : Optional.empty();
+        final Optional<Set<String>> attributeValues = roleSource.readsAttribute()
+                ? identityHelper.lastKnownRoleAttributeValuesOfUser(userIdentity, roleAttribute, membershipCacheSettings)
+                : Optional.empty();
+        return matcher.selectableRoles(Sets.union(
+                groupNames.orElse(ImmutableSet.of()), attributeValues.orElse(ImmutableSet.of())));
     }
 
+    /**
+     * Returns the matcher of every group in the realm, used when no candidate roles are configured. It is
+     * compiled again only when the cached group names of the realm change.
+     */
+    private CandidateRoleMatcher realmRoleMatcher(String realm, Set<String> groupNames) {
+        RealmRoleMatcher current = realmRoleMatcher;
+        if (current == null || !current.realm.equals(realm) || current.groupNames != groupNames) {
+            current = new RealmRoleMatcher(realm, groupNames,
+                    new CandidateRoleMatcher(groupNames, caseInsensitiveRoleMatching));
+            realmRoleMatcher = current;
+        }
+        return current.matcher;
+    }
+
+    /**
+     * Returns the identity of the user. The universal id resolved by a previous node, or by this node earlier in
+     * the same request, is used when present, so the user is only searched by name once per request at most.
+     */
+    private AMIdentity getIdentity(TreeContext context, String username, String realm) throws IdRepoException, SSOException {
+        final long start = metrics.start();
+        try {
+            final String universalId = context.universalId.orElseGet(() -> {
+                final JsonValue known = context.transientState.get(UNIVERSAL_ID_STATE_KEY);
+                return known != null && known.isString() ? known.asString() : null;
+            });
+            final AMIdentity identity =
+                    withIdRepoTimeout(() -> identityHelper.getIdentity(username, realm, universalId));
+            if (identity != null && identity.getUniversalId() != null) {
+                context.transientState.put(UNIVERSAL_ID_STATE_KEY, identity.getUniversalId());
+            }
+            return identity;
+        } finally {
+            metrics.stop(RoleSelectionMetrics.Phase.GET_IDENTITY, start);
+        }
+    }
+
+    private <V> V withIdRepoTimeout(IdRepoCall<V> call) throws IdRepoException, SSOException {
+        return idRepoTimeout.isZero() ? call.call() : identityHelper.callWithDeadline(idRepoTimeout, call);
+    }
+
+    /**
+     * Returns the role the user selected last time, unless remembering is disabled or a role change is requested.
+     * A failure to read the role is logged and treated as no role.
+     */
+    private Optional<String> lastSelectedRole(TreeContext context, AMIdentity userIdentity) {
+        if (!config.rememberSelectedRole() || userIdentity == null || isRoleChangeRequested(context)) {
+            return Optional.empty();
+        }
+        try {
+            return withIdRepoTimeout(() -> identityHelper.lastSelectedRole(userIdentity, config.selectedRoleAttribute()));
+        } catch (IdRepoException | SSOException | RuntimeException ex) {
+            DEBUG.warning("Unable to read the last selected role", ex);
+            return Optional.empty();
+        }
+    }
+
+    private static boolean isRoleChangeRequested(TreeContext context) {
+        final JsonValue changeRole = context.sharedState.get(CHANGE_ROLE_STATE_KEY);
+        if (changeRole != null && changeRole.isBoolean() && changeRole.asBoolean()) {
+            return true;
+        }
+        return context.request != null && context.request.parameters != null
+                && context.request.parameters.get(CHANGE_ROLE_PARAMETER).stream().anyMatch("true"::equalsIgnoreCase);
+    }
+
+    /**
+     * Remembers the role selected by the user. A failure is logged, it does not fail the authentication.
+     */
+    private void rememberSelectedRole(TreeContext context, String username, String realm, String selectedRole) {
+        if (!config.rememberSelectedRole()) {
+            return;
+        }
+        try {
+            final AMIdentity userIdentity = getIdentity(context, username, realm);
+            withIdRepoTimeout(() -> {
+                identityHelper.rememberSelectedRole(userIdentity, config.selectedRoleAttribute(), selectedRole);
+                return null;
+            });
+        } catch (IdRepoException | SSOException | RuntimeException ex) {
+            DEBUG.warning("Unable to remember the selected role", ex);
+        }
+    }
+
+    /**
+     * A user and its selectable roles.
+     */
+    private static final class UserRoles {
+        private final AMIdentity identity;
+        private final String[] selectableRoles;
+
+        private UserRoles(AMIdentity identity, String[] selectableRoles) {
+            this.identity = identity;
+            this.selectableRoles = selectableRoles;
+        }
+    }
+
+    /**
+     * The candidate roles compiled from the group names of a realm.
+     */
+    private static final class RealmRoleMatcher {
+        private final String realm;
+        private final Set<String> groupNames;
+        private final CandidateRoleMatcher matcher;
+
+        private RealmRoleMatcher(String realm, Set<String> groupNames, CandidateRoleMatcher matcher) {
+            this.realm = realm;
+            this.groupNames = groupNames;
+            this.matcher = matcher;
+        }
+    }
 }
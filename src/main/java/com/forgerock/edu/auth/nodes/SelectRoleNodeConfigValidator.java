@@ -1,5 +1,6 @@
 package com.forgerock.edu.auth.nodes;
 
+import com.google.common.collect.ImmutableSet;
 import com.google.inject.Inject;
 import com.iplanet.sso.SSOException;
 import com.sun.identity.idm.IdRepoException;
@@ -11,7 +12,6 @@ import org.forgerock.openam.sm.ServiceErrorException;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 /**
  * Validator class for the SelectRoleNode configuration.
@@ -25,11 +25,31 @@ import java.util.stream.Collectors;
  * <ul>
  *     <li>
  *         {@code candidateRoles}:
- *         <p>All candidate roles should be existing group names in the given realm.</p>
+ *         <p>All candidate roles should be existing group names in the given realm, unless the roles
+ *         are read from an attribute as well, whose values need not be groups. An empty list makes every
+ *         group of the realm selectable.</p>
  *     </li>
  *     <li>
  *         {@code defaultRole}:
- *         <p>Should be one of the candidateRoles.</p>
+ *         <p>Should be one of the candidateRoles. When candidateRoles is empty, it should be a group of the
+ *         realm, unless the roles are read from an attribute as well.</p>
+ *     </li>
+ *     <li>
+ *         {@code membershipCacheTtlSeconds}, {@code membershipCacheMaxEntries}:
+ *         <p>Should be greater than zero when the membership cache is enabled. The maximum number of entries
+ *         should fit an int.</p>
+ *     </li>
+ *     <li>
+ *         {@code nestedGroupMaxDepth}:
+ *         <p>Should be greater than zero and fit an int when nested groups are resolved.</p>
+ *     </li>
+ *     <li>
+ *         {@code roleAttribute}:
+ *         <p>Is required when the {@code roleSource} reads an attribute.</p>
+ *     </li>
+ *     <li>
+ *         {@code membershipCacheStaleSeconds}, {@code idRepoTimeoutMillis}:
+ *         <p>Should not be negative.</p>
  *     </li>
  * </ul>
  */
@@ -42,20 +62,99 @@ public class SelectRoleNodeConfigValidator implements ServiceConfigValidator {
         this.identityHelper = identityHelper;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>The groups of the realm are not searched: each group that has to exist is looked up by name with
+     * {@link AmIdentityHelper#findNonExistingGroupNames}, which remembers the groups it found for a short
+     * time. Saving the configuration again only looks up the candidate roles that changed since.</p>
+     */
     @Override
     public void validate(Realm realm, List<String> list, Map<String, Set<String>> config) throws ServiceConfigException, ServiceErrorException {
-        final Set<String> allGroupNamesInRealm;
+        final Set<String> configuredRoles = config.get("candidateRoles");
+        final boolean everyGroupIsCandidate = configuredRoles == null || configuredRoles.isEmpty();
+        final String defaultRole = config.get("defaultRole").iterator().next();
+        if (!everyGroupIsCandidate) {
+            validateDefaultRole(defaultRole, configuredRoles);
+        }
+        final SelectRoleNode.RoleSource roleSource = roleSourceOf(config);
+        if (roleSource.readsAttribute()) {
+            validateRoleAttribute(config);
+        }
+        if (!roleSource.readsAttribute()) {
+            if (everyGroupIsCandidate) {
+                validateDefaultRoleIsGroup(realm, defaultRole);
+            } else {
+                validateCandidateRoles(realm, configuredRoles);
+            }
+        }
+
+        validateMembershipCache(config);
+        validateLong(config, "idRepoTimeoutMillis", 0);
+        if (Boolean.parseBoolean(singleValue(config, "nestedGroupResolution"))) {
+            validateInt(config, "nestedGroupMaxDepth", 1);
+        }
+    }
+
+    private static SelectRoleNode.RoleSource roleSourceOf(Map<String, Set<String>> config) throws ServiceConfigException {
+        final String value = singleValue(config, "roleSource");
+        if (value == null) {
+            return SelectRoleNode.RoleSource.GROUP_MEMBERSHIPS;
+        }
         try {
-            allGroupNamesInRealm = identityHelper.findAllGroupNamesInRealm(realm.asPath());
-        } catch (SSOException | IdRepoException ex) {
-            throw new ServiceErrorException("Error during finding all groups in realm", ex);
+            return SelectRoleNode.RoleSource.valueOf(value.trim());
+        } catch (IllegalArgumentException ex) {
+            throw new ServiceConfigException("roleSource is not a valid role source: " + value);
         }
-        final Set<String> candidateRoles = config.get("candidateRoles");
-        validateCandidateRoles(realm, candidateRoles, allGroupNamesInRealm);
+    }
 
-        final String defaultRole = config.get("defaultRole").iterator().next();
-        validateDefaultRole(defaultRole, candidateRoles);
+    private void validateRoleAttribute(Map<String, Set<String>> config) throws ServiceConfigException {
+        final String roleAttribute = singleValue(config, "roleAttribute");
+        if (roleAttribute == null || roleAttribute.trim().isEmpty()) {
+            throw new ServiceConfigException("roleAttribute is required when the roles are read from an attribute");
+        }
+    }
 
+    private void validateMembershipCache(Map<String, Set<String>> config) throws ServiceConfigException {
+        if (!Boolean.parseBoolean(singleValue(config, "membershipCacheEnabled"))) {
+            return;
+        }
+        validateLong(config, "membershipCacheTtlSeconds", 1);
+        validateInt(config, "membershipCacheMaxEntries", 1);
+        validateLong(config, "membershipCacheStaleSeconds", 0);
+    }
+
+    private void validateLong(Map<String, Set<String>> config, String attributeName, long minimum) throws ServiceConfigException {
+        final String value = singleValue(config, attributeName);
+        if (value == null) {
+            return;
+        }
+        try {
+            if (Long.parseLong(value.trim()) < minimum) {
+                throw new ServiceConfigException(attributeName + " should be at least " + minimum);
+            }
+        } catch (NumberFormatException ex) {
+            throw new ServiceConfigException(attributeName + " is not a valid number: " + value);
+        }
+    }
+
+    private void validateInt(Map<String, Set<String>> config, String attributeName, int minimum) throws ServiceConfigException {
+        final String value = singleValue(config, attributeName);
+        if (value == null) {
+            return;
+        }
+        try {
+            if (Integer.parseInt(value.trim()) < minimum) {
+                throw new ServiceConfigException(attributeName + " should be at least " + minimum);
+            }
+        } catch (NumberFormatException ex) {
+            throw new ServiceConfigException(attributeName + " is not a valid number up to " + Integer.MAX_VALUE
+                    + ": " + value);
+        }
+    }
+
+    private static String singleValue(Map<String, Set<String>> config, String attributeName) {
+        final Set<String> values = config.get(attributeName);
+        return values == null || values.isEmpty() ? null : values.iterator().next();
     }
 
     private void validateDefaultRole(String defaultRole, Set<String> candidateRoles) throws ServiceConfigException {
@@ -64,14 +163,32 @@ public class SelectRoleNodeConfigValidator implements ServiceConfigValidator {
         }
     }
 
-    private void validateCandidateRoles(Realm realm, Set<String> candidateRoles, Set<String> allGroupNamesInRealm) throws ServiceConfigException {
-        final String invalidRoleNames = candidateRoles.stream()
-                .filter(candidateRole -> !allGroupNamesInRealm.contains(candidateRole))
-                .collect(Collectors.joining());
+    private void validateDefaultRoleIsGroup(Realm realm, String defaultRole) throws ServiceConfigException, ServiceErrorException {
+        if (!findMissingGroupNames(realm, ImmutableSet.of(defaultRole)).isEmpty()) {
+            throw new ServiceConfigException("defaultRole is not an existing group name in realm " + realm
+                    + " : " + defaultRole);
+        }
+    }
+
+    private void validateCandidateRoles(Realm realm, Set<String> candidateRoles) throws ServiceConfigException, ServiceErrorException {
+        final String invalidRoleNames = String.join(", ", findMissingGroupNames(realm, candidateRoles));
 
         if (!invalidRoleNames.isEmpty()) {
             throw new ServiceConfigException("candidateRoles contains non-existing group name(s) " +
                     "in realm " + realm + " : " + invalidRoleNames);
         }
     }
+
+    /**
+     * Returns the given group names that are not groups of the realm.
+     *
+     * @throws ServiceErrorException If the groups of the realm could not be looked up.
+     */
+    private Set<String> findMissingGroupNames(Realm realm, Set<String> groupNames) throws ServiceErrorException {
+        try {
+            return identityHelper.findNonExistingGroupNames(realm.asPath(), groupNames);
+        } catch (SSOException | IdRepoException ex) {
+            throw new ServiceErrorException("Error during looking up the groups in realm", ex);
+        }
+    }
 }
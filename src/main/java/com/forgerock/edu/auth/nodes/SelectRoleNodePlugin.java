@@ -62,7 +62,32 @@ import org.slf4j.LoggerFactory;
  */
 public class SelectRoleNodePlugin extends AbstractNodeAmPlugin {
 
-	static private String currentVersion = "2.0";
+	static private String currentVersion = "2.1";
+
+	private AmIdentityHelper identityHelper;
+	private RoleSelectionMetrics metrics;
+	private CacheWarmer cacheWarmer;
+	private CacheSnapshotter cacheSnapshotter;
+
+	/**
+	 * Sets the identity helper whose caches are kept in sync with the identity repository changes.
+	 *
+	 * @param identityHelper The identity repository queries of the nodes.
+	 */
+	@Inject
+	public void setIdentityHelper(AmIdentityHelper identityHelper) {
+		this.identityHelper = identityHelper;
+	}
+
+	/**
+	 * Sets the metrics the cache warmup reports its progress to.
+	 *
+	 * @param metrics The role selection metrics.
+	 */
+	@Inject
+	public void setMetrics(RoleSelectionMetrics metrics) {
+		this.metrics = metrics;
+	}
 
 	/**
 	 * Specify the Map of list of node classes that the plugin is providing. These will then be installed and
@@ -91,13 +116,43 @@ public class SelectRoleNodePlugin extends AbstractNodeAmPlugin {
 	 * Handle plugin startup. This method will be called every time AM starts, after {@link #onInstall()},
 	 * {@link #onAmUpgrade(String, String)} and {@link #upgrade(String)} have been called (if relevant).
 	 *
-	 * No need to implement this unless your AuthNode has specific requirements on startup.
+	 * Starts listening to the identity repository changes, so the cached memberships and group names
+	 * of the nodes are evicted as soon as they change, restores the cache snapshot of the previous run if one is
+	 * configured, and starts warming up the caches in the background.
 	 *
 	 * @param startupType The type of startup that is taking place.
 	 */
 	@Override
 	public void onStartup() throws PluginException {
 		super.onStartup();
+		if (identityHelper != null) {
+			identityHelper.startWatchingChanges(new AmIdRepoEventSource());
+			cacheSnapshotter = CacheSnapshotter.fromSystemProperties(identityHelper);
+			if (cacheSnapshotter != null) {
+				cacheSnapshotter.start();
+			}
+			cacheWarmer = CacheWarmer.fromSystemProperties(identityHelper,
+					metrics != null ? metrics : RoleSelectionMetrics.noop());
+			cacheWarmer.start();
+		}
+	}
+
+	/**
+	 * Handle plugin shutdown. Stops the cache warmup, writes the cache snapshot and unregisters the identity
+	 * repository change listeners.
+	 */
+	@Override
+	public void onShutdown() {
+		if (cacheWarmer != null) {
+			cacheWarmer.stop();
+		}
+		if (cacheSnapshotter != null) {
+			cacheSnapshotter.stop();
+		}
+		if (identityHelper != null) {
+			identityHelper.stopWatchingChanges();
+		}
+		super.onShutdown();
 	}
 
 	/**
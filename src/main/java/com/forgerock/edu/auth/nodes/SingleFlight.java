@@ -0,0 +1,94 @@
+package com.forgerock.edu.auth.nodes;
+
+import com.iplanet.sso.SSOException;
+import com.sun.identity.idm.IdRepoException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Deduplicates concurrent {@link IdRepoCall}s made for the same key.
+ * <p>The first caller for a key performs the call, every caller arriving while it is
+ * in progress waits for and shares its result (or its exception). Once the call has
+ * finished the next caller for the key starts a new call.</p>
+ *
+ * @param <K> type of the key identifying a call
+ * @param <V> type of the value produced by a call
+ */
+final class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder joined = new LongAdder();
+
+    /**
+     * Performs the given call, or joins the one already in progress for the same key.
+     *
+     * @param key identifies the call.
+     * @param call the call to perform if none is in progress for the key.
+     * @return the value produced by the call.
+     * @throws IdRepoException If the call failed with an IdRepo error
+     * @throws SSOException If the call failed because of an invalid SSO token
+     */
+    V execute(K key, IdRepoCall<V> call) throws IdRepoException, SSOException {
+        final CompletableFuture<V> own = new CompletableFuture<>();
+        final CompletableFuture<V> existing = inFlight.putIfAbsent(key, own);
+        if (existing != null) {
+            joined.increment();
+            return await(existing);
+        }
+        try {
+            final V value = call.call();
+            own.complete(value);
+            return value;
+        } catch (Throwable t) {
+            own.completeExceptionally(t);
+            throw t;
+        } finally {
+            inFlight.remove(key, own);
+        }
+    }
+
+    /**
+     * Lets the callers arriving from now on start a new call for the keys matching the given predicate, instead
+     * of joining the call in progress. The callers already waiting still receive the result of that call.
+     */
+    void detachIf(Predicate<? super K> predicate) {
+        inFlight.keySet().removeIf(predicate);
+    }
+
+    /**
+     * @return the number of calls currently in progress.
+     */
+    int inFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * @return the number of callers that joined a call in progress instead of performing their own.
+     */
+    long joinedCount() {
+        return joined.sum();
+    }
+
+    private static <V> V await(CompletableFuture<V> future) throws IdRepoException, SSOException {
+        try {
+            return future.join();
+        } catch (CompletionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof IdRepoException) {
+                throw (IdRepoException) cause;
+            } else if (cause instanceof SSOException) {
+                throw (SSOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw ex;
+        }
+    }
+}
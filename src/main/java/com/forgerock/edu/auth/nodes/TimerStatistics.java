@@ -0,0 +1,56 @@
+package com.forgerock.edu.auth.nodes;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Snapshot of a latency timer of {@link RoleSelectionMetrics}. Latencies are in microseconds.
+ */
+public final class TimerStatistics {
+
+    private final long count;
+    private final double meanMicros;
+    private final long p50Micros;
+    private final long p90Micros;
+    private final long p99Micros;
+    private final long maxMicros;
+
+    @ConstructorProperties({"count", "meanMicros", "p50Micros", "p90Micros", "p99Micros", "maxMicros"})
+    public TimerStatistics(long count, double meanMicros, long p50Micros, long p90Micros, long p99Micros, long maxMicros) {
+        this.count = count;
+        this.meanMicros = meanMicros;
+        this.p50Micros = p50Micros;
+        this.p90Micros = p90Micros;
+        this.p99Micros = p99Micros;
+        this.maxMicros = maxMicros;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMeanMicros() {
+        return meanMicros;
+    }
+
+    public long getP50Micros() {
+        return p50Micros;
+    }
+
+    public long getP90Micros() {
+        return p90Micros;
+    }
+
+    public long getP99Micros() {
+        return p99Micros;
+    }
+
+    public long getMaxMicros() {
+        return maxMicros;
+    }
+
+    @Override
+    public String toString() {
+        return "TimerStatistics{count=" + count + ", mean=" + meanMicros + "us, p50=" + p50Micros + "us, p90="
+                + p90Micros + "us, p99=" + p99Micros + "us, max=" + maxMicros + "us}";
+    }
+}
@@ -0,0 +1,67 @@
+package com.forgerock.edu.auth.nodes;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/**
+ * The selectable roles of a user resolved by
+ * {@link AmIdentityHelper#prefetchSelectableRoles(String, java.util.Collection, java.util.Collection, boolean,
+ * MembershipCacheSettings, int)}, or the reason they could not be resolved.
+ */
+public final class UserRoleResolution {
+
+    private final String username;
+    private final List<String> selectableRoles;
+    private final Exception failure;
+
+    private UserRoleResolution(String username, List<String> selectableRoles, Exception failure) {
+        this.username = username;
+        this.selectableRoles = selectableRoles;
+        this.failure = failure;
+    }
+
+    static UserRoleResolution resolved(String username, String[] selectableRoles) {
+        return new UserRoleResolution(username, ImmutableList.copyOf(selectableRoles), null);
+    }
+
+    static UserRoleResolution failed(String username, Exception failure) {
+        return new UserRoleResolution(username, ImmutableList.of(), failure);
+    }
+
+    /**
+     * @return the name of the user.
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * @return the candidate roles the user is member of, in the order of the candidate roles, empty if the user
+     * has none or the roles could not be resolved.
+     */
+    public List<String> getSelectableRoles() {
+        return selectableRoles;
+    }
+
+    /**
+     * @return whether the roles of the user were resolved.
+     */
+    public boolean isResolved() {
+        return failure == null;
+    }
+
+    /**
+     * @return why the roles of the user could not be resolved, such as an {@link IllegalArgumentException} for a
+     * missing or inactive user, or {@code null} if they were resolved.
+     */
+    public Exception getFailure() {
+        return failure;
+    }
+
+    @Override
+    public String toString() {
+        return "UserRoleResolution{username=" + username + ", "
+                + (failure == null ? "selectableRoles=" + selectableRoles : "failure=" + failure) + "}";
+    }
+}
@@ -0,0 +1,691 @@
+package com.forgerock.edu.auth.nodes;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.iplanet.sso.SSOToken;
+import com.iplanet.sso.SSOTokenManager;
+import com.sun.identity.idm.AMIdentity;
+import com.sun.identity.idm.AMIdentityRepository;
+import com.sun.identity.idm.IdRepoException;
+import com.sun.identity.idm.IdSearchResults;
+import com.sun.identity.idm.IdType;
+import com.sun.identity.idm.IdUtils;
+import com.sun.identity.security.AdminTokenAction;
+import com.sun.identity.sm.DNMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.mockito.MockedConstruction;
+import org.mockito.MockedStatic;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockConstruction;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+class AmIdentityHelperTest {
+
+    MutableClock clock;
+    AmIdentityHelper identityHelper;
+    AMIdentity userIdentity;
+
+    static AMIdentity group(String name) {
+        final AMIdentity group = mock(AMIdentity.class);
+        given(group.getName()).willReturn(name);
+        given(group.getType()).willReturn(IdType.GROUP);
+        return group;
+    }
+
+    void givenUserIsMemberOf(String... groupNames) throws Exception {
+        final Set<AMIdentity> groups = Arrays.stream(groupNames)
+                .map(AmIdentityHelperTest::group)
+                .collect(Collectors.toSet());
+        given(userIdentity.getMemberships(IdType.GROUP)).willReturn(groups);
+    }
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        clock = new MutableClock();
+        identityHelper = new AmIdentityHelper(clock, Runnable::run);
+        userIdentity = mock(AMIdentity.class);
+        given(userIdentity.getType()).willReturn(IdType.USER);
+        given(userIdentity.isExists()).willReturn(true);
+        given(userIdentity.isActive()).willReturn(true);
+        given(userIdentity.getRealm()).willReturn("/");
+        given(userIdentity.getUniversalId()).willReturn("id=john,ou=user,o=root");
+        givenUserIsMemberOf("first", "second");
+    }
+
+    @Nested
+    @DisplayName("When the membership cache is enabled")
+    class MembershipCache {
+
+        MembershipCacheSettings settings;
+
+        @BeforeEach
+        void beforeEach() {
+            settings = MembershipCacheSettings.of(Duration.ofMinutes(1), Duration.ZERO, 100);
+        }
+
+        @Test
+        @DisplayName("Should query the memberships once within the TTL")
+        void shouldQueryMembershipsOnceWithinTtl() throws Exception {
+            assertEquals(ImmutableSet.of("first", "second"),
+                    identityHelper.findAllAssignedGroupNamesOfUser(userIdentity, settings));
+            givenUserIsMemberOf("first");
+            assertEquals(ImmutableSet.of("first", "second"),
+                    identityHelper.findAllAssignedGroupNamesOfUser(userIdentity, settings));
+
+            verify(userIdentity, times(1)).getMemberships(IdType.GROUP);
+            assertEquals(1, identityHelper.membershipCacheStatistics().getHitCount());
+            assertEquals(1, identityHelper.membershipCacheStatistics().getMissCount());
+        }
+
+        @Test
+        @DisplayName("Should query the memberships again once the TTL elapsed")
+        void shouldQueryMembershipsAgainAfterTtl() throws Exception {
+            identityHelper.findAllAssignedGroupNamesOfUser(userIdentity, settings);
+            givenUserIsMemberOf("first");
+            clock.advance(Duration.ofMinutes(1));
+
+            assertEquals(ImmutableSet.of("first"),
+                    identityHelper.findAllAssignedGroupNamesOfUser(userIdentity, settings));
+        }
+
+        @Test
+        @DisplayName("Should serve the memberships restored from a snapshot until their original TTL elapsed")
+        void shouldServeRestoredMemberships() throws Exception {
+            identityHelper.findAllAssignedGroupNamesOfUser(userIdentity, settings);
+            clock.advance(Duration.ofSeconds(30));
+            final CacheSnapshot snapshot = identityHelper.snapshotCaches();
+
+            final AmIdentityHelper restarted = new AmIdentityHelper(clock, Runnable::run);
+            assertEquals(1, restarted.restoreCaches(snapshot));
+            givenUserIsMemberOf("first");
+            assertEquals(ImmutableSet.of("first", "second"),
+                    restarted.findAllAssignedGroupNamesOfUser(userIdentity, settings));
+            verify(userIdentity, times(1)).getMemberships(IdType.GROUP);
+
+            clock.advance(Duration.ofSeconds(30));
+            assertEquals(0, new AmIdentityHelper(clock, Runnable::run).restoreCaches(snapshot));
+            assertEquals(ImmutableSet.of("first"),
+                    restarted.findAllAssignedGroupNamesOfUser(userIdentity, settings));
+        }
+
+        @Test
+        @DisplayName("Should not read the existence of an active user")
+        void shouldNotReadExistenceOfActiveUser() throws Exception {
+            identityHelper.findAllAssignedGroupNamesOfUser(userIdentity, settings);
+
+            verify(userIdentity, never()).isExists();
+        }
+
+        @Test
+        @DisplayName("Should reject inactive users on a miss")
+        void shouldRejectInactiveUsersOnMiss() throws Exception {
+            given(userIdentity.isActive()).willReturn(false);
+
+            final IllegalArgumentException ex = assertThrows(IllegalArgumentException.class,
+                    () -> identityHelper.findAllAssignedGroupNamesOfUser(userIdentity, settings));
+            assertEquals("User either does not exist or is not active.", ex.getMessage());
+        }
+
+        @Test
+        @DisplayName("Should reject missing users like inactive ones")
+        void shouldRejectMissingUsersLikeInactiveOnes() throws Exception {
+            given(userIdentity.isActive()).willThrow(new IdRepoException("missing"));
+            given(userIdentity.isExists()).willReturn(false);
+
+            final IllegalArgumentException ex = assertThrows(IllegalArgumentException.class,
+                    () -> identityHelper.findAllAssignedGroupNamesOfUser(userIdentity, settings));
+            assertEquals("User either does not exist or is not active.", ex.getMessage());
+        }
+
+        @Test
+        @DisplayName("Should look up the memberships asynchronously on a miss only")
+        void shouldLookUpMembershipsAsynchronouslyOnMissOnly() throws Exception {
+            final CompletableFuture<Set<String>> miss =
+                    identityHelper.findAllAssignedGroupNamesOfUserAsync(userIdentity, settings);
+            assertEquals(ImmutableSet.of("first", "second"), identityHelper.await(miss, Duration.ofSeconds(5)));
+
+            final CompletableFuture<Set<String>> hit =
+                    identityHelper.findAllAssignedGroupNamesOfUserAsync(userIdentity, settings);
+            assertTrue(hit.isDone());
+            assertEquals(ImmutableSet.of("first", "second"), hit.get());
+            verify(userIdentity, times(1)).getMemberships(IdType.GROUP);
+            assertEquals(1, identityHelper.asyncExecutorStatistics().getSubmittedCount());
+            assertEquals(1, identityHelper.membershipCacheStatistics().getMissCount());
+        }
+
+        @Test
+        @DisplayName("Should resolve the selectable roles of many users and cache their memberships")
+        void shouldPrefetchSelectableRoles() throws Exception {
+            final AmIdentityHelper helper = new AmIdentityHelper(clock, Runnable::run) {
+                @Override
+                public AMIdentity getIdentity(String username, String realm, String universalId) {
+                    return "john".equals(username) ? userIdentity : null;
+                }
+            };
+
+            final Map<String, UserRoleResolution> resolutions = helper.prefetchSelectableRoles("/",
+                    Arrays.asList("john", "jane", "john"), ImmutableSet.of("second", "third"), false, settings, 2);
+
+            assertEquals(Arrays.asList("john", "jane"), new ArrayList<>(resolutions.keySet()));
+            assertTrue(resolutions.get("john").isResolved());
+            assertEquals(Arrays.asList("second"), resolutions.get("john").getSelectableRoles());
+            assertFalse(resolutions.get("jane").isResolved());
+            assertTrue(resolutions.get("jane").getFailure() instanceof IllegalArgumentException);
+            assertEquals(ImmutableSet.of("first", "second"), helper.findAllAssignedGroupNamesOfUser(userIdentity, settings));
+            verify(userIdentity, times(1)).getMemberships(IdType.GROUP);
+        }
+
+        @Test
+        @DisplayName("Should rethrow the exception of an asynchronous lookup when awaiting it")
+        void shouldRethrowExceptionOfAsynchronousLookup() throws Exception {
+            given(userIdentity.isActive()).willReturn(false);
+
+            final CompletableFuture<Set<String>> lookup =
+                    identityHelper.findAllAssignedGroupNamesOfUserAsync(userIdentity, settings);
+
+            assertThrows(IllegalArgumentException.class, () -> identityHelper.await(lookup, Duration.ofSeconds(5)));
+        }
+    }
+
+    @Test
+    @DisplayName("Should check only the given groups without fetching every membership")
+    void shouldCheckOnlyTheGivenGroups() throws Exception {
+        given(userIdentity.isMember(any(AMIdentity.class))).willReturn(true);
+        final MembershipCacheSettings settings = MembershipCacheSettings.of(Duration.ofMinutes(1), Duration.ZERO, 100);
+
+        assertEquals(ImmutableSet.of("first", "third"), identityHelper.findAssignedGroupNamesOfUserAmong(
+                userIdentity, ImmutableSet.of("first", "third"), settings));
+        assertEquals(ImmutableSet.of("first", "second"),
+                identityHelper.findAllAssignedGroupNamesOfUser(userIdentity, settings));
+        identityHelper.findAssignedGroupNamesOfUserAmong(userIdentity, ImmutableSet.of("first", "third"), settings);
+
+        verify(userIdentity, times(2)).isMember(any(AMIdentity.class));
+        verify(userIdentity, times(1)).getMemberships(IdType.GROUP);
+    }
+
+    @Test
+    @DisplayName("Should give up on slow lookups and serve cached memberships without waiting")
+    void shouldGiveUpOnSlowLookups() throws Exception {
+        final MembershipCacheSettings settings = MembershipCacheSettings.of(Duration.ofMinutes(1), Duration.ZERO, 100);
+        identityHelper.findAllAssignedGroupNamesOfUser(userIdentity, settings, Duration.ofSeconds(10));
+        final CountDownLatch release = new CountDownLatch(1);
+        given(userIdentity.getMemberships(IdType.GROUP)).willAnswer(invocation -> {
+            Uninterruptibles.awaitUninterruptibly(release);
+            return ImmutableSet.of();
+        });
+        try {
+            assertThrows(IdRepoUnavailableException.class, () -> identityHelper.findAllAssignedGroupNamesOfUser(
+                    userIdentity, MembershipCacheSettings.disabled(), Duration.ofMillis(50)));
+            assertEquals(ImmutableSet.of("first", "second"),
+                    identityHelper.findAllAssignedGroupNamesOfUser(userIdentity, settings, Duration.ofMillis(50)));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    @DisplayName("Should count the asynchronous calls outlasting their deadline as failures, and only those with one")
+    void shouldApplyBreakerToAsynchronousCallsWithDeadlineOnly() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AmIdentityHelper helper = new AmIdentityHelper(clock, Runnable::run) {
+            @Override
+            public Set<String> findAllGroupNamesInRealm(String realm) {
+                Uninterruptibles.awaitUninterruptibly(release);
+                return ImmutableSet.of("first");
+            }
+        };
+        try {
+            for (int i = 0; i < 5; i++) {
+                assertThrows(IdRepoUnavailableException.class, () -> helper.await(
+                        helper.findAllGroupNamesInRealmAsync("/", Duration.ofMillis(20)), Duration.ofSeconds(5)));
+            }
+            assertEquals(CircuitBreaker.State.OPEN, helper.circuitBreakerState());
+            assertThrows(IdRepoUnavailableException.class, () -> helper.await(
+                    helper.findAllGroupNamesInRealmAsync("/", Duration.ofSeconds(5)), Duration.ofSeconds(5)));
+
+            final CompletableFuture<Set<String>> withoutDeadline = helper.findAllGroupNamesInRealmAsync("/");
+            release.countDown();
+            assertEquals(ImmutableSet.of("first"), helper.await(withoutDeadline, Duration.ofSeconds(5)));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    @DisplayName("Should load the group nesting off the calling thread and give up waiting after the timeout")
+    void shouldLoadGroupNestingOffCallingThread() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AMIdentity parent = group("parent");
+        final Set<AMIdentity> children = ImmutableSet.of(group("first"));
+        given(parent.getMembers(IdType.GROUP)).willReturn(children);
+        final List<Thread> loadingThreads = new ArrayList<>();
+        final AmIdentityHelper helper = new AmIdentityHelper(clock, Runnable::run) {
+            @Override
+            public Set<AMIdentity> findAllGroupsInRealm(String realm) {
+                loadingThreads.add(Thread.currentThread());
+                Uninterruptibles.awaitUninterruptibly(release);
+                return ImmutableSet.of(parent);
+            }
+        };
+
+        assertThrows(IdRepoUnavailableException.class, () -> helper.expandNestedGroupNames(
+                "/", ImmutableSet.of("first"), 3, Duration.ofMillis(50)));
+        release.countDown();
+
+        assertEquals(ImmutableSet.of("first", "parent"), helper.expandNestedGroupNames(
+                "/", ImmutableSet.of("first"), 3, Duration.ofSeconds(5)));
+        assertEquals(ImmutableSet.of("first", "parent"), helper.expandNestedGroupNames(
+                "/", ImmutableSet.of("first"), 3, Duration.ofMillis(50)));
+        assertEquals(1, loadingThreads.size());
+        assertNotSame(Thread.currentThread(), loadingThreads.get(0));
+    }
+
+    @Test
+    @DisplayName("Should not close the circuit breaker when the caller of a probe is interrupted")
+    void shouldNotCloseBreakerOnInterruptedProbe() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            assertThrows(IdRepoException.class, () -> identityHelper.callWithDeadline(Duration.ofSeconds(10), () -> {
+                throw new IdRepoException("unavailable");
+            }));
+        }
+        assertEquals(CircuitBreaker.State.OPEN, identityHelper.circuitBreakerState());
+        clock.advance(Duration.ofSeconds(30));
+
+        // The probe cannot complete before the interrupted caller waits for it
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread.currentThread().interrupt();
+        try {
+            assertThrows(IdRepoUnavailableException.class,
+                    () -> identityHelper.callWithDeadline(Duration.ofSeconds(10), () -> {
+                        Uninterruptibles.awaitUninterruptibly(release);
+                        return "probe";
+                    }));
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+            release.countDown();
+        }
+        assertEquals(CircuitBreaker.State.OPEN, identityHelper.circuitBreakerState());
+        assertEquals("probe", identityHelper.callWithDeadline(Duration.ofSeconds(10), () -> "probe"));
+        assertEquals(CircuitBreaker.State.CLOSED, identityHelper.circuitBreakerState());
+    }
+
+    @Nested
+    @DisplayName("When watching the identity repository changes")
+    class ChangeNotifications {
+
+        InMemoryIdRepoEventSource eventSource;
+        MembershipCacheSettings settings;
+
+        @BeforeEach
+        void beforeEach() throws Exception {
+            eventSource = new InMemoryIdRepoEventSource();
+            settings = MembershipCacheSettings.of(Duration.ofHours(1), Duration.ZERO, 100);
+            identityHelper.startWatchingChanges(eventSource);
+            identityHelper.getIdentity("john", "/");
+            identityHelper.findAllAssignedGroupNamesOfUser(userIdentity, settings);
+            givenUserIsMemberOf("first");
+        }
+
+        @Test
+        @DisplayName("Should evict the memberships of a changed user only")
+        void shouldEvictMembershipsOfChangedUser() throws Exception {
+            eventSource.identityChanged("/", "id=jane,ou=user,o=root");
+            assertEquals(ImmutableSet.of("first", "second"),
+                    identityHelper.findAllAssignedGroupNamesOfUser(userIdentity, settings));
+
+            eventSource.identityChanged("/", "id=John,ou=user,o=root");
+            assertEquals(ImmutableSet.of("first"),
+                    identityHelper.findAllAssignedGroupNamesOfUser(userIdentity, settings));
+        }
+
+        @Test
+        @DisplayName("Should evict the memberships of the organization when a group changes")
+        void shouldEvictMembershipsWhenGroupChanges() throws Exception {
+            eventSource.identityChanged("/", "id=first,ou=group,o=root");
+
+            assertEquals(ImmutableSet.of("first"),
+                    identityHelper.findAllAssignedGroupNamesOfUser(userIdentity, settings));
+        }
+
+        @Test
+        @DisplayName("Should keep the memberships of subrealm users when a group of the parent realm changes")
+        void shouldKeepMembershipsOfSubrealmUsers() throws Exception {
+            final AMIdentity subrealmUser = mock(AMIdentity.class);
+            given(subrealmUser.getType()).willReturn(IdType.USER);
+            given(subrealmUser.isActive()).willReturn(true);
+            given(subrealmUser.getRealm()).willReturn("/sub");
+            given(subrealmUser.getUniversalId()).willReturn("id=jane,ou=user,o=sub,o=root");
+            final Set<AMIdentity> groups = ImmutableSet.of(group("third"));
+            given(subrealmUser.getMemberships(IdType.GROUP)).willReturn(groups);
+            identityHelper.findAllAssignedGroupNamesOfUser(subrealmUser, settings);
+
+            eventSource.identityChanged("/", "id=first,ou=group,o=root");
+
+            assertEquals(ImmutableSet.of("first"),
+                    identityHelper.findAllAssignedGroupNamesOfUser(userIdentity, settings));
+            identityHelper.findAllAssignedGroupNamesOfUser(subrealmUser, settings);
+            verify(subrealmUser, times(1)).getMemberships(IdType.GROUP);
+        }
+
+        @Test
+        @DisplayName("Should unregister the listeners when stopped")
+        void shouldUnregisterListenersWhenStopped() throws Exception {
+            assertEquals(1, eventSource.listenerCount("/"));
+
+            identityHelper.stopWatchingChanges();
+            eventSource.allIdentitiesChanged("/");
+
+            assertEquals(0, eventSource.listenerCount("/"));
+            assertEquals(ImmutableSet.of("first", "second"),
+                    identityHelper.findAllAssignedGroupNamesOfUser(userIdentity, settings));
+        }
+    }
+
+    @Test
+    @DisplayName("Should serve preloaded memberships from caches created afterwards until their TTL elapsed")
+    void shouldServePreloadedMemberships() throws Exception {
+        identityHelper.preloadMemberships(userIdentity);
+        givenUserIsMemberOf("first");
+        clock.advance(Duration.ofSeconds(30));
+        final MembershipCacheSettings settings = MembershipCacheSettings.of(Duration.ofMinutes(1), Duration.ZERO, 100);
+
+        assertEquals(ImmutableSet.of("first", "second"),
+                identityHelper.findAllAssignedGroupNamesOfUser(userIdentity, settings));
+        clock.advance(Duration.ofSeconds(30));
+        assertEquals(ImmutableSet.of("first"),
+                identityHelper.findAllAssignedGroupNamesOfUser(userIdentity, settings));
+    }
+
+    @Test
+    @DisplayName("Should not serve preloaded memberships to caches created after the warmup TTL elapsed")
+    void shouldExpirePreloadedMemberships() throws Exception {
+        identityHelper.preloadMemberships(userIdentity);
+        givenUserIsMemberOf("first");
+        clock.advance(Duration.ofMinutes(5));
+        final MembershipCacheSettings settings = MembershipCacheSettings.of(Duration.ofHours(1), Duration.ZERO, 100);
+
+        assertEquals(ImmutableSet.of("first"),
+                identityHelper.findAllAssignedGroupNamesOfUser(userIdentity, settings));
+    }
+
+    @Test
+    @DisplayName("Should not read the memberships from a user attribute unless one is configured")
+    void shouldNotReadMembershipAttributeByDefault() throws Exception {
+        assertEquals(ImmutableSet.of("first", "second"), identityHelper.findAllAssignedGroupNamesOfUser(userIdentity));
+
+        verify(userIdentity, never()).getAttributes(any(Set.class));
+        verify(userIdentity).getMemberships(IdType.GROUP);
+    }
+
+    @Nested
+    @DisplayName("When the memberships are read in one call")
+    class BatchedRead {
+
+        @BeforeEach
+        void beforeEach() {
+            System.setProperty(AmIdentityHelper.MEMBERSHIP_ATTRIBUTE_PROPERTY, "memberOf");
+            try {
+                identityHelper = new AmIdentityHelper(clock, Runnable::run);
+            } finally {
+                System.clearProperty(AmIdentityHelper.MEMBERSHIP_ATTRIBUTE_PROPERTY);
+            }
+        }
+
+        void givenAttributes(String status, String... groupDns) throws Exception {
+            final Map<String, Set<String>> attributes = new HashMap<>();
+            if (status != null) {
+                attributes.put("inetuserstatus", ImmutableSet.of(status));
+            }
+            attributes.put("memberOf", ImmutableSet.copyOf(groupDns));
+            given(userIdentity.getAttributes(any(Set.class))).willReturn(attributes);
+        }
+
+        @Test
+        @DisplayName("Should take the group names from the membership attribute without further reads")
+        void shouldReadStatusAndMembershipsOnce() throws Exception {
+            givenAttributes("Active", "cn=first,ou=groups,dc=example", "cn=Sales\\, EMEA,ou=groups,dc=example");
+
+            assertEquals(ImmutableSet.of("first", "Sales, EMEA"),
+                    identityHelper.findAllAssignedGroupNamesOfUser(userIdentity));
+            verify(userIdentity, never()).isActive();
+            verify(userIdentity, never()).isExists();
+            verify(userIdentity, never()).getMemberships(IdType.GROUP);
+        }
+
+        @Test
+        @DisplayName("Should reject inactive users")
+        void shouldRejectInactiveUsers() throws Exception {
+            givenAttributes("Inactive", "cn=first,ou=groups,dc=example");
+
+            assertThrows(IllegalArgumentException.class,
+                    () -> identityHelper.findAllAssignedGroupNamesOfUser(userIdentity));
+        }
+
+        @Test
+        @DisplayName("Should fall back to the separate checks when the status is not readable")
+        void shouldFallBackWithoutStatus() throws Exception {
+            givenAttributes(null);
+
+            assertEquals(ImmutableSet.of("first", "second"),
+                    identityHelper.findAllAssignedGroupNamesOfUser(userIdentity));
+            verify(userIdentity).isActive();
+        }
+    }
+
+    @Test
+    @DisplayName("Should read the roles from the role attribute and cache them apart from the memberships")
+    void shouldReadAndCacheRoleAttribute() throws Exception {
+        final MembershipCacheSettings settings = MembershipCacheSettings.of(Duration.ofMinutes(1), Duration.ZERO, 100);
+        final Map<String, Set<String>> attributes = new HashMap<>();
+        attributes.put("inetUserStatus", ImmutableSet.of("Active"));
+        attributes.put("isMemberOf", ImmutableSet.of("cn=first,ou=groups,dc=example", "Auditor"));
+        given(userIdentity.getAttributes(any(Set.class))).willReturn(attributes);
+
+        assertEquals(ImmutableSet.of("first", "Auditor"),
+                identityHelper.findRoleAttributeValuesOfUser(userIdentity, "isMemberOf", settings, Duration.ZERO));
+        assertEquals(ImmutableSet.of("first", "Auditor"),
+                identityHelper.findRoleAttributeValuesOfUser(userIdentity, "ISMEMBEROF", settings, Duration.ZERO));
+        verify(userIdentity, times(1)).getAttributes(any(Set.class));
+        verify(userIdentity, never()).isActive();
+        assertFalse(identityHelper.findRoleAttributeValuesOfUser(userIdentity, "isMemberOf", settings, Duration.ZERO)
+                instanceof RoleSet, "Attribute values should not be interned in the role dictionary");
+
+        assertEquals(ImmutableSet.of("first", "second"),
+                identityHelper.findAllAssignedGroupNamesOfUser(userIdentity, settings));
+        assertTrue(identityHelper.findAllAssignedGroupNamesOfUser(userIdentity, settings) instanceof RoleSet);
+    }
+
+    @Test
+    @DisplayName("Should cache the group names returned by a truncated search")
+    void shouldCacheTruncatedGroupSearch() throws Exception {
+        final Set<AMIdentity> groups = new LinkedHashSet<>(Arrays.asList(group("first"), group("second"), group("third")));
+        final IdSearchResults results = mock(IdSearchResults.class);
+        given(results.getSearchResults()).willReturn(groups);
+        given(results.getErrorCode()).willReturn(IdSearchResults.SIZE_LIMIT_EXCEEDED);
+        try (MockedConstruction<AMIdentityRepository> repositories = mockConstruction(AMIdentityRepository.class,
+                (repository, context) -> given(repository.searchIdentities(eq(IdType.GROUP), eq("*"), any()))
+                        .willReturn(results))) {
+            assertEquals(ImmutableSet.of("first", "second", "third"), identityHelper.findAllGroupNamesInRealm("/"));
+            assertEquals(ImmutableSet.of("first", "second", "third"), identityHelper.findAllGroupNamesInRealm("/"));
+
+            assertEquals(1, repositories.constructed().size());
+            verify(repositories.constructed().get(0), times(1)).searchIdentities(eq(IdType.GROUP), eq("*"), any());
+        }
+    }
+
+    @Test
+    @DisplayName("Should look up the group names missing from a truncated search")
+    void shouldNotTrustTruncatedGroupSearch() throws Exception {
+        final Set<AMIdentity> groups = ImmutableSet.of(group("first"));
+        final IdSearchResults results = mock(IdSearchResults.class);
+        given(results.getSearchResults()).willReturn(groups);
+        given(results.getErrorCode()).willReturn(IdSearchResults.TIME_LIMIT_EXCEEDED);
+        try (MockedConstruction<AMIdentityRepository> repositories = mockConstruction(AMIdentityRepository.class,
+                (repository, context) -> given(repository.searchIdentities(eq(IdType.GROUP), eq("*"), any()))
+                        .willReturn(results));
+             MockedConstruction<AMIdentity> lookups = mockConstruction(AMIdentity.class,
+                     (group, context) -> given(group.isExists()).willReturn(true))) {
+            identityHelper.findAllGroupNamesInRealm("/");
+
+            assertEquals(ImmutableSet.of(),
+                    identityHelper.findNonExistingGroupNames("/", ImmutableSet.of("first", "second")));
+            assertEquals(2, lookups.constructed().size());
+            assertTrue(identityHelper.snapshotCaches().catalogs().isEmpty());
+        }
+    }
+
+    @Test
+    @DisplayName("Should reuse the repository of a realm until the admin token is replaced or a search fails")
+    void shouldReuseRealmRepository() throws Exception {
+        final SSOToken firstToken = mock(SSOToken.class);
+        final SSOToken secondToken = mock(SSOToken.class);
+        final AdminTokenAction adminTokenAction = mock(AdminTokenAction.class);
+        given(adminTokenAction.run()).willReturn(firstToken, secondToken);
+        final SSOTokenManager tokenManager = mock(SSOTokenManager.class);
+        given(tokenManager.isValidToken(firstToken)).willReturn(false);
+        final AMIdentity group = group("first");
+        final IdSearchResults results = mock(IdSearchResults.class);
+        given(results.getSearchResults()).willReturn(ImmutableSet.of(group));
+        try (MockedStatic<AdminTokenAction> adminTokenActions = mockStatic(AdminTokenAction.class);
+             MockedStatic<SSOTokenManager> tokenManagers = mockStatic(SSOTokenManager.class);
+             MockedConstruction<AMIdentityRepository> repositories = mockConstruction(AMIdentityRepository.class,
+                     (repository, context) -> given(repository.searchIdentities(eq(IdType.GROUP), eq("*"), any()))
+                             .willReturn(results)
+                             .willThrow(new IdRepoException("realm deleted")))) {
+            adminTokenActions.when(AdminTokenAction::getInstance).thenReturn(adminTokenAction);
+            tokenManagers.when(SSOTokenManager::getInstance).thenReturn(tokenManager);
+
+            identityHelper.findAllGroupsInRealm("/");
+            assertEquals(1, identityHelper.realmRepositoryConstructionCount());
+            clock.advance(Duration.ofSeconds(2));
+            identityHelper.findAllGroupsInRealm("/");
+            assertEquals(2, identityHelper.adminTokenLookupCount());
+            assertEquals(2, identityHelper.realmRepositoryConstructionCount());
+
+            assertThrows(IdRepoException.class, () -> identityHelper.findAllGroupsInRealm("/"));
+            identityHelper.findAllGroupsInRealm("/");
+            assertEquals(3, identityHelper.realmRepositoryConstructionCount());
+            assertEquals(2, identityHelper.adminTokenLookupCount());
+        }
+    }
+
+    @Test
+    @DisplayName("Should use the universal id of the tree state only for a user of the same name and realm")
+    void shouldUseUniversalIdOfSameRealmOnly() throws Exception {
+        final SSOToken adminToken = mock(SSOToken.class);
+        final AdminTokenAction adminTokenAction = mock(AdminTokenAction.class);
+        given(adminTokenAction.run()).willReturn(adminToken);
+        final AMIdentity rootUser = mock(AMIdentity.class);
+        given(rootUser.getName()).willReturn("john");
+        given(rootUser.getRealm()).willReturn("ou=services,dc=example");
+        final AMIdentity subrealmUser = mock(AMIdentity.class);
+        given(subrealmUser.getName()).willReturn("John");
+        given(subrealmUser.getRealm()).willReturn("o=sub,ou=services,dc=example");
+        try (MockedStatic<AdminTokenAction> adminTokenActions = mockStatic(AdminTokenAction.class);
+             MockedStatic<DNMapper> dnMappers = mockStatic(DNMapper.class);
+             MockedStatic<IdUtils> idUtils = mockStatic(IdUtils.class)) {
+            adminTokenActions.when(AdminTokenAction::getInstance).thenReturn(adminTokenAction);
+            dnMappers.when(() -> DNMapper.orgNameToDN(any())).thenAnswer(invocation -> invocation.getArgument(0));
+            dnMappers.when(() -> DNMapper.orgNameToDN("/")).thenReturn("ou=services,dc=example");
+            dnMappers.when(() -> DNMapper.orgNameToDN("/sub")).thenReturn("o=sub,ou=services,dc=example");
+            idUtils.when(() -> IdUtils.getIdentity(adminToken, "id=john,ou=user,o=root")).thenReturn(rootUser);
+            idUtils.when(() -> IdUtils.getIdentity(adminToken, "id=john,ou=user,o=sub,o=root")).thenReturn(subrealmUser);
+            idUtils.when(() -> IdUtils.getIdentity("john", "/")).thenReturn(userIdentity);
+            idUtils.when(() -> IdUtils.getIdentity("john", "/sub")).thenReturn(userIdentity);
+
+            assertSame(rootUser, identityHelper.getIdentity("john", "/", "id=john,ou=user,o=root"));
+            assertSame(subrealmUser, identityHelper.getIdentity("john", "/sub", "id=john,ou=user,o=sub,o=root"));
+            assertSame(userIdentity, identityHelper.getIdentity("john", "/", "id=john,ou=user,o=sub,o=root"));
+            assertSame(userIdentity, identityHelper.getIdentity("john", "/sub", "id=john,ou=user,o=root"));
+        }
+    }
+
+    @Test
+    @DisplayName("Should look up only the group names not found recently")
+    void shouldLookUpOnlyUnverifiedGroupNames() throws Exception {
+        try (MockedConstruction<AMIdentity> groups = mockConstruction(AMIdentity.class,
+                (group, context) -> given(group.isExists()).willReturn(!"missing".equals(context.arguments().get(1))))) {
+            assertEquals(ImmutableSet.of("missing"),
+                    identityHelper.findNonExistingGroupNames("/", ImmutableSet.of("first", "missing")));
+            assertEquals(2, groups.constructed().size());
+
+            assertEquals(ImmutableSet.of("missing"),
+                    identityHelper.findNonExistingGroupNames("/", ImmutableSet.of("first", "second", "missing")));
+            assertEquals(4, groups.constructed().size());
+
+            identityHelper.invalidateGroupNamesInRealm("/");
+            identityHelper.findNonExistingGroupNames("/", ImmutableSet.of("first"));
+            assertEquals(5, groups.constructed().size());
+        }
+    }
+
+    @Test
+    @DisplayName("Should query the memberships on every call when the membership cache is disabled")
+    void shouldQueryMembershipsEveryTimeWhenCacheIsDisabled() throws Exception {
+        identityHelper.findAllAssignedGroupNamesOfUser(userIdentity, MembershipCacheSettings.disabled());
+        identityHelper.findAllAssignedGroupNamesOfUser(userIdentity, MembershipCacheSettings.disabled());
+
+        verify(userIdentity, times(2)).getMemberships(IdType.GROUP);
+    }
+
+    @Test
+    @DisplayName("Should share one membership lookup between concurrent callers for the same user")
+    void shouldShareOneMembershipLookupBetweenConcurrentCallers() throws Exception {
+        final Set<AMIdentity> groups = ImmutableSet.of(group("first"));
+        final CountDownLatch lookingUp = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        given(userIdentity.getMemberships(IdType.GROUP)).willAnswer(invocation -> {
+            lookingUp.countDown();
+            Uninterruptibles.awaitUninterruptibly(release);
+            return groups;
+        });
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<Set<String>>> results = new ArrayList<>();
+            results.add(executor.submit(() -> identityHelper.findAllAssignedGroupNamesOfUser(userIdentity)));
+            assertTrue(lookingUp.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < 3; i++) {
+                results.add(executor.submit(() -> identityHelper.findAllAssignedGroupNamesOfUser(userIdentity)));
+            }
+            for (int i = 0; i < 500 && identityHelper.coalescedMembershipLookupCount() < 3; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(3, identityHelper.coalescedMembershipLookupCount());
+            release.countDown();
+            for (Future<Set<String>> result : results) {
+                assertEquals(ImmutableSet.of("first"), result.get(5, TimeUnit.SECONDS));
+            }
+            verify(userIdentity, times(1)).getMemberships(IdType.GROUP);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
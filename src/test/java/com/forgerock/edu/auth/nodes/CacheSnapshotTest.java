@@ -0,0 +1,98 @@
+package com.forgerock.edu.auth.nodes;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class CacheSnapshotTest {
+
+    @TempDir
+    Path directory;
+    Path file;
+    CacheSnapshot snapshot;
+
+    @BeforeEach
+    void beforeEach() {
+        file = directory.resolve("cache.bin");
+        snapshot = new CacheSnapshot(1000L);
+        snapshot.addCatalog("/", ImmutableSet.of("first", "second"), 900L);
+        final CacheSnapshot.MembershipCache cache = snapshot.addMembershipCache(60000L, 5000L, 100);
+        cache.add("/", "id=john,ou=user,o=root", null, null, ImmutableSet.of("first"), 800L);
+        cache.add("/", "id=jane,ou=user,o=root", ImmutableSet.of("second", "first"), "memberOf",
+                ImmutableSet.of(), 700L);
+    }
+
+    @Test
+    @DisplayName("Should read back the catalogs and membership entries it wrote")
+    void shouldReadBackWhatItWrote() throws Exception {
+        snapshot.writeTo(file);
+
+        final CacheSnapshot read = CacheSnapshot.readFrom(file);
+        assertEquals(1000L, read.writtenAt());
+        assertEquals(3, read.entryCount());
+        final CacheSnapshot.Catalog catalog = read.catalogs().get(0);
+        assertEquals("/", catalog.realm);
+        assertEquals(ImmutableSet.of("first", "second"), catalog.groupNames);
+        assertEquals(900L, catalog.loadedAt);
+        final CacheSnapshot.MembershipCache cache = read.membershipCaches().get(0);
+        assertEquals(60000L, cache.ttlMillis);
+        assertEquals(5000L, cache.staleMillis);
+        assertEquals(100, cache.maxEntries);
+        final CacheSnapshot.MembershipEntry john = cache.entries.get(0);
+        assertEquals("id=john,ou=user,o=root", john.universalId);
+        assertNull(john.checkedGroupNames);
+        assertNull(john.attributeName);
+        assertEquals(ImmutableSet.of("first"), john.roleNames);
+        assertEquals(800L, john.loadedAt);
+        final CacheSnapshot.MembershipEntry jane = cache.entries.get(1);
+        assertEquals(ImmutableList.of("second", "first"), jane.checkedGroupNames);
+        assertEquals("memberOf", jane.attributeName);
+        assertTrue(jane.roleNames.isEmpty());
+        assertFalse(Files.exists(directory.resolve("cache.bin.tmp")));
+    }
+
+    @Test
+    @DisplayName("Should create the snapshot readable by its owner only")
+    void shouldCreateSnapshotReadableByOwnerOnly() throws Exception {
+        assumeTrue(directory.getFileSystem().supportedFileAttributeViews().contains("posix"));
+        Files.createFile(directory.resolve("cache.bin.tmp"),
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-rw-rw-")));
+
+        snapshot.writeTo(file);
+
+        assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(file));
+    }
+
+    @Test
+    @DisplayName("Should reject a snapshot whose checksum does not match")
+    void shouldRejectCorruptSnapshot() throws Exception {
+        snapshot.writeTo(file);
+        final byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length / 2] ^= 0x01;
+        Files.write(file, bytes);
+
+        assertThrows(IOException.class, () -> CacheSnapshot.readFrom(file));
+    }
+
+    @Test
+    @DisplayName("Should reject a truncated snapshot")
+    void shouldRejectTruncatedSnapshot() throws Exception {
+        snapshot.writeTo(file);
+        final byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 4));
+
+        assertThrows(IOException.class, () -> CacheSnapshot.readFrom(file));
+    }
+}
@@ -0,0 +1,78 @@
+package com.forgerock.edu.auth.nodes;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+class CacheSnapshotterTest {
+
+    @TempDir
+    Path directory;
+    Path file;
+    AmIdentityHelper identityHelper;
+    CacheSnapshotter snapshotter;
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        file = directory.resolve("cache.bin");
+        final CacheSnapshot snapshot = new CacheSnapshot(1000L);
+        snapshot.addCatalog("/", ImmutableSet.of("first", "second"), 900L);
+        snapshot.writeTo(file);
+        identityHelper = mock(AmIdentityHelper.class);
+        given(identityHelper.snapshotCaches()).willReturn(new CacheSnapshot(2000L));
+        snapshotter = new CacheSnapshotter(identityHelper, file, Duration.ofHours(1));
+    }
+
+    @Test
+    @DisplayName("Should write a last snapshot on stop once the snapshot file is restored")
+    void shouldWriteSnapshotOnStopOnceRestored() throws Exception {
+        snapshotter.start();
+        verify(identityHelper, timeout(5000)).restoreCaches(any());
+
+        snapshotter.stop();
+
+        verify(identityHelper).snapshotCaches();
+        assertEquals(2000L, CacheSnapshot.readFrom(file).writtenAt());
+    }
+
+    @Test
+    @DisplayName("Should keep the snapshot file when stopped before it is restored")
+    void shouldKeepSnapshotFileWhenStoppedBeforeRestored() throws Exception {
+        final CountDownLatch restoring = new CountDownLatch(1);
+        willAnswer(invocation -> {
+            restoring.countDown();
+            try {
+                new CountDownLatch(1).await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(ex);
+            }
+            return 0;
+        }).given(identityHelper).restoreCaches(any());
+        final byte[] before = Files.readAllBytes(file);
+        snapshotter.start();
+        assertTrue(restoring.await(5, TimeUnit.SECONDS));
+
+        snapshotter.stop();
+
+        verify(identityHelper, never()).snapshotCaches();
+        assertArrayEquals(before, Files.readAllBytes(file));
+    }
+}
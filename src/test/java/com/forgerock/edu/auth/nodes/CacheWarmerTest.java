@@ -0,0 +1,95 @@
+package com.forgerock.edu.auth.nodes;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.sun.identity.idm.AMIdentity;
+import com.sun.identity.idm.IdRepoException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+
+class CacheWarmerTest {
+
+    AmIdentityHelper identityHelper;
+    RoleSelectionMetrics metrics;
+
+    @BeforeEach
+    void beforeEach() {
+        identityHelper = mock(AmIdentityHelper.class);
+        metrics = new RoleSelectionMetrics(true);
+    }
+
+    @Test
+    @DisplayName("Should load the realms and users in the background and report the progress")
+    void shouldWarmUpRealmsAndUsers() throws Exception {
+        final AMIdentity john = mock(AMIdentity.class);
+        given(identityHelper.getIdentity("john", "/")).willReturn(john);
+        given(identityHelper.getIdentity("jane", "/customers")).willReturn(null);
+        given(identityHelper.preloadMemberships(null)).willThrow(new IllegalArgumentException("missing"));
+        given(identityHelper.findAllGroupNamesInRealm("/customers")).willThrow(new IdRepoException("down"));
+        final CacheWarmer warmer = new CacheWarmer(identityHelper, metrics,
+                ImmutableList.of("/", "/customers"), ImmutableList.of("john", "/customers:jane"), 1000);
+
+        warmer.start();
+
+        assertTrue(warmer.awaitCompletion(5, TimeUnit.SECONDS));
+        verify(identityHelper).findAllGroupNamesInRealm("/");
+        verify(identityHelper).preloadMemberships(john);
+        assertEquals(4L, metrics.getWarmupStatus().get("total"));
+        assertEquals(2L, metrics.getWarmupStatus().get("completed"));
+        assertEquals(2L, metrics.getWarmupStatus().get("failed"));
+        assertTrue(metrics.getWarmupStatus().get("durationMillis") >= 0);
+        assertEquals(0L, metrics.getWarmupStatus().get("aborted"));
+    }
+
+    @Test
+    @DisplayName("Should report a warmup stopped before the end as aborted")
+    void shouldReportStoppedWarmupAsAborted() throws Exception {
+        final CountDownLatch warming = new CountDownLatch(1);
+        willAnswer(invocation -> {
+            warming.countDown();
+            try {
+                new CountDownLatch(1).await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            throw new IdRepoException("interrupted");
+        }).given(identityHelper).findAllGroupNamesInRealm("/");
+        final CacheWarmer warmer = new CacheWarmer(identityHelper, metrics,
+                ImmutableList.of("/", "/customers"), ImmutableList.of("john"), 1000);
+        warmer.start();
+        assertTrue(warming.await(5, TimeUnit.SECONDS));
+
+        warmer.stop();
+
+        assertTrue(warmer.awaitCompletion(5, TimeUnit.SECONDS));
+        verify(identityHelper, never()).findAllGroupNamesInRealm("/customers");
+        assertEquals(3L, metrics.getWarmupStatus().get("total"));
+        assertEquals(1L, metrics.getWarmupStatus().get("failed"));
+        assertTrue(metrics.getWarmupStatus().get("durationMillis") >= 0);
+        assertEquals(1L, metrics.getWarmupStatus().get("aborted"));
+    }
+
+    @Test
+    @DisplayName("Should do nothing when nothing is configured")
+    void shouldDoNothingWhenNotConfigured() throws Exception {
+        final CacheWarmer warmer = new CacheWarmer(identityHelper, metrics, ImmutableList.of(), ImmutableList.of(), 10);
+
+        warmer.start();
+
+        assertTrue(warmer.awaitCompletion(1, TimeUnit.SECONDS));
+        verifyNoInteractions(identityHelper);
+        assertEquals(-1L, metrics.getWarmupStatus().get("durationMillis"));
+    }
+}
@@ -0,0 +1,81 @@
+package com.forgerock.edu.auth.nodes;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CandidateRoleMatcherTest {
+
+    @Test
+    @DisplayName("Should return the matching roles in the order of the candidate roles")
+    void shouldReturnMatchingRolesInCandidateOrder() {
+        final CandidateRoleMatcher matcher = new CandidateRoleMatcher(ImmutableList.of("c", "a", "b"), false);
+
+        assertArrayEquals(new String[]{"c", "b"}, matcher.selectableRoles(ImmutableSet.of("b", "x", "c", "y")));
+        assertArrayEquals(new String[]{"c", "b"}, matcher.selectableRoles(ImmutableSet.of("b", "c")));
+    }
+
+    @Test
+    @DisplayName("Should return no roles when nothing matches")
+    void shouldReturnNoRolesWhenNothingMatches() {
+        final CandidateRoleMatcher matcher = new CandidateRoleMatcher(ImmutableList.of("a", "b"), false);
+
+        assertEquals(0, matcher.selectableRoles(ImmutableSet.of("A", "c")).length);
+        assertEquals(0, matcher.selectableRoles(ImmutableSet.of()).length);
+    }
+
+    @Test
+    @DisplayName("Should match regardless of case and return the configured name when case-insensitive")
+    void shouldMatchRegardlessOfCaseWhenCaseInsensitive() {
+        final CandidateRoleMatcher matcher = new CandidateRoleMatcher(ImmutableList.of("ContactAdmin", "ContactReader"), true);
+
+        assertArrayEquals(new String[]{"ContactAdmin", "ContactReader"},
+                matcher.selectableRoles(ImmutableSet.of("contactreader", "CONTACTADMIN", "contactAdmin")));
+        assertTrue(matcher.matches("contactadmin"));
+    }
+
+    @Test
+    @DisplayName("Should ignore duplicate candidate roles")
+    void shouldIgnoreDuplicateCandidateRoles() {
+        final CandidateRoleMatcher matcher = new CandidateRoleMatcher(ImmutableList.of("a", "A", "b"), true);
+
+        assertEquals(2, matcher.size());
+        assertArrayEquals(new String[]{"a", "b"}, matcher.selectableRoles(ImmutableSet.of("A", "B")));
+    }
+
+    @Test
+    @DisplayName("Should intersect the role sets of a dictionary, whether bitsets or sorted arrays")
+    void shouldIntersectRoleSets() {
+        final RoleDictionary dictionary = new RoleDictionary(1000);
+        for (int i = 0; i < 500; i++) {
+            dictionary.intern("group" + i);
+        }
+        final CandidateRoleMatcher matcher = new CandidateRoleMatcher(ImmutableList.of("c", "group3", "group400"), false);
+        final RoleSet dense = dictionary.encode(ImmutableList.of("group0", "group1", "group2", "group3"));
+        final RoleSet sparse = dictionary.encode(ImmutableList.of("group400", "c", "group3", "group400"));
+
+        assertTrue(dense.isBitset());
+        assertFalse(sparse.isBitset());
+        assertEquals(ImmutableSet.of("group400", "group3", "c"), sparse);
+        assertArrayEquals(new String[]{"group3"}, matcher.selectableRoles(dense));
+        assertArrayEquals(new String[]{"c", "group3", "group400"}, matcher.selectableRoles(sparse));
+        assertArrayEquals(new String[]{"group3"},
+                matcher.selectableRoles(dictionary.encode(ImmutableList.of("group3", "group499"))));
+    }
+
+    @Test
+    @DisplayName("Should not encode the role names once the dictionary is full")
+    void shouldNotEncodeOnceDictionaryIsFull() {
+        final RoleDictionary dictionary = new RoleDictionary(2);
+
+        assertEquals(ImmutableSet.of("a", "b"), dictionary.encode(ImmutableList.of("a", "b")));
+        assertNull(dictionary.encode(ImmutableList.of("a", "c")));
+        assertArrayEquals(new String[]{"a"},
+                new CandidateRoleMatcher(ImmutableList.of("a"), false).selectableRoles(dictionary.encode(ImmutableList.of("a"))));
+        assertArrayEquals(new String[]{"b"},
+                new CandidateRoleMatcher(ImmutableList.of("b", "x"), false).selectableRoles(dictionary.encode(ImmutableList.of("a", "b"))));
+    }
+}
@@ -0,0 +1,78 @@
+package com.forgerock.edu.auth.nodes;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CircuitBreakerTest {
+
+    MutableClock clock;
+    CircuitBreaker circuitBreaker;
+
+    @BeforeEach
+    void beforeEach() {
+        clock = new MutableClock();
+        circuitBreaker = new CircuitBreaker(2, Duration.ofSeconds(30), clock);
+    }
+
+    @Test
+    @DisplayName("Should open after the consecutive failure threshold")
+    void shouldOpenAfterConsecutiveFailures() {
+        circuitBreaker.onFailure();
+        circuitBreaker.onSuccess();
+        circuitBreaker.onFailure();
+        assertTrue(circuitBreaker.tryAcquire());
+
+        circuitBreaker.onFailure();
+
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.state());
+        assertFalse(circuitBreaker.tryAcquire());
+    }
+
+    @Test
+    @DisplayName("Should let a single probe through once the open duration elapsed")
+    void shouldLetSingleProbeThrough() {
+        circuitBreaker.onFailure();
+        circuitBreaker.onFailure();
+        clock.advance(Duration.ofSeconds(30));
+
+        assertTrue(circuitBreaker.tryAcquire());
+        assertFalse(circuitBreaker.tryAcquire());
+        circuitBreaker.onSuccess();
+
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.state());
+        assertTrue(circuitBreaker.tryAcquire());
+    }
+
+    @Test
+    @DisplayName("Should open again when the probe fails")
+    void shouldOpenAgainWhenProbeFails() {
+        circuitBreaker.onFailure();
+        circuitBreaker.onFailure();
+        clock.advance(Duration.ofSeconds(30));
+        circuitBreaker.tryAcquire();
+
+        circuitBreaker.onFailure();
+
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.state());
+        assertFalse(circuitBreaker.tryAcquire());
+    }
+
+    @Test
+    @DisplayName("Should give up an abandoned probe without closing or restarting the open duration")
+    void shouldGiveUpAbandonedProbe() {
+        circuitBreaker.onFailure();
+        circuitBreaker.onFailure();
+        clock.advance(Duration.ofSeconds(30));
+        assertTrue(circuitBreaker.tryAcquire());
+
+        circuitBreaker.onAbandoned();
+
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.state());
+        assertTrue(circuitBreaker.tryAcquire());
+    }
+}
@@ -0,0 +1,165 @@
+package com.forgerock.edu.auth.nodes;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.sun.identity.idm.IdRepoException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExpiringCacheTest {
+
+    MutableClock clock;
+    ExpiringCache<String, String> cache;
+    AtomicInteger loadCount;
+
+    @BeforeEach
+    void beforeEach() {
+        clock = new MutableClock();
+        cache = new ExpiringCache<>(Duration.ofMinutes(5), 10, clock);
+        loadCount = new AtomicInteger();
+    }
+
+    String load(String key) throws Exception {
+        return cache.get(key, () -> key + "-" + loadCount.incrementAndGet());
+    }
+
+    @Test
+    @DisplayName("Should serve the cached value until the TTL elapses")
+    void shouldServeCachedValueUntilTtlElapses() throws Exception {
+        assertEquals("a-1", load("a"));
+        clock.advance(Duration.ofMinutes(4));
+        assertEquals("a-1", load("a"));
+        clock.advance(Duration.ofMinutes(1));
+        assertEquals("a-2", load("a"));
+    }
+
+    @Test
+    @DisplayName("Should load again after invalidation")
+    void shouldLoadAgainAfterInvalidation() throws Exception {
+        load("a");
+        load("b");
+        cache.invalidate("a");
+        assertEquals("a-3", load("a"));
+        assertEquals("b-2", load("b"));
+        cache.invalidateAll();
+        assertEquals("b-4", load("b"));
+    }
+
+    @Test
+    @DisplayName("Should evict the oldest entries when the maximum size is exceeded")
+    void shouldEvictOldestEntriesWhenMaximumSizeIsExceeded() throws Exception {
+        for (int i = 0; i < 11; i++) {
+            load("key" + i);
+            clock.advance(Duration.ofSeconds(1));
+        }
+        assertTrue(cache.size() <= 10);
+        assertEquals("key10-11", load("key10"));
+        assertEquals("key0-12", load("key0"));
+    }
+
+    @Test
+    @DisplayName("Should not cache failed loads")
+    void shouldNotCacheFailedLoads() throws Exception {
+        assertThrows(IdRepoException.class, () -> cache.get("a", () -> {
+            throw new IdRepoException("down");
+        }));
+        assertEquals("a-1", load("a"));
+    }
+
+    @Test
+    @DisplayName("Should share one load between concurrent callers of the same key")
+    void shouldShareOneLoadBetweenConcurrentCallers() throws Exception {
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<String>> results = new ArrayList<>();
+            results.add(executor.submit(() -> cache.get("a", () -> {
+                loading.countDown();
+                Uninterruptibles.awaitUninterruptibly(release);
+                return "a-" + loadCount.incrementAndGet();
+            })));
+            assertTrue(loading.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < 3; i++) {
+                results.add(executor.submit(() -> load("a")));
+            }
+            release.countDown();
+            for (Future<String> result : results) {
+                assertEquals("a-1", result.get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(1, loadCount.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    @DisplayName("Should not cache a value whose key was invalidated while it was loading")
+    void shouldNotCacheValueInvalidatedWhileLoading() throws Exception {
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<String> stale = executor.submit(() -> cache.get("a", () -> {
+                loading.countDown();
+                Uninterruptibles.awaitUninterruptibly(release);
+                return "a-" + loadCount.incrementAndGet();
+            }));
+            assertTrue(loading.await(5, TimeUnit.SECONDS));
+
+            cache.invalidateIf("a"::equals);
+            release.countDown();
+
+            assertEquals("a-1", stale.get(5, TimeUnit.SECONDS));
+            assertNull(cache.getIfValid("a"));
+            assertEquals("a-2", load("a"));
+            assertEquals("a-2", load("a"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    @DisplayName("Should serve the stale value during the stale window and reload it in the background")
+    void shouldServeStaleValueWhileReloading() throws Exception {
+        final List<Runnable> refreshes = new ArrayList<>();
+        cache = new ExpiringCache<>(Duration.ofMinutes(5), Duration.ofMinutes(1), 10, clock, refreshes::add);
+
+        assertEquals("a-1", load("a"));
+        clock.advance(Duration.ofMinutes(5));
+        assertEquals("a-1", load("a"));
+        assertEquals("a-1", load("a"));
+        assertEquals(1, refreshes.size(), "Only one background reload should be scheduled");
+
+        refreshes.get(0).run();
+        assertEquals("a-2", load("a"));
+
+        final CacheStatistics statistics = cache.statistics();
+        assertEquals(2, statistics.getStaleHitCount());
+        assertEquals(1, statistics.getHitCount());
+        assertEquals(1, statistics.getMissCount());
+    }
+
+    @Test
+    @DisplayName("Should not serve a value once the TTL and the stale window both elapsed")
+    void shouldNotServeValueAfterStaleWindow() throws Exception {
+        cache = new ExpiringCache<>(Duration.ofMinutes(5), Duration.ofMinutes(1), 10, clock, runnable -> { });
+
+        load("a");
+        clock.advance(Duration.ofMinutes(6));
+        assertEquals("a-2", load("a"));
+        assertEquals(2, cache.statistics().getMissCount());
+    }
+}
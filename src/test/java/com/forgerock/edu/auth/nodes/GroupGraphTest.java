@@ -0,0 +1,56 @@
+package com.forgerock.edu.auth.nodes;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GroupGraphTest {
+
+    GroupGraph graph;
+
+    @BeforeEach
+    void beforeEach() {
+        // staff > managers > directors, and a cycle between a and b
+        graph = GroupGraph.of(ImmutableMap.of(
+                "staff", ImmutableSet.of("managers"),
+                "managers", ImmutableSet.of("directors"),
+                "a", ImmutableSet.of("b"),
+                "b", ImmutableSet.of("a")));
+    }
+
+    @Test
+    @DisplayName("Should add the ancestors of the groups")
+    void shouldAddAncestors() {
+        assertEquals(ImmutableSet.of("directors", "managers", "staff", "other"),
+                graph.expand(ImmutableSet.of("directors", "other"), 5));
+    }
+
+    @Test
+    @DisplayName("Should stop at the depth limit")
+    void shouldStopAtDepthLimit() {
+        assertEquals(ImmutableSet.of("directors", "managers"), graph.expand(ImmutableSet.of("directors"), 1));
+    }
+
+    @Test
+    @DisplayName("Should terminate on cycles")
+    void shouldTerminateOnCycles() {
+        assertEquals(ImmutableSet.of("a", "b"), graph.expand(ImmutableSet.of("a"), 10));
+    }
+
+    @Test
+    @DisplayName("Should follow the changed and deleted groups")
+    void shouldFollowChanges() {
+        final GroupGraph changed = graph.withChildren("staff", ImmutableSet.of("directors"));
+        assertEquals(ImmutableSet.of("directors", "managers", "staff"),
+                changed.expand(ImmutableSet.of("directors"), 5));
+
+        final GroupGraph deleted = changed.withoutGroup("managers");
+        assertEquals(ImmutableSet.of("directors", "staff"), deleted.expand(ImmutableSet.of("directors"), 5));
+        assertEquals(ImmutableSet.of("directors", "managers", "staff"),
+                graph.expand(ImmutableSet.of("directors"), 5));
+    }
+}
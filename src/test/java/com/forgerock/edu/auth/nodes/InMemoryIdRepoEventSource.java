@@ -0,0 +1,36 @@
+package com.forgerock.edu.auth.nodes;
+
+import com.sun.identity.idm.IdEventListener;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An {@link IdRepoEventSource} for tests, delivering the changes it is told about to the listeners of the realm.
+ */
+class InMemoryIdRepoEventSource implements IdRepoEventSource {
+
+    private final Map<String, List<IdEventListener>> listeners = new ConcurrentHashMap<>();
+
+    @Override
+    public Runnable register(String realm, IdEventListener listener) {
+        final List<IdEventListener> realmListeners =
+                listeners.computeIfAbsent(realm, r -> new CopyOnWriteArrayList<>());
+        realmListeners.add(listener);
+        return () -> realmListeners.remove(listener);
+    }
+
+    void identityChanged(String realm, String universalId) {
+        listeners.getOrDefault(realm, List.of()).forEach(listener -> listener.identityChanged(universalId));
+    }
+
+    void allIdentitiesChanged(String realm) {
+        listeners.getOrDefault(realm, List.of()).forEach(IdEventListener::allIdentitiesChanged);
+    }
+
+    int listenerCount(String realm) {
+        return listeners.getOrDefault(realm, List.of()).size();
+    }
+}
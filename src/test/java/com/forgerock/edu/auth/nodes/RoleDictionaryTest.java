@@ -0,0 +1,68 @@
+package com.forgerock.edu.auth.nodes;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RoleDictionaryTest {
+
+    @Test
+    @DisplayName("Should assign dense ids in the order of first use, and keep them")
+    void shouldAssignDenseIds() {
+        final RoleDictionary dictionary = new RoleDictionary(100);
+
+        assertEquals(0, dictionary.intern("b"));
+        assertEquals(1, dictionary.intern("a"));
+        assertEquals(0, dictionary.intern("b"));
+        assertEquals(1, dictionary.idOf("a"));
+        assertEquals(-1, dictionary.idOf("c"));
+        assertEquals("a", dictionary.nameOf(1));
+        assertEquals(2, dictionary.size());
+    }
+
+    @Test
+    @DisplayName("Should grow past its initial capacity")
+    void shouldGrowPastInitialCapacity() {
+        final RoleDictionary dictionary = new RoleDictionary(1000);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, dictionary.intern("group" + i));
+        }
+
+        assertEquals(100, dictionary.size());
+        assertEquals("group0", dictionary.nameOf(0));
+        assertEquals("group99", dictionary.nameOf(99));
+    }
+
+    @Test
+    @DisplayName("Should not assign ids once full, and not encode the sets of unassigned names")
+    void shouldStopAssigningOnceFull() {
+        final RoleDictionary dictionary = new RoleDictionary(2);
+
+        assertEquals(ImmutableSet.of("a", "b"), dictionary.encode(ImmutableList.of("a", "b")));
+        assertEquals(-1, dictionary.intern("c"));
+        assertEquals(2, dictionary.size());
+        assertNull(dictionary.encode(ImmutableList.of("a", "c")));
+        assertEquals(ImmutableSet.of("b"), dictionary.encode(ImmutableList.of("b")));
+    }
+
+    @Test
+    @DisplayName("Should encode the names as a set of their ids, sharing the dictionary's copy of each name")
+    void shouldEncodeNames() {
+        final RoleDictionary dictionary = new RoleDictionary(100);
+        final String first = new String("first");
+        dictionary.intern(first);
+
+        final RoleSet roleSet = dictionary.encode(Arrays.asList(new String("second"), new String("first"), "second"));
+
+        assertSame(dictionary, roleSet.dictionary());
+        assertEquals(ImmutableSet.of("first", "second"), roleSet);
+        assertSame(first, roleSet.iterator().next());
+        assertEquals(ImmutableSet.of(), dictionary.encode(ImmutableList.of()));
+        assertNull(dictionary.encode(Arrays.asList("first", null)));
+    }
+}
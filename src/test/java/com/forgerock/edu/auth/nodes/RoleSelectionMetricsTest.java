@@ -0,0 +1,64 @@
+package com.forgerock.edu.auth.nodes;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RoleSelectionMetricsTest {
+
+    @Test
+    @DisplayName("Should report percentiles within the bucket precision")
+    void shouldReportPercentilesWithinBucketPrecision() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+
+        final TimerStatistics statistics = histogram.statistics();
+        assertEquals(1000, statistics.getCount());
+        assertEquals(500.5, statistics.getMeanMicros(), 0.001);
+        assertEquals(1000, statistics.getMaxMicros());
+        assertTrue(statistics.getP50Micros() >= 500 && statistics.getP50Micros() <= 625, "p50=" + statistics.getP50Micros());
+        assertTrue(statistics.getP99Micros() >= 990 && statistics.getP99Micros() <= 1237, "p99=" + statistics.getP99Micros());
+    }
+
+    @Test
+    @DisplayName("Should map every latency into the bucket whose bounds contain it")
+    void shouldMapLatencyIntoContainingBucket() {
+        for (long micros = 0; micros < 100_000; micros++) {
+            final int bucket = LatencyHistogram.bucketOf(micros);
+            assertTrue(micros <= LatencyHistogram.upperBoundOf(bucket), "micros=" + micros);
+            assertTrue(bucket == 0 || micros > LatencyHistogram.upperBoundOf(bucket - 1), "micros=" + micros);
+        }
+    }
+
+    @Test
+    @DisplayName("Should record nothing when disabled")
+    void shouldRecordNothingWhenDisabled() {
+        final RoleSelectionMetrics metrics = RoleSelectionMetrics.noop();
+
+        metrics.stop(RoleSelectionMetrics.Phase.GET_IDENTITY, metrics.start());
+        metrics.outcome(RoleSelectionMetrics.Outcome.SELECTED);
+        metrics.selectableRoles(3);
+
+        assertEquals(0, metrics.phaseLatency(RoleSelectionMetrics.Phase.GET_IDENTITY).getCount());
+        assertEquals(0, metrics.outcomeCount(RoleSelectionMetrics.Outcome.SELECTED));
+        assertEquals(0L, metrics.getSelectableRoleCounts().get("3"));
+    }
+
+    @Test
+    @DisplayName("Should count large selectable role sets in the last bucket")
+    void shouldCountLargeSelectableRoleSetsInLastBucket() {
+        final RoleSelectionMetrics metrics = new RoleSelectionMetrics(true);
+
+        metrics.selectableRoles(2);
+        metrics.selectableRoles(10);
+        metrics.selectableRoles(250);
+
+        assertEquals(1L, metrics.getSelectableRoleCounts().get("2"));
+        assertEquals(2L, metrics.getSelectableRoleCounts().get("10+"));
+    }
+}
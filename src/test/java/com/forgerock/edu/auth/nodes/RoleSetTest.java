@@ -0,0 +1,102 @@
+package com.forgerock.edu.auth.nodes;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RoleSetTest {
+
+    RoleDictionary dictionary;
+
+    @BeforeEach
+    void beforeEach() {
+        dictionary = new RoleDictionary(1000);
+        for (int i = 0; i < 200; i++) {
+            dictionary.intern("group" + i);
+        }
+    }
+
+    RoleSet of(int... ids) {
+        return RoleSet.of(dictionary, ids.clone(), ids.length);
+    }
+
+    @Test
+    @DisplayName("Should hold the ids as a bitset only when it is smaller than the sorted array")
+    void shouldChooseSmallerEncoding() {
+        assertFalse(of(0, 1).isBitset(), "one word is not smaller than two ints");
+        assertTrue(of(0, 1, 2).isBitset());
+        assertFalse(of(63, 64).isBitset());
+        assertTrue(of(63, 64, 65, 66, 67).isBitset());
+        assertFalse(of(5, 150).isBitset());
+
+        assertArrayEquals(new long[]{0b111}, of(2, 0, 1).words());
+        assertArrayEquals(new int[]{5, 150}, of(150, 5).ids());
+    }
+
+    @Test
+    @DisplayName("Should drop duplicate ids")
+    void shouldDropDuplicateIds() {
+        assertEquals(2, of(7, 3, 7, 3).size());
+        assertArrayEquals(new int[]{3, 7}, of(7, 3, 7, 3).ids());
+        assertEquals(3, of(1, 0, 2, 1, 0).size());
+    }
+
+    @Test
+    @DisplayName("Should tell which names it contains, whatever the encoding")
+    void shouldContainItsNamesOnly() {
+        for (RoleSet roleSet : ImmutableList.of(of(0, 1, 2, 64), of(2, 190))) {
+            assertTrue(roleSet.contains("group2"));
+            assertFalse(roleSet.contains("group3"));
+            assertFalse(roleSet.contains("group199"), "an id beyond the last word");
+            assertFalse(roleSet.contains("unknown"), "a name without id");
+            assertFalse(roleSet.contains(2));
+            assertFalse(roleSet.containsId(-1));
+        }
+    }
+
+    @Test
+    @DisplayName("Should iterate the names in the order of their ids, whatever the encoding")
+    void shouldIterateInIdOrder() {
+        final RoleSet bitset = of(64, 3, 63, 2, 1, 0);
+        final RoleSet array = of(130, 64, 2, 63, 0);
+
+        assertTrue(bitset.isBitset());
+        assertEquals(ImmutableList.of("group0", "group1", "group2", "group3", "group63", "group64"), namesOf(bitset));
+        assertFalse(array.isBitset());
+        assertEquals(ImmutableList.of("group0", "group2", "group63", "group64", "group130"), namesOf(array));
+        assertEquals(ImmutableList.of(), namesOf(of()));
+
+        final Iterator<String> iterator = of(4).iterator();
+        assertEquals("group4", iterator.next());
+        assertFalse(iterator.hasNext());
+        assertThrows(NoSuchElementException.class, iterator::next);
+    }
+
+    @Test
+    @DisplayName("Should equal the sets of the same names, whatever the encoding")
+    void shouldEqualSetsOfSameNames() {
+        final ImmutableSet<String> names = ImmutableSet.of("group3", "group1", "group2");
+
+        assertEquals(names, of(1, 2, 3));
+        assertEquals(of(1, 2, 3), names);
+        assertEquals(names.hashCode(), of(1, 2, 3).hashCode());
+        assertEquals(ImmutableSet.of("group5", "group150"), of(150, 5));
+        assertNotEquals(of(1, 2, 3), of(1, 2, 4));
+        assertEquals(ImmutableSet.of(), of());
+    }
+
+    static List<String> namesOf(RoleSet roleSet) {
+        final List<String> names = new ArrayList<>();
+        roleSet.forEach(names::add);
+        return names;
+    }
+}
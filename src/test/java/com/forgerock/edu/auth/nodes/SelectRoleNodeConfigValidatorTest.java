@@ -0,0 +1,79 @@
+package com.forgerock.edu.auth.nodes;
+
+import com.google.common.collect.ImmutableSet;
+import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.openam.sm.ServiceConfigException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+class SelectRoleNodeConfigValidatorTest {
+
+    AmIdentityHelper identityHelper;
+    Realm realm;
+    SelectRoleNodeConfigValidator validator;
+    Map<String, Set<String>> config;
+
+    @BeforeEach
+    void beforeEach() {
+        identityHelper = mock(AmIdentityHelper.class);
+        realm = mock(Realm.class);
+        given(realm.asPath()).willReturn("/");
+        validator = new SelectRoleNodeConfigValidator(identityHelper);
+        config = new HashMap<>();
+        config.put("defaultRole", ImmutableSet.of("Default"));
+    }
+
+    @Nested
+    @DisplayName("When no candidate roles are configured")
+    class NoCandidateRoles {
+
+        @Test
+        @DisplayName("Should reject a default role that is not a group of the realm")
+        void shouldRejectDefaultRoleThatIsNotGroup() throws Exception {
+            given(identityHelper.findNonExistingGroupNames("/", ImmutableSet.of("Default")))
+                    .willReturn(ImmutableSet.of("Default"));
+
+            final ServiceConfigException ex = assertThrows(ServiceConfigException.class,
+                    () -> validator.validate(realm, Collections.emptyList(), config));
+            assertTrue(ex.getMessage().startsWith("defaultRole is not an existing group name"), ex.getMessage());
+        }
+
+        @Test
+        @DisplayName("Should not look up the default role when the roles are read from an attribute")
+        void shouldNotLookUpDefaultRoleOfAttributeSource() throws Exception {
+            config.put("roleSource", ImmutableSet.of("ATTRIBUTE"));
+            config.put("roleAttribute", ImmutableSet.of("employeeType"));
+
+            validator.validate(realm, Collections.emptyList(), config);
+
+            verify(identityHelper, never()).findNonExistingGroupNames(anyString(), any());
+        }
+    }
+
+    @Test
+    @DisplayName("Should reject a maximum number of membership cache entries that does not fit an int")
+    void shouldRejectMaxEntriesAboveIntRange() {
+        config.put("candidateRoles", ImmutableSet.of("Default"));
+        config.put("roleSource", ImmutableSet.of("ATTRIBUTE"));
+        config.put("roleAttribute", ImmutableSet.of("employeeType"));
+        config.put("membershipCacheEnabled", ImmutableSet.of("true"));
+        config.put("membershipCacheMaxEntries", ImmutableSet.of(String.valueOf(Integer.MAX_VALUE + 1L)));
+
+        assertThrows(ServiceConfigException.class, () -> validator.validate(realm, Collections.emptyList(), config));
+    }
+}
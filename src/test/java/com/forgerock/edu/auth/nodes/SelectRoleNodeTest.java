@@ -7,21 +7,28 @@ import com.sun.identity.idm.IdType;
 import org.forgerock.json.JsonValue;
 import org.forgerock.openam.auth.node.api.*;
 import org.junit.jupiter.api.*;
+import org.mockito.ArgumentCaptor;
 import org.opentest4j.AssertionFailedError;
 
 import javax.security.auth.callback.Callback;
 import javax.security.auth.callback.ChoiceCallback;
 import javax.security.auth.callback.TextOutputCallback;
+import java.time.Duration;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.BDDMockito.given;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 // DONE Ch2L2Ex2 Task6: Observe the unit tests and run them
 class SelectRoleNodeTest {
@@ -32,6 +39,7 @@ class SelectRoleNodeTest {
     SelectRoleNode selectRoleNode;
     Set<String> candidateRoles;
     String defaultRole;
+    RoleSelectionMetrics metrics;
     TreeContext createTreeContextWithoutCallbacks() {
         final ExternalRequestContext externalRequestContext = new ExternalRequestContext.Builder().build();
         return new TreeContext(sharedState, externalRequestContext, Collections.emptyList(), Optional.empty());
@@ -44,7 +52,7 @@ class SelectRoleNodeTest {
     }
 
     void givenUserIsMemberOf(String... groupNames) throws Exception {
-        given(identityHelper.findAllAssignedGroupNamesOfUser(userIdentity))
+        given(identityHelper.findAllAssignedGroupNamesOfUser(eq(userIdentity), any(MembershipCacheSettings.class), any(Duration.class)))
                 .willReturn(ImmutableSet.copyOf(groupNames));
     }
 
@@ -80,11 +88,13 @@ class SelectRoleNodeTest {
         given(userIdentity.getName())
                 .willReturn("john");
 
-        given(identityHelper.getIdentity(eq("john"), anyString()))
+        given(identityHelper.getIdentity(eq("john"), anyString(), any()))
                 .willReturn(userIdentity);
+        given(identityHelper.await(any(), any())).willCallRealMethod();
 
         // The tested class instance
-        selectRoleNode = new SelectRoleNode(config, identityHelper);
+        metrics = new RoleSelectionMetrics(true);
+        selectRoleNode = new SelectRoleNode(config, identityHelper, metrics);
     }
 
     @AfterEach
@@ -148,6 +158,15 @@ class SelectRoleNodeTest {
                         "The selectedRole is not set to 'second'");
             }
 
+            @Test
+            @DisplayName("Should drop the selectable roles stored by an earlier visit of the node")
+            void shouldDropStoredSelectableRoles() throws Exception {
+
+                //WHEN
+                selectRoleNode.process(treeContext);
+
+                verify(sharedState).remove(SelectRoleNode.SELECTABLE_ROLES_STATE_KEY);
+            }
         }
 
         @Nested
@@ -172,8 +191,325 @@ class SelectRoleNodeTest {
                         "The selectedRole is not config.defaultRole");
             }
 
+            @Test
+            @DisplayName("Should record the default role outcome and the phase latencies")
+            void shouldRecordDefaultRoleOutcome() throws Exception {
+
+                //WHEN
+                selectRoleNode.process(treeContext);
+
+                assertEquals(1, metrics.outcomeCount(RoleSelectionMetrics.Outcome.DEFAULT_ROLE));
+                assertEquals(1L, metrics.getSelectableRoleCounts().get("0"));
+                assertEquals(1, metrics.phaseLatency(RoleSelectionMetrics.Phase.GET_IDENTITY).getCount());
+                assertEquals(1, metrics.phaseLatency(RoleSelectionMetrics.Phase.CALCULATE_SELECTABLE_ROLES).getCount());
+            }
+
+        }
+
+        @Nested
+        @DisplayName("When the identity repository is unavailable")
+        class IdRepoUnavailable {
+            @BeforeEach
+            void beforeEach() throws Exception {
+                given(config.idRepoTimeoutMillis())
+                        .willReturn(100L);
+                given(identityHelper.callWithDeadline(any(Duration.class), any()))
+                        .willReturn(userIdentity);
+                given(identityHelper.findAllAssignedGroupNamesOfUser(eq(userIdentity), any(MembershipCacheSettings.class), any(Duration.class)))
+                        .willThrow(new IdRepoUnavailableException("timed out"));
+            }
+
+            @Test
+            @DisplayName("Should fail when the node is not configured to degrade")
+            void shouldFailWhenNotDegrading() throws Exception {
+                selectRoleNode = new SelectRoleNode(config, identityHelper, metrics);
+
+                assertThrows(NodeProcessException.class, () -> selectRoleNode.process(treeContext));
+            }
+
+            @Test
+            @DisplayName("Should select the default role when no memberships are cached")
+            void shouldSelectDefaultRoleWhenDegrading() throws Exception {
+                given(config.degradeToDefaultRole())
+                        .willReturn(true);
+                given(identityHelper.lastKnownAssignedGroupNamesOfUser(eq(userIdentity), any(), any(MembershipCacheSettings.class)))
+                        .willReturn(Optional.empty());
+                selectRoleNode = new SelectRoleNode(config, identityHelper, metrics);
+
+                final Action action = selectRoleNode.process(treeContext);
+
+                assertEquals(defaultRole, action.sessionProperties.get("selectedRole"));
+                assertEquals(1, metrics.outcomeCount(RoleSelectionMetrics.Outcome.DEGRADED));
+            }
+
+            @Test
+            @DisplayName("Should select from the last cached memberships")
+            void shouldSelectFromLastCachedMemberships() throws Exception {
+                given(config.degradeToDefaultRole())
+                        .willReturn(true);
+                given(identityHelper.lastKnownAssignedGroupNamesOfUser(eq(userIdentity), any(), any(MembershipCacheSettings.class)))
+                        .willReturn(Optional.of(ImmutableSet.of("second", "fourth")));
+                selectRoleNode = new SelectRoleNode(config, identityHelper, metrics);
+
+                final Action action = selectRoleNode.process(treeContext);
+
+                assertEquals("second", action.sessionProperties.get("selectedRole"));
+            }
+        }
+
+        @Nested
+        @DisplayName("When nested groups are resolved")
+        class NestedGroups {
+            @BeforeEach
+            void beforeEach() throws Exception {
+                given(config.nestedGroupResolution())
+                        .willReturn(true);
+                given(config.nestedGroupMaxDepth())
+                        .willReturn(3);
+                givenUserIsMemberOf("fourth");
+                given(identityHelper.expandNestedGroupNamesAsync("/", ImmutableSet.of("fourth"), 3, Duration.ZERO))
+                        .willReturn(CompletableFuture.completedFuture(ImmutableSet.of("fourth", "first")));
+                selectRoleNode = new SelectRoleNode(config, identityHelper, metrics);
+            }
+
+            @Test
+            @DisplayName("Should select the roles granted through nested groups")
+            void shouldSelectRolesOfNestedGroups() throws Exception {
+
+                //WHEN
+                final Action action = selectRoleNode.process(treeContext);
+
+                assertEquals("first", action.sessionProperties.get("selectedRole"));
+            }
+        }
+
+        @Nested
+        @DisplayName("When the roles are read from an attribute")
+        class AttributeRoleSource {
+            @BeforeEach
+            void beforeEach() throws Exception {
+                given(config.roleAttribute())
+                        .willReturn("employeeRole");
+                given(identityHelper.findRoleAttributeValuesOfUser(eq(userIdentity), eq("employeeRole"),
+                        any(MembershipCacheSettings.class), any(Duration.class)))
+                        .willReturn(ImmutableSet.of("second", "unknown"));
+                givenUserIsMemberOf("first");
+            }
+
+            @Test
+            @DisplayName("Should select from the attribute values without looking up the memberships")
+            void shouldSelectFromAttributeOnly() throws Exception {
+                given(config.roleSource())
+                        .willReturn(SelectRoleNode.RoleSource.ATTRIBUTE);
+                selectRoleNode = new SelectRoleNode(config, identityHelper, metrics);
+
+                final Action action = selectRoleNode.process(treeContext);
+
+                assertEquals("second", action.sessionProperties.get("selectedRole"));
+                verify(identityHelper, never()).findAllAssignedGroupNamesOfUser(
+                        any(AMIdentity.class), any(MembershipCacheSettings.class), any(Duration.class));
+            }
+
+            @Test
+            @DisplayName("Should offer the groups and the attribute values merged")
+            void shouldMergeGroupsAndAttribute() throws Exception {
+                given(config.roleSource())
+                        .willReturn(SelectRoleNode.RoleSource.GROUP_MEMBERSHIPS_AND_ATTRIBUTE);
+                selectRoleNode = new SelectRoleNode(config, identityHelper, metrics);
+
+                final Action action = selectRoleNode.process(treeContext);
+
+                final ChoiceCallback choiceCallback = (ChoiceCallback) action.callbacks.get(0);
+                assertArrayEquals(new String[]{"first", "second"}, choiceCallback.getChoices());
+            }
+
+            @Test
+            @DisplayName("Should reject a configuration without role attribute")
+            void shouldRequireRoleAttribute() {
+                given(config.roleSource())
+                        .willReturn(SelectRoleNode.RoleSource.ATTRIBUTE);
+                given(config.roleAttribute())
+                        .willReturn(" ");
+
+                assertThrows(NodeProcessException.class, () -> new SelectRoleNode(config, identityHelper, metrics));
+            }
+        }
+
+        @Nested
+        @DisplayName("When the last selected role is remembered")
+        class RememberedRole {
+            @BeforeEach
+            void beforeEach() throws Exception {
+                given(config.rememberSelectedRole())
+                        .willReturn(true);
+                given(config.selectedRoleAttribute())
+                        .willReturn("");
+                givenUserIsMemberOf(defaultRole, "second", "fourth");
+                given(identityHelper.lastSelectedRole(userIdentity, ""))
+                        .willReturn(Optional.of("second"));
+                selectRoleNode = new SelectRoleNode(config, identityHelper, metrics);
+            }
+
+            @Test
+            @DisplayName("Should select the remembered role without sending a ChoiceCallback")
+            void shouldSelectRememberedRole() throws Exception {
+
+                //WHEN
+                final Action action = selectRoleNode.process(treeContext);
+
+                assertEquals(0, action.callbacks.size());
+                assertEquals("second", action.sessionProperties.get("selectedRole"));
+                assertEquals(1, metrics.outcomeCount(RoleSelectionMetrics.Outcome.REMEMBERED));
+                verify(sharedState).remove(SelectRoleNode.SELECTABLE_ROLES_STATE_KEY);
+            }
+
+            @Test
+            @DisplayName("Should send a ChoiceCallback when a role change is requested")
+            void shouldAskWhenRoleChangeIsRequested() throws Exception {
+                given(sharedState.get(SelectRoleNode.CHANGE_ROLE_STATE_KEY))
+                        .willReturn(new JsonValue(true));
+
+                //WHEN
+                final Action action = selectRoleNode.process(treeContext);
+
+                assertEquals(1, action.callbacks.size());
+                verify(identityHelper, never()).lastSelectedRole(any(), anyString());
+            }
+
+            @Test
+            @DisplayName("Should send a ChoiceCallback when the remembered role is no longer selectable")
+            void shouldAskWhenRememberedRoleIsNotSelectable() throws Exception {
+                given(identityHelper.lastSelectedRole(userIdentity, ""))
+                        .willReturn(Optional.of("first"));
+
+                //WHEN
+                final Action action = selectRoleNode.process(treeContext);
+
+                assertEquals(1, action.callbacks.size());
+            }
+        }
+
+        @Test
+        @DisplayName("Should reuse the universal id resolved by a previous node")
+        void shouldReuseUniversalIdOfTreeContext() throws Exception {
+            givenUserIsMemberOf("second");
+            final TreeContext contextWithUniversalId = new TreeContext(sharedState,
+                    new ExternalRequestContext.Builder().build(), Collections.emptyList(),
+                    Optional.of("id=john,ou=user,o=root"));
+
+            //WHEN
+            selectRoleNode.process(contextWithUniversalId);
+
+            verify(identityHelper).getIdentity("john", "/", "id=john,ou=user,o=root");
+        }
+
+        @Nested
+        @DisplayName("When no candidate roles are configured")
+        class NoCandidateRoles {
+            @BeforeEach
+            void beforeEach() throws Exception {
+                given(config.candidateRoles())
+                        .willReturn(ImmutableSet.of());
+                given(identityHelper.findAllGroupNamesInRealmAsync("/", Duration.ZERO))
+                        .willReturn(CompletableFuture.completedFuture(ImmutableSet.of("first", "second")));
+                givenUserIsMemberOf("second", "fourth");
+                selectRoleNode = new SelectRoleNode(config, identityHelper, metrics);
+            }
+
+            @Test
+            @DisplayName("Should select from the groups of the node's realm")
+            void shouldSelectFromGroupsOfTheRealm() throws Exception {
+
+                //WHEN
+                final Action action = selectRoleNode.process(treeContext);
+
+                assertEquals(0, action.callbacks.size());
+                assertEquals("second", action.sessionProperties.get("selectedRole"),
+                        "The selectedRole is not set to 'second'");
+                verify(identityHelper).findAllGroupNamesInRealmAsync("/", Duration.ZERO);
+            }
+        }
+
+    }
+
+    @Nested
+    @DisplayName("When the ChoiceCallback is resubmitted after the first invocation")
+    class RoundTrip {
+
+        Object storedSelectableRoles;
+
+        @BeforeEach
+        void beforeEach() throws Exception {
+            givenUserIsMemberOf(defaultRole, "second", "fourth");
+            selectRoleNode.process(createTreeContextWithoutCallbacks());
+
+            final ArgumentCaptor<Object> captor = ArgumentCaptor.forClass(Object.class);
+            verify(sharedState).put(eq(SelectRoleNode.SELECTABLE_ROLES_STATE_KEY), captor.capture());
+            storedSelectableRoles = captor.getValue();
+        }
+
+        TreeContext createTreeContextWithSelectedIndex(int selectedIndex) {
+            final ChoiceCallback choiceCallback = new ChoiceCallback("Select Role",
+                    new String[]{defaultRole, "second"}, 0, false);
+            choiceCallback.setSelectedIndex(selectedIndex);
+            return createTreeContextWithCallbacks(choiceCallback);
+        }
+
+        @Test
+        @DisplayName("Should resolve the selected index against the stored roles without querying the memberships again")
+        void shouldReuseStoredSelectableRoles() throws Exception {
+            given(sharedState.get(SelectRoleNode.SELECTABLE_ROLES_STATE_KEY))
+                    .willReturn(new JsonValue(storedSelectableRoles));
+            // memberships changed between the two requests
+            givenUserIsMemberOf("second", "fourth");
+
+            //WHEN
+            final Action action = selectRoleNode.process(createTreeContextWithSelectedIndex(1));
+
+            //ASSERTIONS
+            assertEquals("second", action.sessionProperties.get("selectedRole"));
+            verify(identityHelper, times(1)).findAllAssignedGroupNamesOfUser(eq(userIdentity), any(MembershipCacheSettings.class), any(Duration.class));
+            verify(sharedState).remove(SelectRoleNode.SELECTABLE_ROLES_STATE_KEY);
+        }
+
+        @Test
+        @DisplayName("Should recalculate the selectable roles when the stored roles were altered")
+        void shouldRecalculateSelectableRolesWhenStoredRolesWereAltered() throws Exception {
+            final JsonValue stored = new JsonValue(storedSelectableRoles);
+            given(sharedState.get(SelectRoleNode.SELECTABLE_ROLES_STATE_KEY))
+                    .willReturn(new JsonValue(JsonValue.object(
+                            JsonValue.field("roles", ImmutableList.of("second", defaultRole)),
+                            JsonValue.field("digest", stored.get("digest").asString()))));
+
+            //WHEN
+            final Action action = selectRoleNode.process(createTreeContextWithSelectedIndex(1));
+
+            //ASSERTIONS
+            assertEquals("second", action.sessionProperties.get("selectedRole"));
+            verify(identityHelper, times(2)).findAllAssignedGroupNamesOfUser(eq(userIdentity), any(MembershipCacheSettings.class), any(Duration.class));
         }
 
+        @Test
+        @DisplayName("Should recalculate the selectable roles when the stored roles belong to another user")
+        void shouldRecalculateSelectableRolesWhenStoredRolesBelongToAnotherUser() throws Exception {
+            given(sharedState.get(SelectRoleNode.SELECTABLE_ROLES_STATE_KEY))
+                    .willReturn(new JsonValue(storedSelectableRoles));
+            given(sharedState.get(SharedStateConstants.USERNAME))
+                    .willReturn(new JsonValue("jane"));
+            final AMIdentity otherIdentity = mock(AMIdentity.class);
+            given(identityHelper.getIdentity(eq("jane"), anyString(), any()))
+                    .willReturn(otherIdentity);
+            given(identityHelper.findAllAssignedGroupNamesOfUser(eq(otherIdentity), any(MembershipCacheSettings.class), any(Duration.class)))
+                    .willReturn(ImmutableSet.of("first"));
+
+            //WHEN
+            final Action action = selectRoleNode.process(createTreeContextWithSelectedIndex(1));
+
+            //ASSERTIONS
+            assertEquals(2, action.callbacks.size());
+            verify(identityHelper).findAllAssignedGroupNamesOfUser(eq(otherIdentity), any(MembershipCacheSettings.class), any(Duration.class));
+            verify(sharedState, never()).remove(SelectRoleNode.SELECTABLE_ROLES_STATE_KEY);
+        }
     }
 
     @Nested
@@ -328,6 +664,16 @@ class SelectRoleNodeTest {
                     //ASSERTIONS
                     assertResponseContainsWarningAndProperChoiceCallback(action);
                 }
+
+                @Test
+                @DisplayName("Should record the warning re-prompt outcome and the callback handling latency")
+                void shouldRecordWarningRepromptOutcome() throws Exception {
+                    //WHEN
+                    selectRoleNode.process(treeContext);
+                    //ASSERTIONS
+                    assertEquals(1, metrics.outcomeCount(RoleSelectionMetrics.Outcome.WARNING_REPROMPT));
+                    assertEquals(1, metrics.phaseLatency(RoleSelectionMetrics.Phase.CALLBACK_HANDLING).getCount());
+                }
             }
             @Nested
             @DisplayName("When selectedItem >= offeredChoices.length")